@@ -42,17 +42,35 @@ import com.liferay.portal.kernel.service.RoleLocalServiceUtil;
 import com.liferay.portal.kernel.service.UserLocalServiceUtil;
 import com.liferay.portal.kernel.util.PortalUtil;
 import com.mimacom.liferay.portal.setup.core.*;
+import com.mimacom.liferay.portal.setup.core.util.ChangeLedger;
+import com.mimacom.liferay.portal.setup.core.util.FolderPathCache;
+import com.mimacom.liferay.portal.setup.core.util.IndexerUtil;
+import com.mimacom.liferay.portal.setup.core.util.ResolverCache;
+import com.mimacom.liferay.portal.setup.core.util.SetupMetrics;
+import com.mimacom.liferay.portal.setup.core.util.SetupProps;
 import com.mimacom.liferay.portal.setup.domain.*;
 import org.xml.sax.SAXException;
 
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.ValidationEvent;
+import javax.xml.bind.ValidationEventLocator;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class LiferaySetup {
 
@@ -60,6 +78,7 @@ public final class LiferaySetup {
 
     private static final Log LOG = LogFactoryUtil.getLog(LiferaySetup.class);
     private static final String ADMIN_ROLE_NAME = "Administrator";
+    private static final int DEFAULT_PARSER_THREADS = 4;
     private static long runAsUserId;
 
     private LiferaySetup() {
@@ -68,12 +87,11 @@ public final class LiferaySetup {
 
     public static void setupFiles(final List<File> files) throws FileNotFoundException, ParserConfigurationException, SAXException, JAXBException {
 
-        List<Setup> setups = new ArrayList<>();
+        List<Callable<Setup>> parsers = new ArrayList<>();
         for (File file : files) {
-            Setup setup = MarshallUtil.unmarshall(file);
-            setups.add(setup);
+            parsers.add(() -> unmarshall(file));
         }
-        setup(setups);
+        parseAndSetup(parsers);
     }
 
     public static void setup(final File file) throws FileNotFoundException, ParserConfigurationException, SAXException, JAXBException {
@@ -83,12 +101,16 @@ public final class LiferaySetup {
 
     public static void setupInputStreams(final List<InputStream> inputStreams) throws ParserConfigurationException, SAXException, JAXBException {
 
-        List<Setup> setups = new ArrayList<>();
+        List<Callable<Setup>> parsers = new ArrayList<>();
         for (InputStream inputStream : inputStreams) {
-            Setup setup = MarshallUtil.unmarshall(inputStream);
-            setups.add(setup);
+            parsers.add(() -> unmarshall(inputStream));
+        }
+        try {
+            parseAndSetup(parsers);
+        } catch (FileNotFoundException e) {
+            // streams are open already, cannot happen
+            throw new JAXBException(e);
         }
-        setup(setups);
     }
 
     public static void setup(final InputStream inputStream) throws FileNotFoundException, ParserConfigurationException, SAXException, JAXBException {
@@ -96,45 +118,243 @@ public final class LiferaySetup {
         setupInputStreams(Arrays.asList(inputStream));
     }
 
+    /**
+     * Unmarshalls the setup file and, unless {@link SetupProps#VALIDATE} is
+     * turned off, validates it against the setup XSD in the same pass. The
+     * validation problems are logged, the setup is applied anyway.
+     */
+    private static Setup unmarshall(final File file) throws IOException, ParserConfigurationException, SAXException, JAXBException {
+
+        if (!SetupProps.getBoolean(SetupProps.VALIDATE, true)) {
+            return MarshallUtil.unmarshall(file);
+        }
+        List<ValidationEvent> events = new ArrayList<>();
+        Setup setup = MarshallUtil.unmarshall(file, events);
+        logValidationEvents(file.getName(), events);
+        return setup;
+    }
+
+    private static Setup unmarshall(final InputStream stream) throws IOException, ParserConfigurationException, SAXException, JAXBException {
+
+        if (!SetupProps.getBoolean(SetupProps.VALIDATE, true)) {
+            return MarshallUtil.unmarshall(stream);
+        }
+        List<ValidationEvent> events = new ArrayList<>();
+        Setup setup = MarshallUtil.unmarshall(stream, events);
+        logValidationEvents("stream", events);
+        return setup;
+    }
+
+    private static void logValidationEvents(final String name, final List<ValidationEvent> events) {
+
+        for (ValidationEvent event : events) {
+            ValidationEventLocator locator = event.getLocator();
+            LOG.warn("Setup " + name + " does not match the XSD at line " + locator.getLineNumber()
+                    + ", column " + locator.getColumnNumber() + ": " + event.getMessage());
+        }
+    }
+
+    /**
+     * Parses the setup files on a bounded pool and applies them in their
+     * original order, each one as soon as it and all files before it are
+     * parsed. If a file cannot be parsed, no further file is applied and the
+     * parse error is thrown.
+     */
+    private static void parseAndSetup(final List<Callable<Setup>> parsers) throws FileNotFoundException, ParserConfigurationException, SAXException, JAXBException {
+
+        int threads = Math.min(parsers.size(), SetupProps.getInteger(SetupProps.PARSER_THREADS, DEFAULT_PARSER_THREADS));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        AtomicBoolean failed = new AtomicBoolean();
+        try {
+            List<Future<Setup>> parsed = new ArrayList<>();
+            for (int i = 0; i < parsers.size(); i++) {
+                Callable<Setup> parser = parsers.get(i);
+                int number = i + 1;
+                parsed.add(executor.submit(() -> {
+                    try {
+                        return parser.call();
+                    } catch (Exception e) {
+                        failed.set(true);
+                        LOG.error("Setup file " + number + " of " + parsers.size() + " cannot be parsed, no further files will be applied");
+                        throw e;
+                    }
+                }));
+            }
+            for (int i = 0; i < parsed.size(); i++) {
+                if (failed.get()) {
+                    // wait for the failed file, its error is thrown
+                    for (int j = i; j < parsed.size(); j++) {
+                        getParsed(parsed.get(j));
+                    }
+                }
+                setup(Collections.singletonList(getParsed(parsed.get(i))));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Setup getParsed(final Future<Setup> future) throws FileNotFoundException, ParserConfigurationException, SAXException, JAXBException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JAXBException("Interrupted while parsing the setup files", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FileNotFoundException) {
+                throw (FileNotFoundException) cause;
+            } else if (cause instanceof ParserConfigurationException) {
+                throw (ParserConfigurationException) cause;
+            } else if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            } else if (cause instanceof JAXBException) {
+                throw (JAXBException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new JAXBException(cause.getMessage(), cause);
+        }
+    }
+
     public static void setup(final List<Setup> setups) {
 
         for (Setup setup : setups) {
             try {
-                Configuration configuration = setup.getConfiguration();
-
-                String runAsUser = configuration.getRunasuser();
-                if (runAsUser == null || runAsUser.isEmpty()) {
-                    setAdminPermissionCheckerForThread(PortalUtil.getDefaultCompanyId());
-                    LOG.info("Using default administrator.");
-                } else {
-                    User user = UserLocalServiceUtil.getUserByEmailAddress(PortalUtil.getDefaultCompanyId(), runAsUser);
-                    runAsUserId = user.getUserId();
-                    PrincipalThreadLocal.setName(runAsUserId);
-                    PermissionChecker permissionChecker = PermissionCheckerFactoryUtil.create(user);
-                    PermissionThreadLocal.setPermissionChecker(permissionChecker);
-
-                    LOG.info("Execute setup module as user " + setup.getConfiguration().getRunasuser());
-                }
-
+                initRunAsUser(setup.getConfiguration());
                 setupPortal(setup);
             } catch (Exception e) {
                 LOG.error("An error occured while executing the portal setup ", e);
             } finally {
-                PrincipalThreadLocal.setName(null);
-                PermissionThreadLocal.setPermissionChecker(null);
+                resetRunAsUser();
+            }
+        }
+    }
+
+    /**
+     * Executes the setup of the given file without ever holding all users,
+     * organizations, sites or page templates in memory, see
+     * {@link StreamingSetupReader}.
+     */
+    public static void setupStreaming(final File file) throws IOException, XMLStreamException, JAXBException {
+
+        setupStreaming(new StreamingSetupReader(file));
+    }
+
+    public static void setupStreaming(final URL url) throws IOException, XMLStreamException, JAXBException {
+
+        setupStreaming(new StreamingSetupReader(url));
+    }
+
+    private static void setupStreaming(final StreamingSetupReader reader) throws IOException, XMLStreamException, JAXBException {
+
+        Setup head = reader.readHead();
+        boolean started = false;
+        try {
+            initRunAsUser(head.getConfiguration());
+
+            long companyId = PortalUtil.getDefaultCompanyId();
+            long defaultUserId = getDefaultUserId(companyId);
+            long groupId = getGuestGroupId(companyId);
+            startRun(companyId);
+            started = true;
+
+            setupBasics(head, groupId, companyId);
+            // every phase is timed and its permissions flushed once, as in setupPortal
+            long start = SetupMetrics.start();
+            int users = reader.readUsers(user ->
+                    SetupUsers.setupUsers(Collections.singletonList(user), defaultUserId, groupId));
+            if (users > 0) {
+                endPhase(SetupMetrics.Phase.USERS, start);
+            }
+            start = SetupMetrics.start();
+            int organizations = reader.readOrganizations(organization ->
+                    SetupOrganizations.setupOrganizations(Collections.singletonList(organization), null, null));
+            if (organizations > 0) {
+                endPhase(SetupMetrics.Phase.ORGANIZATIONS, start);
+            }
+            setupGroupsAndPermissions(head);
+            start = SetupMetrics.start();
+            int sites = reader.readSites(site -> SetupSites.setupSites(Collections.singletonList(site), null));
+            if (sites > 0) {
+                endPhase(SetupMetrics.Phase.SITES, start);
             }
+            start = SetupMetrics.start();
+            int pageTemplates = reader.readPageTemplates(pageTemplate -> {
+                PageTemplates single = new PageTemplates();
+                single.getPageTemplate().add(pageTemplate);
+                SetupPages.setupPageTemplates(single, groupId, companyId, defaultUserId);
+            });
+            if (pageTemplates > 0) {
+                endPhase(SetupMetrics.Phase.PAGE_TEMPLATES, start);
+            }
+        } catch (Exception e) {
+            LOG.error("An error occured while executing the portal setup ", e);
+        } finally {
+            if (started) {
+                finishRun();
+            }
+            resetRunAsUser();
         }
     }
 
     public static void setupPortal(final Setup setup) {
 
-        long defaultUserId = 0;
         long companyId = PortalUtil.getDefaultCompanyId();
+        long defaultUserId = getDefaultUserId(companyId);
+        long groupId = getGuestGroupId(companyId);
+        startRun(companyId);
+
+        try {
+            setupBasics(setup, groupId, companyId);
+
+            if (setup.getUsers() != null) {
+                LOG.info("Setting up " + setup.getUsers().getUser().size() + " users");
+                long start = SetupMetrics.start();
+                SetupUsers.setupUsers(setup.getUsers().getUser(), defaultUserId, groupId);
+                endPhase(SetupMetrics.Phase.USERS, start);
+            }
+
+            if (setup.getOrganizations() != null) {
+                LOG.info("Setting up " + setup.getOrganizations().getOrganization().size() + " organizations");
+                long start = SetupMetrics.start();
+                SetupOrganizations.setupOrganizations(setup.getOrganizations().getOrganization(), null, null);
+                endPhase(SetupMetrics.Phase.ORGANIZATIONS, start);
+            }
+
+            setupGroupsAndPermissions(setup);
+
+            if (setup.getSites() != null) {
+                LOG.info("Setting up " + setup.getSites().getSite().size() + " sites");
+                long start = SetupMetrics.start();
+                SetupSites.setupSites(setup.getSites().getSite(), null);
+                endPhase(SetupMetrics.Phase.SITES, start);
+            }
+
+            if (setup.getPageTemplates() != null) {
+                long start = SetupMetrics.start();
+                SetupPages.setupPageTemplates(setup.getPageTemplates(), groupId, companyId, defaultUserId);
+                endPhase(SetupMetrics.Phase.PAGE_TEMPLATES, start);
+            }
+        } finally {
+            finishRun();
+        }
+    }
+
+    private static long getDefaultUserId(final long companyId) {
+
+        long defaultUserId = 0;
         try {
             defaultUserId = UserLocalServiceUtil.getDefaultUserId(companyId);
         } catch (PortalException e1) {
             LOG.error("default user not found", e1);
         }
+        return defaultUserId;
+    }
+
+    private static long getGuestGroupId(final long companyId) {
+
         long groupId = 0;
         Group g;
         try {
@@ -143,51 +363,109 @@ public final class LiferaySetup {
         } catch (PortalException e) {
             LOG.error("Default site not found", e);
         }
+        return groupId;
+    }
+
+    private static void startRun(final long companyId) {
+
+        SetupMetrics.startRun();
+        ResolverCache.clear();
+        FolderPathCache.clear();
+        ChangeLedger.load(companyId);
+        IndexerUtil.startDeferredIndexing();
+        SetupPermissions.startBatch();
+    }
+
+    private static void finishRun() {
+
+        SetupPermissions.finishBatch();
+        IndexerUtil.finishDeferredIndexing();
+        ChangeLedger.flush();
+        ResolverCache.logStatistics();
+        FolderPathCache.logStatistics();
+        SetupMetrics.finishRun();
+        LOG.info("Setup finished");
+    }
+
+    /**
+     * Writes what was collected during the phase and records its duration.
+     */
+    private static void endPhase(final SetupMetrics.Phase phase, final long start) {
+
+        SetupPermissions.flushBatch();
+        SetupMetrics.phase(phase, start);
+    }
+
+    /**
+     * The phases that run before users are set up: deletions, custom fields
+     * and roles.
+     */
+    private static void setupBasics(final Setup setup, final long groupId, final long companyId) {
 
         if (setup.getDeleteLiferayObjects() != null) {
             LOG.info("Deleting : " + setup.getDeleteLiferayObjects().getObjectsToBeDeleted().size() + " objects");
+            long start = SetupMetrics.start();
             deleteObjects(setup.getDeleteLiferayObjects().getObjectsToBeDeleted());
+            endPhase(SetupMetrics.Phase.DELETE, start);
         }
 
         if (setup.getCustomFields() != null) {
             LOG.info("Setting up " + setup.getCustomFields().getField().size() + " custom fields");
+            long start = SetupMetrics.start();
             SetupCustomFields.setupExpandoFields(setup.getCustomFields().getField());
+            endPhase(SetupMetrics.Phase.CUSTOM_FIELDS, start);
         }
 
         if (setup.getRoles() != null) {
             LOG.info("Setting up " + setup.getRoles().getRole().size() + " roles");
+            long start = SetupMetrics.start();
             SetupRoles.setupRoles(setup.getRoles().getRole(), runAsUserId, groupId, companyId);
+            endPhase(SetupMetrics.Phase.ROLES, start);
         }
-        if (setup.getUsers() != null) {
-            LOG.info("Setting up " + setup.getUsers().getUser().size() + " users");
-            SetupUsers.setupUsers(setup.getUsers().getUser(), defaultUserId, groupId);
-        }
+    }
 
-        if (setup.getOrganizations() != null) {
-            LOG.info("Setting up " + setup.getOrganizations().getOrganization().size() + " organizations");
-            SetupOrganizations.setupOrganizations(setup.getOrganizations().getOrganization(), null, null);
-        }
+    /**
+     * The phases between organizations and sites: user groups and portlet
+     * permissions.
+     */
+    private static void setupGroupsAndPermissions(final Setup setup) {
 
         if (setup.getUserGroups() != null) {
             LOG.info("Setting up " + setup.getUserGroups().getUserGroup().size() + " User Groups");
+            long start = SetupMetrics.start();
             SetupUserGroups.setupUserGroups(setup.getUserGroups().getUserGroup());
+            endPhase(SetupMetrics.Phase.USER_GROUPS, start);
         }
 
         if (setup.getPortletPermissions() != null) {
             LOG.info("Setting up " + setup.getPortletPermissions().getPortlet().size() + " roles");
+            long start = SetupMetrics.start();
             SetupPermissions.setupPortletPermissions(setup.getPortletPermissions());
+            endPhase(SetupMetrics.Phase.PORTLET_PERMISSIONS, start);
         }
+    }
 
-        if (setup.getSites() != null) {
-            LOG.info("Setting up " + setup.getSites().getSite().size() + " sites");
-            SetupSites.setupSites(setup.getSites().getSite(), null);
-        }
+    private static void initRunAsUser(final Configuration configuration) throws Exception {
+
+        String runAsUser = configuration.getRunasuser();
+        if (runAsUser == null || runAsUser.isEmpty()) {
+            setAdminPermissionCheckerForThread(PortalUtil.getDefaultCompanyId());
+            LOG.info("Using default administrator.");
+        } else {
+            User user = UserLocalServiceUtil.getUserByEmailAddress(PortalUtil.getDefaultCompanyId(), runAsUser);
+            runAsUserId = user.getUserId();
+            PrincipalThreadLocal.setName(runAsUserId);
+            PermissionChecker permissionChecker = PermissionCheckerFactoryUtil.create(user);
+            PermissionThreadLocal.setPermissionChecker(permissionChecker);
 
-        if (setup.getPageTemplates() != null) {
-            SetupPages.setupPageTemplates(setup.getPageTemplates(), groupId, companyId, defaultUserId);
+            LOG.info("Execute setup module as user " + runAsUser);
         }
+    }
 
-        LOG.info("Setup finished");
+    private static void resetRunAsUser() {
+
+        PrincipalThreadLocal.setName(null);
+        PermissionThreadLocal.setPermissionChecker(null);
     }
 
     private static void deleteObjects(final List<ObjectsToBeDeleted> objectsToBeDeleted) {
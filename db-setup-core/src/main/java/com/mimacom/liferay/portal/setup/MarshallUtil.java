@@ -28,6 +28,7 @@ package com.mimacom.liferay.portal.setup;
 
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.mimacom.liferay.portal.setup.core.util.SetupProps;
 import com.mimacom.liferay.portal.setup.domain.ObjectFactory;
 import com.mimacom.liferay.portal.setup.domain.Setup;
 
@@ -40,35 +41,106 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.ValidationEvent;
+import javax.xml.namespace.QName;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
 
 public final class MarshallUtil {
     private static final Log LOG = LogFactoryUtil.getLog(MarshallUtil.class);
+    private static final int DEFAULT_POOL_SIZE = 4;
+    private static final BlockingQueue<Unmarshaller> UNMARSHALLER_POOL = new ArrayBlockingQueue<>(
+            SetupProps.getInteger(SetupProps.UNMARSHALLER_POOL_SIZE, DEFAULT_POOL_SIZE));
+    private static final SAXParserFactory SAX_PARSER_FACTORY;
+    private static final String XSD_NAME = "setup_definition-1.0.xsd";
+    private static volatile JAXBContext jaxbContext;
+    private static volatile Schema schema;
+
+    static {
+        SAX_PARSER_FACTORY = SAXParserFactory.newInstance();
+        //SAX_PARSER_FACTORY.setXIncludeAware(true);
+        SAX_PARSER_FACTORY.setNamespaceAware(true);
+    }
 
     private MarshallUtil() {
     }
 
     public static Setup unmarshall(final File xmlFile) throws FileNotFoundException, JAXBException, ParserConfigurationException, SAXException {
-        return MarshallUtil.unmarshall(new FileInputStream(xmlFile));
+        InputStream stream = new FileInputStream(xmlFile);
+        try {
+            return MarshallUtil.unmarshall(stream, xmlFile.getName(), null);
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                LOG.warn("Cannot close " + xmlFile.getName(), e);
+            }
+        }
     }
 
     public static Setup unmarshall(final InputStream stream) throws JAXBException, ParserConfigurationException, SAXException {
+        return unmarshall(stream, "stream", null);
+    }
+
+    /**
+     * Unmarshalls the given setup file and validates it against the setup XSD
+     * in the same pass.
+     *
+     * @param xmlFile          the setup file.
+     * @param validationEvents receives the warnings and errors of the
+     *                         validation, the setup is valid if it stays empty.
+     * @return the setup, it may be incomplete if there are validation errors.
+     */
+    public static Setup unmarshall(final File xmlFile, final List<ValidationEvent> validationEvents)
+            throws IOException, JAXBException, ParserConfigurationException, SAXException {
+        getSchema();
+        InputStream stream = new FileInputStream(xmlFile);
         try {
-            SAXParserFactory spf = SAXParserFactory.newInstance();
-            //spf.setXIncludeAware(true);
-            spf.setNamespaceAware(true);
-            XMLReader xr = spf.newSAXParser().getXMLReader();
+            return MarshallUtil.unmarshall(stream, xmlFile.getName(), validationEvents);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Unmarshalls the given setup stream and validates it against the setup
+     * XSD in the same pass.
+     *
+     * @param stream           the setup definition.
+     * @param validationEvents receives the warnings and errors of the
+     *                         validation, the setup is valid if it stays empty.
+     * @return the setup, it may be incomplete if there are validation errors.
+     */
+    public static Setup unmarshall(final InputStream stream, final List<ValidationEvent> validationEvents)
+            throws IOException, JAXBException, ParserConfigurationException, SAXException {
+        // compile the schema up front, a missing XSD is reported as IOException
+        getSchema();
+        return unmarshall(stream, "stream", validationEvents);
+    }
+
+    private static Setup unmarshall(final InputStream stream, final String name,
+                                    final List<ValidationEvent> validationEvents)
+            throws JAXBException, ParserConfigurationException, SAXException {
+        long start = System.currentTimeMillis();
+        Unmarshaller unmarshaller = null;
+        try {
+            XMLReader xr = newXMLReader();
             /*
             EntityResolver entityResolver = new EntityResolver() {
                 @Override
@@ -80,38 +152,143 @@ public final class MarshallUtil {
             xr.setEntityResolver(entityResolver);
             */
             SAXSource src = new SAXSource(xr, new InputSource(stream));
-            return (Setup) getUnmarshaller().unmarshal(src);
+            unmarshaller = borrowUnmarshaller();
+            if (validationEvents != null) {
+                unmarshaller.setSchema(getSchema());
+                unmarshaller.setEventHandler(event -> {
+                    validationEvents.add(event);
+                    // keep going to report all problems, only fatal ones stop
+                    return event.getSeverity() != ValidationEvent.FATAL_ERROR;
+                });
+            }
+            Setup setup = (Setup) unmarshaller.unmarshal(src);
+            LOG.info("Parsed " + name + " in " + (System.currentTimeMillis() - start) + " ms");
+            return setup;
         } catch (JAXBException | ParserConfigurationException | SAXException e) {
             LOG.error("Cannot unmarshall the provided stream", e);
             throw e;
+        } catch (IOException e) {
+            throw new SAXException(e);
+        } finally {
+            releaseUnmarshaller(unmarshaller);
         }
     }
 
-    private static Unmarshaller getUnmarshaller() throws JAXBException {
+    /**
+     * Marshalls a single element of a setup, e.g. to compare it with the
+     * element of an earlier run.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static String marshallFragment(final Object element) throws JAXBException {
+        Marshaller marshaller = getContext().createMarshaller();
+        StringWriter writer = new StringWriter();
+        marshaller.marshal(new JAXBElement(new QName(element.getClass().getSimpleName()),
+                element.getClass(), element), writer);
+        return writer.toString();
+    }
 
-        ClassLoader cl = ObjectFactory.class.getClassLoader();
-        JAXBContext jc = JAXBContext.newInstance(ObjectFactory.class.getPackage().getName(), cl);
-        return jc.createUnmarshaller();
+    private static XMLReader newXMLReader() throws ParserConfigurationException, SAXException {
+        // the factory is shared, its configuration must not change while parsers are created
+        synchronized (SAX_PARSER_FACTORY) {
+            return SAX_PARSER_FACTORY.newSAXParser().getXMLReader();
+        }
     }
 
-    public static boolean validateAgainstXSD(final InputStream xml) throws IOException {
+    private static JAXBContext getContext() throws JAXBException {
+        JAXBContext context = jaxbContext;
+        if (context == null) {
+            synchronized (MarshallUtil.class) {
+                context = jaxbContext;
+                if (context == null) {
+                    ClassLoader cl = ObjectFactory.class.getClassLoader();
+                    context = JAXBContext.newInstance(ObjectFactory.class.getPackage().getName(), cl);
+                    jaxbContext = context;
+                }
+            }
+        }
+        return context;
+    }
 
-        ClassLoader cl = MarshallUtil.class.getClassLoader();
-        InputStream schemaInputStream = cl.getResourceAsStream("setup_definition-1.0.xsd");
-        if (schemaInputStream == null) {
-            throw new IOException("XSD configuration not found");
+    /**
+     * Takes an unmarshaller from the pool or creates a new one if all pooled
+     * ones are in use. Unmarshallers are not thread safe, each one is used by
+     * one thread at a time only.
+     */
+    static Unmarshaller borrowUnmarshaller() throws JAXBException {
+        Unmarshaller unmarshaller = UNMARSHALLER_POOL.poll();
+        if (unmarshaller == null) {
+            unmarshaller = getContext().createUnmarshaller();
         }
+        return unmarshaller;
+    }
 
-        try {
-            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-            Schema schema = factory.newSchema(new StreamSource(schemaInputStream));
-            Validator validator = schema.newValidator();
-            validator.validate(new StreamSource(xml));
+    static void releaseUnmarshaller(final Unmarshaller unmarshaller) {
+        if (unmarshaller != null) {
+            try {
+                unmarshaller.setSchema(null);
+                unmarshaller.setEventHandler(null);
+            } catch (JAXBException e) {
+                LOG.warn("Cannot reset unmarshaller, it will not be reused", e);
+                return;
+            }
+            // dropped if the pool is full already
+            UNMARSHALLER_POOL.offer(unmarshaller);
+        }
+    }
+
+    /**
+     * Returns the setup XSD, compiled only once.
+     */
+    private static Schema getSchema() throws IOException, SAXException {
+        Schema compiled = schema;
+        if (compiled == null) {
+            synchronized (MarshallUtil.class) {
+                compiled = schema;
+                if (compiled == null) {
+                    ClassLoader cl = MarshallUtil.class.getClassLoader();
+                    InputStream schemaInputStream = cl.getResourceAsStream(XSD_NAME);
+                    if (schemaInputStream == null) {
+                        throw new IOException("XSD configuration not found");
+                    }
+                    try {
+                        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                        compiled = factory.newSchema(new StreamSource(schemaInputStream));
+                        schema = compiled;
+                    } finally {
+                        schemaInputStream.close();
+                    }
+                }
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Validates the setup against the setup XSD, in a single pass with the
+     * validating unmarshaller.
+     *
+     * @return true if there are no validation errors, warnings are ignored.
+     */
+    public static boolean validateAgainstXSD(final InputStream xml) throws IOException {
 
-            return true;
+        try {
+            getSchema();
+        } catch (SAXException ex) {
+            LOG.error("Cannot compile " + XSD_NAME, ex);
+            return false;
+        }
 
-        } catch (Exception ex) {
+        List<ValidationEvent> validationEvents = new ArrayList<>();
+        try {
+            unmarshall(xml, "stream", validationEvents);
+        } catch (JAXBException | ParserConfigurationException | SAXException ex) {
             return false;
         }
+        for (ValidationEvent event : validationEvents) {
+            if (event.getSeverity() != ValidationEvent.WARNING) {
+                return false;
+            }
+        }
+        return true;
     }
 }
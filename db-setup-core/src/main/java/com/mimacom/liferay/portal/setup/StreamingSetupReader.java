@@ -0,0 +1,238 @@
+package com.mimacom.liferay.portal.setup;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.mimacom.liferay.portal.setup.domain.Configuration;
+import com.mimacom.liferay.portal.setup.domain.CustomFields;
+import com.mimacom.liferay.portal.setup.domain.DeleteLiferayObjects;
+import com.mimacom.liferay.portal.setup.domain.Organization;
+import com.mimacom.liferay.portal.setup.domain.PageTemplate;
+import com.mimacom.liferay.portal.setup.domain.PortletPermissions;
+import com.mimacom.liferay.portal.setup.domain.Roles;
+import com.mimacom.liferay.portal.setup.domain.Setup;
+import com.mimacom.liferay.portal.setup.domain.Site;
+import com.mimacom.liferay.portal.setup.domain.User;
+import com.mimacom.liferay.portal.setup.domain.UserGroups;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.function.Consumer;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads a setup definition with StAX, so that the biggest sections never have
+ * to be in memory as a whole. The small sections (configuration, roles, user
+ * groups, portlet permissions, custom fields and objects to delete) are read
+ * at once with {@link #readHead()}. The users, organizations, sites and page
+ * templates are unmarshalled one top-level element at a time and handed to a
+ * consumer, each section with its own pass over the source. Therefore the
+ * source must be readable several times.
+ */
+public final class StreamingSetupReader {
+
+    private static final Log LOG = LogFactoryUtil.getLog(StreamingSetupReader.class);
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final URL source;
+
+    public StreamingSetupReader(final URL source) {
+        this.source = source;
+    }
+
+    public StreamingSetupReader(final File file) throws MalformedURLException {
+        this(file.toURI().toURL());
+    }
+
+    /**
+     * Reads all sections of the setup except the users, organizations, sites
+     * and page templates.
+     */
+    public Setup readHead() throws IOException, XMLStreamException, JAXBException {
+        Setup setup = new Setup();
+        read(null, reader -> {
+            Unmarshaller unmarshaller = MarshallUtil.borrowUnmarshaller();
+            try {
+                switch (reader.getLocalName()) {
+                    case "configuration":
+                        setup.setConfiguration(unmarshaller.unmarshal(reader, Configuration.class).getValue());
+                        return true;
+                    case "roles":
+                        setup.setRoles(unmarshaller.unmarshal(reader, Roles.class).getValue());
+                        return true;
+                    case "userGroups":
+                        setup.setUserGroups(unmarshaller.unmarshal(reader, UserGroups.class).getValue());
+                        return true;
+                    case "portletPermissions":
+                        setup.setPortletPermissions(unmarshaller.unmarshal(reader, PortletPermissions.class).getValue());
+                        return true;
+                    case "customFields":
+                        setup.setCustomFields(unmarshaller.unmarshal(reader, CustomFields.class).getValue());
+                        return true;
+                    case "deleteLiferayObjects":
+                        setup.setDeleteLiferayObjects(unmarshaller.unmarshal(reader, DeleteLiferayObjects.class).getValue());
+                        return true;
+                    default:
+                        return false;
+                }
+            } finally {
+                MarshallUtil.releaseUnmarshaller(unmarshaller);
+            }
+        });
+        return setup;
+    }
+
+    public int readUsers(final Consumer<User> handler) throws IOException, XMLStreamException, JAXBException {
+        return readSection("users", User.class, handler);
+    }
+
+    public int readOrganizations(final Consumer<Organization> handler) throws IOException, XMLStreamException, JAXBException {
+        return readSection("organizations", Organization.class, handler);
+    }
+
+    public int readSites(final Consumer<Site> handler) throws IOException, XMLStreamException, JAXBException {
+        return readSection("sites", Site.class, handler);
+    }
+
+    public int readPageTemplates(final Consumer<PageTemplate> handler) throws IOException, XMLStreamException, JAXBException {
+        return readSection("page-templates", PageTemplate.class, handler);
+    }
+
+    /**
+     * Unmarshalls the children of the given section one by one. Every child
+     * is released after the handler returns.
+     */
+    private <T> int readSection(final String section, final Class<T> clazz, final Consumer<T> handler)
+            throws IOException, XMLStreamException, JAXBException {
+        long start = System.currentTimeMillis();
+        int[] count = new int[1];
+        read(section, reader -> {
+            Unmarshaller unmarshaller = MarshallUtil.borrowUnmarshaller();
+            try {
+                while (reader.isStartElement()) {
+                    handler.accept(unmarshaller.unmarshal(reader, clazz).getValue());
+                    count[0]++;
+                    toTag(reader);
+                }
+            } finally {
+                MarshallUtil.releaseUnmarshaller(unmarshaller);
+            }
+            return true;
+        });
+        LOG.info("Streamed " + count[0] + " elements of " + section + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return count[0];
+    }
+
+    /**
+     * Walks over the children of the root element. If a section is given, the
+     * visitor gets the reader positioned on the first child of that section
+     * and has to consume all its children. Otherwise the visitor gets every
+     * child of the root, it returns false for elements it did not consume.
+     * Elements not consumed are skipped without building any object.
+     */
+    private void read(final String section, final ElementVisitor visitor)
+            throws IOException, XMLStreamException, JAXBException {
+        InputStream stream = source.openStream();
+        try {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(stream);
+            try {
+                toTag(reader);
+                if (!reader.isStartElement() || !"setup".equals(reader.getLocalName())) {
+                    throw new XMLStreamException("Root element setup expected in " + source);
+                }
+                reader.next();
+                toTag(reader);
+                while (reader.isStartElement()) {
+                    if (section == null) {
+                        if (!visitor.visit(reader)) {
+                            skipElement(reader);
+                        }
+                    } else if (section.equals(reader.getLocalName())) {
+                        reader.next();
+                        toTag(reader);
+                        visitor.visit(reader);
+                        // a section occurs only once, the rest is not of interest
+                        break;
+                    } else {
+                        skipElement(reader);
+                    }
+                    toTag(reader);
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Moves to the next start or end tag, unless the reader is positioned on
+     * one already.
+     */
+    private static void toTag(final XMLStreamReader reader) throws XMLStreamException {
+        while (!reader.isStartElement() && !reader.isEndElement() && reader.hasNext()) {
+            reader.next();
+        }
+    }
+
+    /**
+     * Skips the element the reader is positioned on, including all its
+     * children. Afterwards the reader is positioned after its end tag.
+     */
+    private static void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+        int depth = 0;
+        do {
+            if (reader.isStartElement()) {
+                depth++;
+            } else if (reader.isEndElement()) {
+                depth--;
+            }
+            reader.next();
+        } while (depth > 0);
+    }
+
+    private interface ElementVisitor {
+        boolean visit(XMLStreamReader reader) throws XMLStreamException, JAXBException;
+    }
+}
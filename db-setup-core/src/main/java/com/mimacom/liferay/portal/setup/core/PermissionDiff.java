@@ -0,0 +1,122 @@
+package com.mimacom.liferay.portal.setup.core;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The difference between the permissions of a resource and a permission
+ * template: the roles whose actions have to be set and, if the permissions
+ * are cleared, the roles whose permissions have to be removed. Roles already
+ * holding exactly the actions of the template are left alone.
+ */
+final class PermissionDiff {
+
+    private final Map<Long, String[]> changed;
+    private final List<Long> removed;
+    private final long skippedActions;
+    private final long addedActions;
+    private final long removedActions;
+
+    private PermissionDiff(final Map<Long, String[]> changed, final List<Long> removed,
+                           final long skippedActions, final long addedActions, final long removedActions) {
+        this.changed = Collections.unmodifiableMap(changed);
+        this.removed = Collections.unmodifiableList(removed);
+        this.skippedActions = skippedActions;
+        this.addedActions = addedActions;
+        this.removedActions = removedActions;
+    }
+
+    /**
+     * @param template the wanted permissions, the bitmasks of all grants
+     *                 have to be known.
+     * @param current  the bitmask of the actions every role holds on the
+     *                 resource.
+     * @param clear    true if the permissions of roles not in the template
+     *                 are removed.
+     */
+    static PermissionDiff of(final PermissionTemplate template, final Map<Long, Long> current,
+                             final boolean clear) {
+        Map<Long, Long> others = new HashMap<>(current);
+        Map<Long, String[]> changed = new LinkedHashMap<>();
+        long skipped = 0;
+        long added = 0;
+        long removedActions = 0;
+        for (PermissionTemplate.Grant grant : template.getGrants()) {
+            long wanted = grant.getBits();
+            Long held = others.remove(grant.getRoleId());
+            long bits = held == null ? 0 : held;
+            skipped += Long.bitCount(wanted & bits);
+            added += Long.bitCount(wanted & ~bits);
+            removedActions += Long.bitCount(bits & ~wanted);
+            if (wanted != bits) {
+                changed.put(grant.getRoleId(), template.getActionIds().get(grant.getRoleId()));
+            }
+        }
+        List<Long> removed = new ArrayList<>();
+        if (clear) {
+            for (Map.Entry<Long, Long> e : others.entrySet()) {
+                if (e.getValue() != 0) {
+                    removed.add(e.getKey());
+                    removedActions += Long.bitCount(e.getValue());
+                }
+            }
+        }
+        return new PermissionDiff(changed, removed, skipped, added, removedActions);
+    }
+
+    /**
+     * @return the action ids of the roles to be set, by role id.
+     */
+    Map<Long, String[]> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return the ids of the roles whose permissions are removed.
+     */
+    List<Long> getRemoved() {
+        return removed;
+    }
+
+    long getSkippedActions() {
+        return skippedActions;
+    }
+
+    long getAddedActions() {
+        return addedActions;
+    }
+
+    long getRemovedActions() {
+        return removedActions;
+    }
+}
@@ -0,0 +1,263 @@
+package com.mimacom.liferay.portal.setup.core;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.exception.PortalException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.service.ResourceActionLocalServiceUtil;
+import com.mimacom.liferay.portal.setup.domain.PermissionAction;
+import com.mimacom.liferay.portal.setup.domain.RolePermission;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The permissions of a set of roles compiled for one resource class: the id
+ * of every role with its action ids and the bitmask of these actions.
+ * Templates are compiled once per setup run and shared by all resources they
+ * are applied to, so neither role names nor action names are looked up again.
+ */
+final class PermissionTemplate {
+
+    private static final Log LOG = LogFactoryUtil.getLog(PermissionTemplate.class);
+    private static final String SEPARATOR = "#";
+    private static final Map<TemplateKey, PermissionTemplate> DEFAULT_TEMPLATES = new ConcurrentHashMap<>();
+    private static final Map<TemplateKey, PermissionTemplate> ROLE_TEMPLATES = new ConcurrentHashMap<>();
+    private static final Map<String, Grant> GRANTS = new ConcurrentHashMap<>();
+
+    private final Map<Long, Grant> grants;
+    private final Map<Long, String[]> actionIds;
+
+    PermissionTemplate(final Map<Long, Grant> grants) {
+        Map<Long, String[]> ids = new LinkedHashMap<>();
+        for (Grant grant : grants.values()) {
+            ids.put(grant.roleId, grant.actionIds);
+        }
+        this.grants = Collections.unmodifiableMap(grants);
+        this.actionIds = Collections.unmodifiableMap(ids);
+    }
+
+    /**
+     * Returns the template of default permissions, compiled at the first use
+     * of the given map for the class during the setup run.
+     */
+    static PermissionTemplate forDefaults(final String className,
+                                          final Map<String, List<String>> defaultPermissions,
+                                          final String locationHint) {
+        TemplateKey key = new TemplateKey(className, defaultPermissions);
+        PermissionTemplate template = DEFAULT_TEMPLATES.get(key);
+        if (template == null) {
+            Map<Long, Grant> grants = new LinkedHashMap<>();
+            boolean complete = true;
+            for (Map.Entry<String, List<String>> entry : defaultPermissions.entrySet()) {
+                Grant grant = getGrant(className, entry.getKey(), entry.getValue(), locationHint);
+                if (grant == null) {
+                    complete = false;
+                } else {
+                    grants.put(grant.roleId, grant);
+                }
+            }
+            template = new PermissionTemplate(grants);
+            // incomplete templates are compiled again, so that a missing role is reported for every resource
+            if (complete) {
+                DEFAULT_TEMPLATES.put(key, template);
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Returns the template of permissions defined in the setup, compiled at
+     * the first use of the given definition for the class until the
+     * templates are released. The grant of every role is compiled once per
+     * class and set of actions.
+     */
+    static PermissionTemplate forRolePermissions(final String className,
+                                                 final List<RolePermission> rolePermissions,
+                                                 final String locationHint) {
+        TemplateKey key = new TemplateKey(className, rolePermissions);
+        PermissionTemplate template = ROLE_TEMPLATES.get(key);
+        if (template == null) {
+            Map<Long, Grant> grants = new LinkedHashMap<>();
+            boolean complete = true;
+            for (RolePermission rp : rolePermissions) {
+                List<String> actions = new ArrayList<>();
+                for (PermissionAction pa : rp.getPermissionAction()) {
+                    actions.add(pa.getActionName());
+                }
+                Grant grant = getGrant(className, rp.getRoleName(), actions, locationHint);
+                if (grant == null) {
+                    complete = false;
+                } else {
+                    grants.put(grant.roleId, grant);
+                }
+            }
+            template = new PermissionTemplate(grants);
+            // incomplete templates are compiled again, so that a missing role is reported for every resource
+            if (complete) {
+                ROLE_TEMPLATES.put(key, template);
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Empties the compiled templates, called at the start of every setup run.
+     */
+    static void clear() {
+        DEFAULT_TEMPLATES.clear();
+        ROLE_TEMPLATES.clear();
+        GRANTS.clear();
+    }
+
+    /**
+     * Releases the templates of permissions defined in the setup, so that
+     * the definitions they are keyed by are not kept in memory. Called
+     * whenever the collected permissions are written.
+     */
+    static void releaseRoleTemplates() {
+        ROLE_TEMPLATES.clear();
+    }
+
+    /**
+     * @return a template with the grants of both, the grants of the other
+     * template win for the same role.
+     */
+    PermissionTemplate merge(final PermissionTemplate other) {
+        Map<Long, Grant> merged = new LinkedHashMap<>(grants);
+        merged.putAll(other.grants);
+        return new PermissionTemplate(merged);
+    }
+
+    Collection<Grant> getGrants() {
+        return grants.values();
+    }
+
+    /**
+     * @return the action ids by role id, as expected by the resource
+     * permission service.
+     */
+    Map<Long, String[]> getActionIds() {
+        return actionIds;
+    }
+
+    private static Grant getGrant(final String className, final String roleName,
+                                  final List<String> actions, final String locationHint) {
+        String key = className + SEPARATOR + roleName + SEPARATOR + String.join(",", actions);
+        Grant grant = GRANTS.get(key);
+        if (grant == null) {
+            long roleId;
+            try {
+                roleId = SetupPermissions.getRoleId(roleName);
+            } catch (PortalException e) {
+                LOG.error("Permissions for " + roleName + " for " + locationHint + " "
+                        + "could not be set. " + "Probably role not found! ", e);
+                return null;
+            }
+            String[] actionIds = actions.toArray(new String[actions.size()]);
+            long bits = 0;
+            boolean bitsKnown = true;
+            try {
+                for (String actionId : actionIds) {
+                    bits |= ResourceActionLocalServiceUtil.getResourceAction(className, actionId)
+                            .getBitwiseValue();
+                }
+            } catch (PortalException e) {
+                LOG.debug("Unknown action of " + className + " in " + actions, e);
+                bitsKnown = false;
+            }
+            grant = new Grant(roleId, actionIds, bits, bitsKnown);
+            GRANTS.put(key, grant);
+        }
+        return grant;
+    }
+
+    /**
+     * The actions of one role, with their bitmask if all actions are known.
+     */
+    static final class Grant {
+        private final long roleId;
+        private final String[] actionIds;
+        private final long bits;
+        private final boolean bitsKnown;
+
+        Grant(final long roleId, final String[] actionIds, final long bits,
+                      final boolean bitsKnown) {
+            this.roleId = roleId;
+            this.actionIds = actionIds;
+            this.bits = bits;
+            this.bitsKnown = bitsKnown;
+        }
+
+        long getRoleId() {
+            return roleId;
+        }
+
+        long getBits() {
+            return bits;
+        }
+
+        boolean isBitsKnown() {
+            return bitsKnown;
+        }
+    }
+
+    /**
+     * Identifies a permission definition by identity, either a default
+     * permission map, these maps are constants of the setup classes, or the
+     * role permissions of an element of the setup definition.
+     */
+    private static final class TemplateKey {
+        private final String className;
+        private final Object permissions;
+
+        private TemplateKey(final String className, final Object permissions) {
+            this.className = className;
+            this.permissions = permissions;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof TemplateKey)) {
+                return false;
+            }
+            TemplateKey other = (TemplateKey) o;
+            return permissions == other.permissions && className.equals(other.className);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * className.hashCode() + System.identityHashCode(permissions);
+        }
+    }
+}
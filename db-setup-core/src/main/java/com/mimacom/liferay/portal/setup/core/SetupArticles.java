@@ -55,10 +55,16 @@ import com.liferay.portal.kernel.service.ServiceContext;
 import com.liferay.portal.kernel.util.*;
 import com.liferay.portal.kernel.workflow.WorkflowConstants;
 import com.mimacom.liferay.portal.setup.LiferaySetup;
+import com.mimacom.liferay.portal.setup.core.util.ChangeLedger;
+import com.mimacom.liferay.portal.setup.core.util.IndexerUtil;
 import com.mimacom.liferay.portal.setup.core.util.ResolverUtil;
 import com.mimacom.liferay.portal.setup.core.util.ResourcesUtil;
+import com.mimacom.liferay.portal.setup.core.util.SetupMetrics;
 import com.mimacom.liferay.portal.setup.core.util.TaggingUtil;
 import com.mimacom.liferay.portal.setup.core.util.FieldMapUtil;
+import com.mimacom.liferay.portal.setup.core.util.ResolverCache;
+import com.mimacom.liferay.portal.setup.core.util.ResolverPrefetch;
+import com.mimacom.liferay.portal.setup.core.util.SetupProps;
 import com.mimacom.liferay.portal.setup.core.util.WebFolderUtil;
 import com.mimacom.liferay.portal.setup.domain.*;
 
@@ -66,6 +72,7 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -80,6 +87,7 @@ public final class SetupArticles {
     private static final HashMap<String, List<String>> DEFAULT_DDM_PERMISSIONS;
     private static final int ARTICLE_PUBLISH_YEAR = 2008;
     private static final int MIN_DISPLAY_ROWS = 10;
+    private static final int DEFAULT_ARTICLE_CHUNK_SIZE = 500;
 
     static {
         DEFAULT_PERMISSIONS = new HashMap<String, List<String>>();
@@ -170,8 +178,18 @@ public final class SetupArticles {
 
         List<Article> articles = site.getArticle();
         if (articles != null) {
-            for (Article article : articles) {
-                addJournalArticle(article, groupId, companyId);
+            // the files are read once per chunk, for the prefetch and the article itself
+            int chunkSize = Math.max(1, SetupProps.getInteger(SetupProps.RESOLVER_PREFETCH_CHUNK_SIZE,
+                    DEFAULT_ARTICLE_CHUNK_SIZE));
+            for (int from = 0; from < articles.size(); from += chunkSize) {
+                List<Article> chunk = articles.subList(from, Math.min(articles.size(), from + chunkSize));
+                Map<Article, String> contents = readContents(chunk);
+                prefetchReferences(contents, groupId, companyId);
+                for (Article article : chunk) {
+                    long start = SetupMetrics.start();
+                    addJournalArticle(article, contents.get(article), groupId, companyId);
+                    SetupMetrics.entity(SetupMetrics.Entity.ARTICLE, start);
+                }
             }
         }
         List<Adt> adts = site.getAdt();
@@ -197,6 +215,47 @@ public final class SetupArticles {
         }
     }
 
+    /**
+     * Reads the file content of the given articles, null for the files that
+     * cannot be read.
+     */
+    private static Map<Article, String> readContents(final List<Article> articles) {
+        Map<Article, String> contents = new IdentityHashMap<>();
+        for (Article article : articles) {
+            contents.put(article, readContent(article));
+        }
+        return contents;
+    }
+
+    private static String readContent(final Article article) {
+        try {
+            return ResourcesUtil.getFileContent(article.getPath());
+        } catch (IOException e) {
+            LOG.error(
+                    "Error Reading Article File content for article ID: " + article.getArticleId());
+            return null;
+        }
+    }
+
+    /**
+     * Loads everything the given article contents refer to with a few set
+     * based queries, so that resolving the single articles hits the resolver
+     * cache.
+     */
+    private static void prefetchReferences(final Map<Article, String> contents, final long groupId,
+                                           final long companyId) {
+        if (contents.size() < 2 || !SetupProps.getBoolean(SetupProps.RESOLVER_PREFETCH, true)) {
+            return;
+        }
+        ResolverPrefetch prefetch = new ResolverPrefetch(groupId, companyId);
+        for (Map.Entry<Article, String> e : contents.entrySet()) {
+            if (e.getValue() != null) {
+                prefetch.collect(e.getValue(), e.getKey().getPath());
+            }
+        }
+        prefetch.fetch();
+    }
+
     public static void addDDMStructure(final Structure structure, final long groupId,
                                        final long classNameId,final long companyId)
             throws SystemException, PortalException, IOException, URISyntaxException {
@@ -258,6 +317,7 @@ public final class SetupArticles {
 
             DDMStructure ddmStructureSaved=DDMStructureLocalServiceUtil.updateStructure(LiferaySetup.getRunAsUserId(), ddmStructure.getStructureId(),
                     ddmStructure.getParentStructureId(), nameMap, descMap, ddmForm, ddmFormLayout, new ServiceContext());
+            ResolverCache.invalidateAll(ResolverCache.Type.STRUCTURE, groupId);
             LOG.info("Template successfully updated: " + structure.getName());
 
             SetupPermissions.updatePermission("Structure "+structure.getKey(),groupId
@@ -331,6 +391,7 @@ public final class SetupArticles {
             ddmTemplate.setCacheable(template.isCacheable());
 
             DDMTemplateLocalServiceUtil.updateDDMTemplate(ddmTemplate);
+            ResolverCache.invalidateAll(ResolverCache.Type.TEMPLATE, groupId);
             LOG.info("Template successfully updated: " + ddmTemplate.getName());
             return;
         }
@@ -383,6 +444,7 @@ public final class SetupArticles {
             ddmTemplate.setScript(script);
 
             DDMTemplateLocalServiceUtil.updateDDMTemplate(ddmTemplate);
+            ResolverCache.invalidateAll(ResolverCache.Type.TEMPLATE, groupId);
             LOG.info("ADT successfully updated: " + ddmTemplate.getName());
             return;
         }
@@ -396,6 +458,15 @@ public final class SetupArticles {
 
     public static void addJournalArticle(final Article article, final long groupId,
                                          final long companyId) {
+        addJournalArticle(article, readContent(article), groupId, companyId);
+    }
+
+    /**
+     * @param fileContent the content of the article file, null if it could
+     *                    not be read.
+     */
+    private static void addJournalArticle(final Article article, final String fileContent,
+                                          final long groupId, final long companyId) {
         LOG.info("Adding Journal Article " + article.getTitle());
 
         String content = null;
@@ -411,13 +482,9 @@ public final class SetupArticles {
                 folderId = jf.getFolderId();
             }
         }
-        try {
-            content = ResourcesUtil.getFileContent(article.getPath());
+        if (fileContent != null) {
             content = ResolverUtil.lookupAll(LiferaySetup.getRunAsUserId(), groupId, companyId,
-                    content, article.getPath());
-        } catch (IOException e) {
-            LOG.error(
-                    "Error Reading Article File content for article ID: " + article.getArticleId());
+                    fileContent, article.getPath());
         }
         Map<Locale, String> titleMap = FieldMapUtil.getTitleMap(article.getTitleTranslation(),
                                                                 groupId, article.getTitle(), " Article with title " + article.getArticleId());
@@ -437,7 +504,7 @@ public final class SetupArticles {
                 descriptionMap.put(articleDefaultLocale, article.getArticleDescription());
             }
         }
-        ServiceContext serviceContext = new ServiceContext();
+        ServiceContext serviceContext = IndexerUtil.newServiceContext();
         serviceContext.setScopeGroupId(groupId);
 
         JournalArticle journalArticle = null;
@@ -455,8 +522,16 @@ public final class SetupArticles {
             }
         }
 
+        String hash = ChangeLedger.hash(article, content, folderId);
+        if (journalArticle != null && ChangeLedger.isUnchanged(ChangeLedger.Type.ARTICLE, groupId,
+                article.getArticleId(), hash)) {
+            LOG.info("Article " + article.getArticleId() + " is unchanged since the last setup, skipped.");
+            return;
+        }
+
         try {
             if (journalArticle == null) {
+                SetupMetrics.call("JournalArticleLocalService.addArticle");
                 journalArticle = JournalArticleLocalServiceUtil.addArticle(
                         LiferaySetup.getRunAsUserId(), groupId, folderId, 0, 0,
                         article.getArticleId(), generatedId,
@@ -468,9 +543,11 @@ public final class SetupArticles {
 
                 LOG.info("Added JournalArticle " + journalArticle.getTitle() + " with ID: "
                         + journalArticle.getArticleId());
-                Indexer bi = IndexerRegistryUtil.getIndexer(JournalArticle.class);
-                if (bi != null) {
-                    bi.reindex(journalArticle);
+                if (!IndexerUtil.isDeferred()) {
+                    Indexer bi = IndexerRegistryUtil.getIndexer(JournalArticle.class);
+                    if (bi != null) {
+                        bi.reindex(journalArticle);
+                    }
                 }
             } else {
                 LOG.info("Article " + article.getTitle() + " with article ID: "
@@ -479,22 +556,33 @@ public final class SetupArticles {
                 journalArticle.setContent(content);
                 journalArticle.setDescriptionMap(descriptionMap);
 
+                SetupMetrics.call("JournalArticleLocalService.updateJournalArticle");
                 JournalArticleLocalServiceUtil.updateJournalArticle(journalArticle);
 
                 // if the folder changed, move it...
                 if (journalArticle.getFolderId() != folderId) {
+                    SetupMetrics.call("JournalArticleLocalService.moveArticle");
                     JournalArticleLocalServiceUtil.moveArticle(groupId,
                             journalArticle.getArticleId(), folderId);
                 }
                 LOG.info("Updated JournalArticle: " + journalArticle.getTitle());
             }
+            ResolverCache.invalidate(ResolverCache.Type.ARTICLE, groupId,
+                    journalArticle.getArticleId());
+            IndexerUtil.defer(JournalArticle.class, journalArticle.getResourcePrimKey());
             TaggingUtil.associateTagsAndCategories(groupId, article, journalArticle);
-            processRelatedAssets(article, journalArticle, LiferaySetup.getRunAsUserId(), groupId,
-                    companyId);
-
+            boolean linked = processRelatedAssets(article, journalArticle, LiferaySetup.getRunAsUserId(),
+                    groupId, companyId);
+
+            // the hash is only recorded if every write of the article succeeded, including its permissions
+            Runnable record = null;
+            if (!generatedId && linked) {
+                record = () -> ChangeLedger.record(ChangeLedger.Type.ARTICLE, groupId,
+                        article.getArticleId(), hash);
+            }
             SetupPermissions.updatePermission("Article " + journalArticle.getArticleId(), groupId,
                     companyId, journalArticle.getResourcePrimKey(), JournalArticle.class,
-                    article.getRolePermissions(), DEFAULT_PERMISSIONS);
+                    article.getRolePermissions(), DEFAULT_PERMISSIONS, record);
         } catch (PortalException | SystemException e) {
             LOG.error("Error while trying to add/update Article with Title: " + article.getTitle(),
                     e);
@@ -523,6 +611,8 @@ public final class SetupArticles {
             ddlRecordSet.setDDMStructureId(ResolverUtil
                     .getStructureId(recordSet.getDdlStructureKey(), groupId, DDLRecordSet.class, false));
             DDLRecordSetLocalServiceUtil.updateDDLRecordSet(ddlRecordSet);
+            ResolverCache.invalidate(ResolverCache.Type.DDL_RECORD_SET, groupId,
+                    recordSet.getKey());
             LOG.info("DDLRecordSet successfully updated: " + recordSet.getName());
             return;
         }
@@ -536,8 +626,13 @@ public final class SetupArticles {
         LOG.info("Added DDLRecordSet: " + newDDLRecordSet.getName());
     }
 
-    public static void processRelatedAssets(final Article article, final JournalArticle ja,
-                                            final long runAsUserId, final long groupId, final long companyId) {
+    /**
+     * Links the related assets of the article. Returns false if an asset
+     * could not be linked.
+     */
+    public static boolean processRelatedAssets(final Article article, final JournalArticle ja,
+                                               final long runAsUserId, final long groupId, final long companyId) {
+        boolean success = true;
         if (article.getRelatedAssets() != null) {
             RelatedAssets ras = article.getRelatedAssets();
             AssetEntry ae = null;
@@ -549,6 +644,7 @@ public final class SetupArticles {
                     AssetLinkLocalServiceUtil.deleteLinks(ae.getEntryId());
                 } catch (PortalException | SystemException e) {
                     LOG.error("Problem clearing related assets of article " + ja.getArticleId(), e);
+                    success = false;
                 }
             }
             if (ras.getRelatedAsset() != null && !ras.getRelatedAsset().isEmpty()) {
@@ -566,6 +662,7 @@ public final class SetupArticles {
                         id = Long.parseLong(clazzPrimKey);
                     } catch (Exception ex) {
                         LOG.error("Class primary key is not parseable as long value.", ex);
+                        success = false;
                     }
 
                     try {
@@ -577,12 +674,14 @@ public final class SetupArticles {
                         LOG.error(
                                 "Problem resolving related asset of article " + ja.getArticleId()
                                         + " with clazz " + clazz + " primary key " + clazzPrimKey, e);
+                        success = false;
                     }
 
                 }
             }
 
         }
+        return success;
     }
 
 }
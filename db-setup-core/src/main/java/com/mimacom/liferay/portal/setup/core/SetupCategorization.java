@@ -41,6 +41,7 @@ import com.liferay.portal.kernel.util.ArrayUtil;
 import com.liferay.portal.kernel.util.PortalUtil;
 import com.liferay.portlet.asset.util.AssetVocabularySettingsHelper;
 import com.mimacom.liferay.portal.setup.LiferaySetup;
+import com.mimacom.liferay.portal.setup.core.util.IndexerUtil;
 import com.mimacom.liferay.portal.setup.core.util.ResolverUtil;
 import com.mimacom.liferay.portal.setup.core.util.FieldMapUtil;
 import com.mimacom.liferay.portal.setup.domain.AssociatedAssetType;
@@ -217,7 +218,7 @@ public final class SetupCategorization {
         String description = category.getDescription();
         descMap.put(defaultLocale, description);
 
-        ServiceContext serviceContext = new ServiceContext();
+        ServiceContext serviceContext = IndexerUtil.newServiceContext();
         serviceContext.setCompanyId(PortalUtil.getDefaultCompanyId());
         serviceContext.setScopeGroupId(groupId);
 
@@ -245,6 +246,7 @@ public final class SetupCategorization {
 
             try {
                 AssetCategoryLocalServiceUtil.updateAssetCategory(assetCategory);
+                IndexerUtil.defer(AssetCategory.class, assetCategory.getCategoryId());
                 LOG.info("Category successfully updated.");
             } catch (SystemException e) {
                 LOG.error("Error while trying to update category with name: "
@@ -259,6 +261,7 @@ public final class SetupCategorization {
         try {
             assetCategory = AssetCategoryLocalServiceUtil.addCategory(LiferaySetup.getRunAsUserId(), groupId,
                     parentCategoryId, titleMap, descMap, vocabularyId, null, serviceContext);
+            IndexerUtil.defer(AssetCategory.class, assetCategory.getCategoryId());
             LOG.info("Category successfully added with title: " + assetCategory.getTitle());
 
             setupCategories(vocabularyId, groupId, assetCategory.getCategoryId(),
@@ -36,6 +36,8 @@ import com.liferay.portal.kernel.exception.SystemException;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.util.*;
+import com.mimacom.liferay.portal.setup.core.util.ChangeLedger;
+import com.mimacom.liferay.portal.setup.core.util.SetupMetrics;
 import com.mimacom.liferay.portal.setup.domain.CustomFields;
 import com.mimacom.liferay.portal.setup.domain.RolePermission;
 
@@ -58,8 +60,10 @@ public final class SetupCustomFields {
             String className = field.getClassName();
             LOG.info("Add field " + field.getName() + "(" + className + ") to expando bridge");
 
+            long start = SetupMetrics.start();
             ExpandoBridge bridge = ExpandoBridgeFactoryUtil.getExpandoBridge(COMPANY_ID, className);
             addAttributeToExpandoBridge(bridge, field);
+            SetupMetrics.entity(SetupMetrics.Entity.CUSTOM_FIELD, start);
         }
     }
 
@@ -94,6 +98,13 @@ public final class SetupCustomFields {
             final CustomFields.Field field) {
 
         String name = field.getName();
+        String ledgerKey = bridge.getClassName() + "#" + name;
+        String hash = ChangeLedger.hash(field);
+        if (bridge.hasAttribute(name) && ChangeLedger.isUnchanged(ChangeLedger.Type.CUSTOM_FIELD,
+                COMPANY_ID, ledgerKey, hash)) {
+            LOG.info("Custom field " + name + " is unchanged since the last setup, skipped.");
+            return;
+        }
         try {
             int fieldTypeKey = getFieldTypeKey(field.getType());
             if (bridge.hasAttribute(name)) {
@@ -112,6 +123,7 @@ public final class SetupCustomFields {
                     getDisplayType(field.getDisplayType()));
             bridge.setAttributeProperties(name, properties);
             setCustomFieldPermission(field.getRolePermission(), bridge, name);
+            ChangeLedger.record(ChangeLedger.Type.CUSTOM_FIELD, COMPANY_ID, ledgerKey, hash);
         } catch (PortalException | SystemException e) {
             LOG.error("Could not set custom attribute: " + name, e);
         }
@@ -33,23 +33,57 @@ import com.liferay.portal.kernel.model.RoleConstants;
 import com.liferay.portal.kernel.repository.model.FileEntry;
 import com.liferay.portal.kernel.repository.model.Folder;
 import com.liferay.portal.kernel.security.permission.ActionKeys;
+import com.liferay.portal.kernel.util.FileUtil;
 import com.mimacom.liferay.portal.setup.LiferaySetup;
+import com.mimacom.liferay.portal.setup.core.util.ChangeLedger;
 import com.mimacom.liferay.portal.setup.core.util.DocumentUtil;
 import com.mimacom.liferay.portal.setup.core.util.FolderUtil;
+import com.mimacom.liferay.portal.setup.core.util.IndexerUtil;
+import com.mimacom.liferay.portal.setup.core.util.ResolverCache;
 import com.mimacom.liferay.portal.setup.core.util.ResourcesUtil;
+import com.mimacom.liferay.portal.setup.core.util.SetupExecutor;
+import com.mimacom.liferay.portal.setup.core.util.SetupMetrics;
+import com.mimacom.liferay.portal.setup.core.util.SetupProps;
 import com.mimacom.liferay.portal.setup.domain.Document;
 import com.mimacom.liferay.portal.setup.domain.Site;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 public final class SetupDocuments {
 
     private static final Log LOG = LogFactoryUtil.getLog(SetupDocuments.class);
     private static final HashMap<String, List<String>> DEFAULT_PERMISSIONS;
     private static final int BUFFER_SIZE = 2048;
+    private static final int DEFAULT_DOCUMENT_THREADS = 4;
+    private static final long DEFAULT_UPLOAD_BUDGET = 64L * 1024 * 1024;
+    private static final long KILOBYTE = 1024;
+
+    /**
+     * The outcome of the setup of one document.
+     */
+    private enum Result {
+        CREATED, UPDATED, UNCHANGED, FAILED
+    }
 
     static {
         DEFAULT_PERMISSIONS = new HashMap<String, List<String>>();
@@ -79,45 +113,337 @@ public final class SetupDocuments {
 
     }
 
+    /**
+     * Sets up the documents of a site. The folder tree is created first, then
+     * the files are uploaded in parallel, see
+     * {@link SetupProps#DOCUMENT_THREADS}. The size of the files uploaded at
+     * the same time is limited by {@link SetupProps#DOCUMENT_UPLOAD_BUDGET}.
+     * Documents with the same folder and filename run one after the other.
+     * The result of every file is logged as a report at the end.
+     */
     public static void setupSiteDocuments(final Site site,
                                           final long groupId, final long company) {
-        for (Document doc : site.getDocument()) {
-            String folderPath = doc.getDocumentFolderName();
-            String documentName = doc.getDocumentFilename();
-            String documentTitle = doc.getDocumentTitle();
-            String extension = doc.getExtension();
-            String filenameInFilesystem = doc.getFileSystemName();
-            long repoId = groupId;
-            long userId = LiferaySetup.getRunAsUserId();
-            Long folderId = 0L;
-            Folder f = null;
-            if (folderPath != null && !folderPath.equals("")) {
-                f = FolderUtil.findFolder(company, groupId, repoId, userId, folderPath, true);
-                folderId = f.getFolderId();
-            }
-            FileEntry fe = DocumentUtil.findDocument(documentName, folderPath, groupId, company,
-                    groupId, userId);
-            byte[] fileBytes = null;
+        List<Document> documents = site.getDocument();
+        if (documents.isEmpty()) {
+            return;
+        }
+        Map<String, Long> folderIds = createFolders(documents, groupId, company);
+        Semaphore budget = new Semaphore(getBudgetPermits());
+        Map<Document, Result> results = new ConcurrentHashMap<>();
+        int threads = SetupProps.getInteger(SetupProps.DOCUMENT_THREADS, DEFAULT_DOCUMENT_THREADS);
+        SetupExecutor.runGraph(documents, getDependencies(documents), threads, doc -> {
+            long start = SetupMetrics.start();
+            Result result = Result.FAILED;
             try {
-                fileBytes = ResourcesUtil.getFileBytes(filenameInFilesystem);
-            } catch (IOException e) {
-                LOG.error("Can not read file: " + filenameInFilesystem + ". Skipping file");
-                continue;
-            }
-            if (fileBytes != null) {
-                if (fe == null) {
-                    fe = DocumentUtil.createDocument(company, groupId, folderId, documentName,
-                            documentTitle, userId, repoId, fileBytes);
-                    LOG.info(documentName + " is not found! It will be created! ");
+                Long folderId = folderIds.get(getFolderPath(doc));
+                if (folderId == null) {
+                    LOG.error("Folder " + doc.getDocumentFolderName() + " is not available, skipping document "
+                            + doc.getDocumentFilename());
                 } else {
-                    LOG.info(documentName + " is found! Content will be updated! ");
-                    DocumentUtil.updateFile(fe, fileBytes, userId,
-                            documentName);
+                    result = setupDocument(doc, groupId, company, folderId, budget);
+                }
+            } finally {
+                results.put(doc, result);
+                SetupMetrics.entity(SetupMetrics.Entity.DOCUMENT, start);
+            }
+        });
+        logReport(groupId, documents, results);
+    }
+
+    /**
+     * Creates the folders of all documents one after the other, parents
+     * first, so that parallel uploads never race to create the same folder.
+     *
+     * @return the folder ids by folder path, the root folder has the path "".
+     */
+    private static Map<String, Long> createFolders(final List<Document> documents, final long groupId,
+                                                   final long company) {
+        long userId = LiferaySetup.getRunAsUserId();
+        Map<String, Long> folderIds = new HashMap<>();
+        folderIds.put("", 0L);
+        SortedSet<String> folderPaths = new TreeSet<>();
+        for (Document doc : documents) {
+            folderPaths.add(getFolderPath(doc));
+        }
+        for (String folderPath : folderPaths) {
+            if (!folderPath.isEmpty()) {
+                Folder folder = FolderUtil.findFolder(company, groupId, groupId, userId, folderPath, true);
+                if (folder != null) {
+                    folderIds.put(folderPath, folder.getFolderId());
                 }
-                SetupPermissions.updatePermission("Document " + folderPath + "/" + documentName,
-                        groupId, company, fe.getFileEntryId(), DLFileEntry.class,
-                        doc.getRolePermissions(), DEFAULT_PERMISSIONS);
             }
         }
+        return folderIds;
+    }
+
+    /**
+     * Chains the documents with the same folder and filename, they would
+     * race to create the same file entry otherwise.
+     */
+    private static Map<Document, Set<Document>> getDependencies(final List<Document> documents) {
+        Map<Document, Set<Document>> dependencies = new IdentityHashMap<>();
+        Map<String, Document> lastByPath = new HashMap<>();
+        for (Document doc : documents) {
+            Document previous = lastByPath.put(getFolderPath(doc) + "/" + doc.getDocumentFilename(), doc);
+            if (previous != null) {
+                dependencies.put(doc, Collections.singleton(previous));
+            }
+        }
+        return dependencies;
+    }
+
+    private static String getFolderPath(final Document doc) {
+        String folderPath = doc.getDocumentFolderName();
+        return folderPath == null ? "" : folderPath;
+    }
+
+    /**
+     * The upload budget as semaphore permits of one kilobyte each.
+     */
+    private static int getBudgetPermits() {
+        long bytes = SetupProps.getLong(SetupProps.DOCUMENT_UPLOAD_BUDGET, DEFAULT_UPLOAD_BUDGET);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / KILOBYTE));
+    }
+
+    /**
+     * The permits an upload of the given size takes, a file of unknown size
+     * takes the whole budget.
+     */
+    private static int getPermits(final long size) {
+        int all = getBudgetPermits();
+        if (size < 0) {
+            return all;
+        }
+        return (int) Math.max(1, Math.min(all, (size + KILOBYTE - 1) / KILOBYTE));
+    }
+
+    private static void logReport(final long groupId, final List<Document> documents,
+                                  final Map<Document, Result> results) {
+        Map<Result, Integer> counts = new EnumMap<>(Result.class);
+        List<String> failed = new ArrayList<>();
+        for (Document doc : documents) {
+            Result result = results.getOrDefault(doc, Result.FAILED);
+            counts.merge(result, 1, Integer::sum);
+            if (result == Result.FAILED) {
+                failed.add(getFolderPath(doc) + "/" + doc.getDocumentFilename());
+            }
+        }
+        StringBuilder report = new StringBuilder("Documents of group " + groupId + ":");
+        for (Result result : Result.values()) {
+            report.append(" ").append(counts.getOrDefault(result, 0)).append(" ")
+                    .append(result.name().toLowerCase());
+        }
+        if (failed.isEmpty()) {
+            LOG.info(report);
+        } else {
+            report.append(", failed documents: ").append(failed);
+            LOG.error(report);
+        }
+    }
+
+    private static Result setupDocument(final Document doc, final long groupId, final long company,
+                                        final long folderId, final Semaphore budget) {
+        String folderPath = doc.getDocumentFolderName();
+        String documentName = doc.getDocumentFilename();
+        String documentTitle = doc.getDocumentTitle();
+        String filenameInFilesystem = doc.getFileSystemName();
+        long repoId = groupId;
+        long userId = LiferaySetup.getRunAsUserId();
+        FileEntry fe = DocumentUtil.findDocument(documentName, groupId, folderId);
+        String ledgerKey = folderPath + "/" + documentName;
+        String hash = null;
+        String checksum = null;
+        if (fe != null && ChangeLedger.isEnabled()) {
+            // the ledger hash and the checksum are computed while reading the file once
+            String[] digests = digestFile(doc, filenameInFilesystem);
+            hash = digests[0];
+            checksum = digests[1];
+            if (ChangeLedger.isUnchanged(ChangeLedger.Type.DOCUMENT, groupId, ledgerKey, hash)) {
+                LOG.info(documentName + " is unchanged since the last setup, skipped.");
+                return Result.UNCHANGED;
+            }
+        }
+        long size;
+        try {
+            size = ResourcesUtil.getFileSize(filenameInFilesystem);
+        } catch (IOException e) {
+            LOG.error("Can not read file: " + filenameInFilesystem + ". Skipping file");
+            return Result.FAILED;
+        }
+        Result result;
+        // the size is compared first, the content is only digested if it may be the same
+        boolean sameSize = fe != null && (size < 0 || size == fe.getSize());
+        if (sameSize && checksum == null) {
+            checksum = getChecksum(filenameInFilesystem);
+        }
+        if (sameSize && DocumentUtil.hasChecksum(fe, checksum)) {
+            LOG.info(documentName + " is found with the same content, it is not updated.");
+            result = Result.UNCHANGED;
+        } else {
+            result = fe == null ? Result.CREATED : Result.UPDATED;
+            // a new document is hashed for the ledger while it is uploaded
+            MessageDigest ledgerDigest = hash == null ? ChangeLedger.startHash(doc) : null;
+            fe = uploadFile(fe, filenameInFilesystem, size, company, groupId, folderId,
+                    documentName, documentTitle, userId, repoId, budget, ledgerDigest);
+            if (fe == null) {
+                return Result.FAILED;
+            }
+            if (ledgerDigest != null) {
+                hash = ChangeLedger.finishHash(ledgerDigest);
+            }
+            ResolverCache.invalidateAll(ResolverCache.Type.FILE, groupId);
+            IndexerUtil.defer(DLFileEntry.class, fe.getFileEntryId());
+        }
+        String documentHash = hash;
+        // the hash is only recorded once the permissions are written as well
+        SetupPermissions.updatePermission("Document " + folderPath + "/" + documentName,
+                groupId, company, fe.getFileEntryId(), DLFileEntry.class,
+                doc.getRolePermissions(), DEFAULT_PERMISSIONS,
+                () -> ChangeLedger.record(ChangeLedger.Type.DOCUMENT, groupId, ledgerKey, documentHash));
+        return result;
+    }
+
+    /**
+     * Streams the file into a new document or a new version of the given
+     * document and records the checksum of the content on the stored version.
+     * The upload waits until its size fits into the budget, files of unknown
+     * size take the whole budget.
+     *
+     * @param ledgerDigest receives the content as well if not null.
+     * @return the created or updated document, null if the upload failed.
+     */
+    // CHECKSTYLE:OFF
+    private static FileEntry uploadFile(final FileEntry fe, final String path, final long size,
+                                        final long company, final long groupId, final long folderId,
+                                        final String documentName, final String documentTitle,
+                                        final long userId, final long repoId, final Semaphore budget,
+                                        final MessageDigest ledgerDigest) {
+        InputStream stream = ResourcesUtil.getFileStream(path);
+        if (stream == null) {
+            LOG.error("Can not read file: " + path + ". Skipping file");
+            return null;
+        }
+        File spooled = null;
+        FileEntry uploaded;
+        DigestInputStream digestStream;
+        int acquired = 0;
+        try {
+            long length = size;
+            if (length < 0) {
+                // the upload needs the size up front
+                spooled = spool(stream);
+                length = spooled.length();
+                stream = new FileInputStream(spooled);
+            }
+            int permits = getPermits(size);
+            budget.acquire(permits);
+            acquired = permits;
+            if (ledgerDigest != null) {
+                stream = new DigestInputStream(stream, ledgerDigest);
+            }
+            digestStream = new DigestInputStream(new BufferedInputStream(stream, BUFFER_SIZE),
+                    DocumentUtil.newChecksumDigest());
+            stream = digestStream;
+            if (fe == null) {
+                uploaded = DocumentUtil.createDocument(company, groupId, folderId, documentName,
+                        documentTitle, userId, repoId, stream, length);
+                LOG.info(documentName + " is not found! It will be created! ");
+            } else {
+                LOG.info(documentName + " is found! Content will be updated! ");
+                uploaded = DocumentUtil.updateFile(fe, stream, length, userId,
+                        documentName);
+            }
+        } catch (IOException e) {
+            LOG.error("Can not read file: " + path + ". Skipping file");
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while waiting to upload " + path);
+            return null;
+        } finally {
+            budget.release(acquired);
+            close(stream);
+            if (spooled != null) {
+                FileUtil.delete(spooled);
+            }
+        }
+        if (uploaded != null) {
+            DocumentUtil.setChecksum(uploaded, DocumentUtil.toChecksum(digestStream.getMessageDigest()));
+        }
+        return uploaded;
+    }
+    // CHECKSTYLE:ON
+
+    private static String getChecksum(final String path) {
+        InputStream stream = ResourcesUtil.getFileStream(path);
+        if (stream == null) {
+            return null;
+        }
+        try {
+            return DocumentUtil.getChecksum(stream);
+        } catch (IOException e) {
+            LOG.warn("Can not compute the checksum of " + path, e);
+            return null;
+        } finally {
+            close(stream);
+        }
+    }
+
+    /**
+     * Reads the file once to compute its ledger hash and its checksum.
+     *
+     * @return the ledger hash and the checksum, each one null if it cannot be
+     * computed.
+     */
+    private static String[] digestFile(final Document doc, final String path) {
+        String[] digests = new String[2];
+        MessageDigest ledgerDigest = ChangeLedger.startHash(doc);
+        InputStream stream = ResourcesUtil.getFileStream(path);
+        if (stream == null) {
+            return digests;
+        }
+        if (ledgerDigest == null) {
+            close(stream);
+            return digests;
+        }
+        DigestInputStream checksumStream = new DigestInputStream(new DigestInputStream(stream, ledgerDigest),
+                DocumentUtil.newChecksumDigest());
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (checksumStream.read(buffer) != -1) {
+                // the digests are updated while reading
+            }
+            digests[0] = ChangeLedger.finishHash(ledgerDigest);
+            digests[1] = DocumentUtil.toChecksum(checksumStream.getMessageDigest());
+        } catch (IOException e) {
+            LOG.warn("Can not read file " + path + ", it will be written", e);
+        } finally {
+            close(checksumStream);
+        }
+        return digests;
+    }
+
+    /**
+     * Copies the stream to a temporary file with a bounded buffer and closes
+     * it.
+     */
+    private static File spool(final InputStream stream) throws IOException {
+        File file = FileUtil.createTempFile();
+        try (InputStream in = stream; OutputStream out = new FileOutputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return file;
+    }
+
+    private static void close(final InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            LOG.warn("Can not close file stream", e);
+        }
     }
 }
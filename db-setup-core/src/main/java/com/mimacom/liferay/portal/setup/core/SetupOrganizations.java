@@ -26,6 +26,8 @@ package com.mimacom.liferay.portal.setup.core;
  * #L%
  */
 
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.SystemException;
 import com.liferay.portal.kernel.log.Log;
@@ -41,6 +43,8 @@ import com.liferay.portal.kernel.service.ServiceContext;
 import com.liferay.portal.kernel.service.UserLocalServiceUtil;
 import com.liferay.portal.kernel.util.PortalUtil;
 import com.mimacom.liferay.portal.setup.LiferaySetup;
+import com.mimacom.liferay.portal.setup.core.util.PagedDeletion;
+import com.mimacom.liferay.portal.setup.core.util.ResolverCache;
 import com.mimacom.liferay.portal.setup.core.util.CustomFieldSettingUtil;
 import com.mimacom.liferay.portal.setup.domain.CustomFieldSetting;
 import com.mimacom.liferay.portal.setup.domain.Site;
@@ -48,6 +52,7 @@ import com.mimacom.liferay.portal.setup.domain.Site;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public final class SetupOrganizations {
 
@@ -203,22 +208,7 @@ public final class SetupOrganizations {
             case "excludeListed":
                 Map<String, com.mimacom.liferay.portal.setup.domain.Organization> toBeDeletedOrganisations = convertOrganisationListToHashMap(
                         organizations);
-                try {
-                    for (Organization organisation : OrganizationLocalServiceUtil
-                            .getOrganizations(-1, -1)) {
-                        if (!toBeDeletedOrganisations.containsKey(organisation.getName())) {
-                            try {
-                                OrganizationLocalServiceUtil
-                                        .deleteOrganization(organisation.getOrganizationId());
-                                LOG.info("Deleting Organisation" + organisation.getName());
-                            } catch (Exception e) {
-                                LOG.error("Error by deleting Organisation !", e);
-                            }
-                        }
-                    }
-                } catch (SystemException e) {
-                    LOG.error("Error by retrieving organisations!", e);
-                }
+                deleteOrganizationsExcept(toBeDeletedOrganisations.keySet());
                 break;
 
             case "onlyListed":
@@ -227,6 +217,7 @@ public final class SetupOrganizations {
                     try {
                         Organization o = OrganizationLocalServiceUtil.getOrganization(COMPANY_ID, name);
                         OrganizationLocalServiceUtil.deleteOrganization(o);
+                        ResolverCache.invalidate(ResolverCache.Type.ORGANIZATION, COMPANY_ID, name);
                     } catch (Exception e) {
                         LOG.error("Error by deleting Organisation !", e);
                     }
@@ -241,6 +232,43 @@ public final class SetupOrganizations {
         }
     }
 
+    /**
+     * Deletes all organizations of the company except the listed ones, see
+     * {@link PagedDeletion}.
+     */
+    private static void deleteOrganizationsExcept(final Set<String> excludedNames) {
+        PagedDeletion.deleteAllExcept(COMPANY_ID, excludedNames,
+                new PagedDeletion.Target<Organization>("organizations", "organizationId") {
+            @Override
+            protected DynamicQuery createQuery() {
+                return OrganizationLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("companyId").eq(COMPANY_ID));
+            }
+
+            @Override
+            protected List<Organization> find(final DynamicQuery query, final int start, final int end) {
+                return OrganizationLocalServiceUtil.dynamicQuery(query, start, end);
+            }
+
+            @Override
+            protected long getId(final Organization organization) {
+                return organization.getOrganizationId();
+            }
+
+            @Override
+            protected String getKey(final Organization organization) {
+                return organization.getName();
+            }
+
+            @Override
+            protected void delete(final Organization organization) throws PortalException {
+                OrganizationLocalServiceUtil.deleteOrganization(organization);
+                ResolverCache.invalidate(ResolverCache.Type.ORGANIZATION,
+                        organization.getCompanyId(), organization.getName());
+            }
+        });
+    }
+
     public static void addOrganizationUser(Organization organization, User user) {
         LOG.info("Adding user with screenName: " + user.getScreenName() + "to organization with name: " + organization.getName());
         OrganizationLocalServiceUtil.addUserOrganization(user.getUserId(), organization);
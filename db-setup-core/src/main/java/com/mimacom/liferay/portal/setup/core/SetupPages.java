@@ -26,42 +26,58 @@ package com.mimacom.liferay.portal.setup.core;
  * #L%
  */
 
-import com.liferay.portal.kernel.dao.orm.DynamicQuery;
 import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
-import com.liferay.portal.kernel.exception.NoSuchLayoutException;
+import com.liferay.portal.kernel.dao.orm.QueryUtil;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.SystemException;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.model.*;
+import com.liferay.portal.kernel.portlet.PortletPreferencesFactoryUtil;
 import com.liferay.portal.kernel.security.permission.ActionKeys;
 import com.liferay.portal.kernel.service.*;
 import com.liferay.portal.kernel.service.permission.PortletPermissionUtil;
+import com.liferay.portal.kernel.transaction.Propagation;
+import com.liferay.portal.kernel.transaction.TransactionConfig;
+import com.liferay.portal.kernel.transaction.TransactionInvokerUtil;
 import com.liferay.portal.kernel.util.LocaleUtil;
 import com.liferay.portal.kernel.util.PortletKeys;
 import com.liferay.portal.kernel.util.StringPool;
 import com.liferay.portal.kernel.util.UnicodeProperties;
 import com.liferay.portal.kernel.util.Validator;
 import com.mimacom.liferay.portal.setup.LiferaySetup;
+import com.mimacom.liferay.portal.setup.core.util.ChangeLedger;
 import com.mimacom.liferay.portal.setup.core.util.CustomFieldSettingUtil;
+import com.mimacom.liferay.portal.setup.core.util.ResolverCache;
+import com.mimacom.liferay.portal.setup.core.util.ResolverPrefetch;
 import com.mimacom.liferay.portal.setup.core.util.ResolverUtil;
+import com.mimacom.liferay.portal.setup.core.util.SetupExecutor;
+import com.mimacom.liferay.portal.setup.core.util.SetupMetrics;
+import com.mimacom.liferay.portal.setup.core.util.SetupProps;
 import com.mimacom.liferay.portal.setup.core.util.FieldMapUtil;
 import com.mimacom.liferay.portal.setup.domain.*;
 import com.mimacom.liferay.portal.setup.domain.Theme;
 
 import javax.portlet.ReadOnlyException;
-import javax.portlet.ValidatorException;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class SetupPages {
     private static final Log LOG = LogFactoryUtil.getLog(SetupPages.class);
     private static final HashMap<String, List<String>> DEFAULT_PERMISSIONS_PUBLIC;
     private static final HashMap<String, List<String>> DEFAULT_PERMISSIONS_PRIVATE;
+    private static final int DEFAULT_PAGE_THREADS = 4;
+    private static final TransactionConfig PREFERENCES_TRANSACTION = TransactionConfig.Factory.create(
+            Propagation.REQUIRED, new Class<?>[] {Exception.class});
 
     static {
         DEFAULT_PERMISSIONS_PUBLIC = new HashMap<>();
@@ -121,7 +137,7 @@ public final class SetupPages {
                 deletePages(groupId, false);
             }
             addPages(publicPages.getPage(), publicPages.getDefaultLayout(), publicPages.getDefaultLayoutContainedInThemeWithId(),
-                    groupId, false, 0, company, userid);
+                    groupId, false, company, userid, getLayoutsByFriendlyURL(groupId, false));
             if (publicPages.getVirtualHost() != null) {
                 LayoutSetLocalServiceUtil.updateVirtualHost(groupId, false, publicPages.getVirtualHost());
             }
@@ -137,7 +153,7 @@ public final class SetupPages {
                 deletePages(groupId, true);
             }
             addPages(privatePages.getPage(), privatePages.getDefaultLayout(), privatePages.getDefaultLayoutContainedInThemeWithId(),
-                    groupId, true, 0, company, userid);
+                    groupId, true, company, userid, getLayoutsByFriendlyURL(groupId, true));
             if (privatePages.getVirtualHost() != null) {
                 LayoutSetLocalServiceUtil.updateVirtualHost(groupId, true, privatePages.getVirtualHost());
             }
@@ -146,6 +162,8 @@ public final class SetupPages {
 
     /**
      * Set the page templates up. As this is heavily based on page (layout).
+     * The page templates are matched by their exact name in any locale, every
+     * template owns its layout, so they are set up in parallel.
      *
      * @param pageTemplates The page template definitions that are imported.
      * @param groupId       The group id of the site where to import the
@@ -154,45 +172,85 @@ public final class SetupPages {
      */
     public static void setupPageTemplates(final PageTemplates pageTemplates, final long groupId,
                                           final long company, final long userid) {
-        try {
-            for (PageTemplate pageTemplate : pageTemplates.getPageTemplate()) {
-                String name = pageTemplate.getName();
-                if (name != null) {
-
-                    LayoutPrototype lp;
-                    DynamicQuery dq = LayoutPrototypeLocalServiceUtil.dynamicQuery()
-                            .add(PropertyFactoryUtil.forName("name").like("%" + name + "%"));
-                    List<LayoutPrototype> listLayoutPrototype = LayoutPrototypeLocalServiceUtil
-                            .dynamicQuery(dq);
-                    if (listLayoutPrototype != null && listLayoutPrototype.size() > 0) {
-                        lp = listLayoutPrototype.get(0);
-                    } else {
-                        Map<Locale, String> titleMap = FieldMapUtil.getTitleMap(
-                                pageTemplate.getTitleTranslation(), groupId, name,
-                                " Page template  " + name);
-                        lp = LayoutPrototypeLocalServiceUtil.addLayoutPrototype(userid, company,
-                                titleMap, name, true, new ServiceContext());
-                    }
-                    if (lp != null) {
-                        Layout layout = lp.getLayout();
-                        if (pageTemplate.getPage() != null) {
-                            Page page = pageTemplate.getPage();
-                            if (page.getFriendlyURL() != null
-                                    && !page.getFriendlyURL().equals("")) {
-                                LOG.error("The page of page template " + name + " may not have a "
-                                        + "friendly URL! Will ignore it!");
-                            }
-                            setupLiferayPage(layout, page, null, null,
-                                    groupId, false, company, userid, name);
-                        }
-                    } else {
-                        LOG.error("Could not create or find the page template " + name);
-                    }
+        Map<String, LayoutPrototype> prototypes = getLayoutPrototypesByName(company);
+        List<PageTemplate> templates = new ArrayList<>();
+        Map<PageTemplate, Set<PageTemplate>> dependencies = new IdentityHashMap<>();
+        Map<String, PageTemplate> lastByName = new HashMap<>();
+        for (PageTemplate pageTemplate : pageTemplates.getPageTemplate()) {
+            if (pageTemplate.getName() != null) {
+                templates.add(pageTemplate);
+                // templates with the same name share a prototype, they run one after the other
+                PageTemplate previous = lastByName.put(pageTemplate.getName(), pageTemplate);
+                if (previous != null) {
+                    dependencies.put(pageTemplate, Collections.singleton(previous));
                 }
             }
-        } catch (PortalException | SystemException e) {
-            LOG.error("Problem during creating page templates ", e);
         }
+        List<Page> pages = new ArrayList<>();
+        for (PageTemplate pageTemplate : templates) {
+            if (pageTemplate.getPage() != null) {
+                pages.add(pageTemplate.getPage());
+            }
+        }
+        prefetchReferences(pages, groupId, company);
+        int threads = SetupProps.getInteger(SetupProps.PAGE_THREADS, DEFAULT_PAGE_THREADS);
+        SetupExecutor.runGraph(templates, dependencies, threads, pageTemplate -> {
+            try {
+                setupPageTemplate(pageTemplate, prototypes, groupId, company, userid);
+            } catch (PortalException | SystemException e) {
+                LOG.error("Problem during creating page templates ", e);
+            }
+        });
+    }
+
+    private static void setupPageTemplate(final PageTemplate pageTemplate,
+                                          final Map<String, LayoutPrototype> prototypes, final long groupId,
+                                          final long company, final long userid)
+            throws SystemException, PortalException {
+        String name = pageTemplate.getName();
+        LayoutPrototype lp = prototypes.get(name);
+        if (lp == null) {
+            Map<Locale, String> titleMap = FieldMapUtil.getTitleMap(
+                    pageTemplate.getTitleTranslation(), groupId, name,
+                    " Page template  " + name);
+            lp = LayoutPrototypeLocalServiceUtil.addLayoutPrototype(userid, company,
+                    titleMap, name, true, new ServiceContext());
+            if (lp != null) {
+                prototypes.put(name, lp);
+            }
+        }
+        if (lp != null) {
+            Layout layout = lp.getLayout();
+            if (pageTemplate.getPage() != null) {
+                Page page = pageTemplate.getPage();
+                if (page.getFriendlyURL() != null
+                        && !page.getFriendlyURL().equals("")) {
+                    LOG.error("The page of page template " + name + " may not have a "
+                            + "friendly URL! Will ignore it!");
+                }
+                setupLiferayPage(layout, page, groupId, false, company, userid, name,
+                        false);
+            }
+        } else {
+            LOG.error("Could not create or find the page template " + name);
+        }
+    }
+
+    /**
+     * Loads all page templates of the company at once, indexed by their name
+     * in every locale.
+     */
+    private static Map<String, LayoutPrototype> getLayoutPrototypesByName(final long company) {
+        Map<String, LayoutPrototype> prototypes = new ConcurrentHashMap<>();
+        for (LayoutPrototype lp : LayoutPrototypeLocalServiceUtil.search(company, null, QueryUtil.ALL_POS,
+                QueryUtil.ALL_POS, null)) {
+            for (String name : lp.getNameMap().values()) {
+                if (name != null && !name.isEmpty()) {
+                    prototypes.putIfAbsent(name, lp);
+                }
+            }
+        }
+        return prototypes;
     }
 
     /**
@@ -218,48 +276,80 @@ public final class SetupPages {
     }
 
     /**
+     * Sets up a page tree. The layouts of all pages are looked up or created
+     * first, one after the other and parents before their children, so that
+     * the order of the pages is kept. Then the pages are configured in
+     * parallel, see {@link SetupProps#PAGE_THREADS}.
+     *
      * @param pages
      * @param groupId
      * @param isPrivate
-     * @param parentLayoutId
      * @param company
      * @param userId
-     *
-     * @throws SystemException
-     * @throws PortalException
+     * @param layouts  the existing layouts of the layout set by friendly URL,
+     *                 kept up to date with the created and deleted pages.
      */
-    private static void addPages(final List<Page> pages, String defaultLayout, String defaultLayoutContainedInThemeWithId,
-                                 final long groupId, final boolean isPrivate, final long parentLayoutId, final long company,
-                                 final long userId) throws SystemException, PortalException {
+    private static void addPages(final List<Page> pages, final String defaultLayout,
+                                 final String defaultLayoutContainedInThemeWithId, final long groupId,
+                                 final boolean isPrivate, final long company, final long userId,
+                                 final Map<String, Layout> layouts) {
+
+        List<PageNode> nodes = new ArrayList<>();
+        createLayouts(pages, defaultLayout, defaultLayoutContainedInThemeWithId, groupId, isPrivate, 0,
+                userId, layouts, nodes);
+        List<Page> setupPages = new ArrayList<>(nodes.size());
+        for (PageNode node : nodes) {
+            setupPages.add(node.page);
+        }
+        prefetchReferences(setupPages, groupId, company);
+        int threads = SetupProps.getInteger(SetupProps.PAGE_THREADS, DEFAULT_PAGE_THREADS);
+        SetupExecutor.runGraph(nodes, Collections.emptyMap(), threads, node -> {
+            try {
+                setupLiferayPage(node.layout, node.page, groupId, isPrivate, company, userId, null,
+                        node.existing);
+            } catch (PortalException | SystemException e) {
+                LOG.error("Error by setting up page " + node.page.getFriendlyURL(), e);
+            }
+        });
+    }
+
+    private static void createLayouts(final List<Page> pages, String defaultLayout,
+                                      String defaultLayoutContainedInThemeWithId, final long groupId,
+                                      final boolean isPrivate, final long parentLayoutId, final long userId,
+                                      final Map<String, Layout> layouts, final List<PageNode> nodes) {
 
         for (Page page : pages) {
 
             Layout layout = null;
+            boolean existing = false;
             try {
-                layout = LayoutLocalServiceUtil.getFriendlyURLLayout(groupId, isPrivate,
-                        page.getFriendlyURL());
-                LOG.info("Setup: Page " + page.getName() + " already exist, not creating...");
-                if (layout != null && page.isDeleteExistingPages()) {
-                    LayoutLocalServiceUtil.deleteLayout(layout);
-                    if (page.getLinkToURL() == null || page.getLinkToURL().equals("")) {
-                        layout = createPage(groupId, page, parentLayoutId, isPrivate);
-                    } else {
-                        layout = createLinkPage(page, groupId, parentLayoutId, userId);
+                layout = layouts.get(page.getFriendlyURL());
+                existing = layout != null;
+                if (layout == null) {
+                    layout = createPage(page, groupId, parentLayoutId, isPrivate, userId);
+                    LOG.info("Setup: Page " + page.getName() + " created...");
+                } else {
+                    LOG.info("Setup: Page " + page.getName() + " already exist, not creating...");
+                    if (page.isDeleteExistingPages()) {
+                        existing = false;
+                        LayoutLocalServiceUtil.deleteLayout(layout);
+                        ResolverCache.invalidateAll(ResolverCache.Type.PAGE, groupId);
+                        // the sub-pages are gone as well
+                        layouts.clear();
+                        layouts.putAll(getLayoutsByFriendlyURL(groupId, isPrivate));
+                        layout = createPage(page, groupId, parentLayoutId, isPrivate, userId);
                     }
-                } else if (layout != null
-                        && (page.getLinkToURL() != null && !page.getLinkToURL().equals(""))) {
-                    updateLinkPage(page, groupId);
                 }
-            } catch (NoSuchLayoutException e) {
-                if (page.getLinkToURL() == null || page.getLinkToURL().equals("")) {
-                    layout = createPage(groupId, page, parentLayoutId, isPrivate);
-                } else {
-                    layout = createLinkPage(page, groupId, parentLayoutId, userId);
+                if (layout != null && !existing) {
+                    layouts.put(page.getFriendlyURL(), layout);
                 }
-                LOG.info("Setup: Page " + page.getName() + " created...");
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
+            if (layout == null) {
+                LOG.error("Page " + page.getFriendlyURL() + " and its sub-pages are not set up.");
+                continue;
+            }
             // If the page has not a layout set, set the default one. Otherwise set that layout as the default for the subtree
             if (page.getLayout() == null) {
                 page.setLayout(defaultLayout);
@@ -268,53 +358,175 @@ public final class SetupPages {
                 defaultLayout = page.getLayout();
                 defaultLayoutContainedInThemeWithId = page.getLayoutContainedInThemeWithId();
             }
-            setupLiferayPage(layout, page, defaultLayout, defaultLayoutContainedInThemeWithId, groupId, isPrivate, company, userId, null);
+            nodes.add(new PageNode(page, layout, existing));
+            List<Page> subPages = page.getPage();
+            if (subPages != null && !subPages.isEmpty()) {
+                createLayouts(subPages, defaultLayout, defaultLayoutContainedInThemeWithId, groupId, isPrivate,
+                        layout.getLayoutId(), userId, layouts, nodes);
+            }
         }
     }
 
-    private static void setupLiferayPage(final Layout layout, final Page page, final String defaultLayout,
-                                         final String defaultLayoutContainedInThemeWithId, final long groupId,
-                                         final boolean isPrivate, final long company, final long userId,
-                                         final String pageTemplateName) throws SystemException, PortalException {
-        if (page.getTheme() != null) {
-            setPageTheme(layout, page);
+    /**
+     * Loads all layouts of a layout set at once, the page tree of the setup is
+     * reconciled against them. The layouts are indexed by their default
+     * friendly URL and by their localized ones, as
+     * {@link LayoutLocalServiceUtil#fetchLayoutByFriendlyURL(long, boolean, String)}
+     * matches them, the default URL wins if they collide.
+     */
+    private static Map<String, Layout> getLayoutsByFriendlyURL(final long groupId, final boolean isPrivate) {
+        Map<String, Layout> layouts = new ConcurrentHashMap<>();
+        Map<Long, Layout> layoutsByPlid = new HashMap<>();
+        for (Layout layout : LayoutLocalServiceUtil.getLayouts(groupId, isPrivate)) {
+            layouts.put(layout.getFriendlyURL(), layout);
+            layoutsByPlid.put(layout.getPlid(), layout);
         }
-        if (page.getLayout() != null) {
-            setLayoutTemplate(layout, page, userId);
+        List<LayoutFriendlyURL> friendlyURLs = LayoutFriendlyURLLocalServiceUtil.dynamicQuery(
+                LayoutFriendlyURLLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("groupId").eq(groupId))
+                        .add(PropertyFactoryUtil.forName("privateLayout").eq(isPrivate)));
+        for (LayoutFriendlyURL friendlyURL : friendlyURLs) {
+            Layout layout = layoutsByPlid.get(friendlyURL.getPlid());
+            if (layout != null) {
+                layouts.putIfAbsent(friendlyURL.getFriendlyURL(), layout);
+            }
         }
+        return layouts;
+    }
 
-        setPageTarget(page, layout);
+    private static Layout createPage(final Page page, final long groupId, final long parentLayoutId,
+                                     final boolean isPrivate, final long userId)
+            throws SystemException, PortalException {
+        if (page.getLinkToURL() == null || page.getLinkToURL().equals("")) {
+            return createPage(groupId, page, parentLayoutId, isPrivate);
+        }
+        return createLinkPage(page, groupId, parentLayoutId, userId);
+    }
 
-        List<Pageportlet> portlets = page.getPageportlet();
-        if (portlets != null && !portlets.isEmpty()) {
-            for (Pageportlet portlet : portlets) {
-                try {
-                    addPortletIntoPage(page, layout, portlet, company, groupId);
+    /**
+     * Configures a single page whose layout exists already, the sub-pages are
+     * set up separately.
+     */
+    private static void setupLiferayPage(final Layout layout, final Page page, final long groupId,
+                                         final boolean isPrivate, final long company, final long userId,
+                                         final String pageTemplateName, final boolean existing)
+            throws SystemException, PortalException {
+        long start = SetupMetrics.start();
+        String ledgerKey = ResolverUtil.pageCacheKey(isPrivate, page.getFriendlyURL());
+        // the preference values are resolved once, for the hash and for the portlets
+        Map<PortletPreference, String> resolved = resolvePortletPreferences(page, groupId, company);
+        String hash = null;
+        if (existing) {
+            hash = getPageHash(page, resolved);
+        }
+        boolean unchanged = existing
+                && ChangeLedger.isUnchanged(ChangeLedger.Type.PAGE, groupId, ledgerKey, hash);
+        // the hash is only recorded if every write of the page succeeded, including its permissions
+        boolean written = true;
+        if (unchanged) {
+            LOG.info("Page " + page.getFriendlyURL() + " is unchanged since the last setup, skipped.");
+        } else {
+            // all changes of the layout itself are collected and written at once, if there are any
+            String layoutState = getLayoutState(layout);
+            if (existing && page.getLinkToURL() != null && !page.getLinkToURL().equals("")) {
+                written = updateLinkPage(page, layout);
+            }
+            if (page.getTheme() != null) {
+                setPageTheme(layout, page);
+            }
+            if (page.getLayout() != null) {
+                applyLayoutTemplate(layout, page, userId);
+            }
 
-                } catch (ValidatorException | IOException e) {
-                    LOG.error(e);
-                }
+            setPageTarget(page, layout);
+
+            List<Pageportlet> portlets = page.getPageportlet();
+            if (portlets != null && !portlets.isEmpty()) {
+                written &= addPortletsIntoPage(page, layout, portlets, company, resolved);
             }
+            written &= updateLayout(layout, page, layoutState);
         }
 
         List<Page> subPages = page.getPage();
-        if (subPages != null && !subPages.isEmpty()) {
-            if (pageTemplateName != null && !pageTemplateName.equals("")) {
-                LOG.error("Page template " + pageTemplateName + " may not have any sub-pages! "
-                        + "Will ignore them!");
-            } else {
-                addPages(subPages, defaultLayout, defaultLayoutContainedInThemeWithId, groupId, isPrivate,
-                        layout.getLayoutId(), company, userId);
+        if (subPages != null && !subPages.isEmpty() && pageTemplateName != null
+                && !pageTemplateName.equals("")) {
+            LOG.error("Page template " + pageTemplateName + " may not have any sub-pages! "
+                    + "Will ignore them!");
+        }
+
+        if (!unchanged) {
+            if (page.getCustomFieldSetting() != null && !page.getCustomFieldSetting().isEmpty()) {
+                setCustomFields(userId, groupId, company, page, layout);
+            }
+
+            Runnable record = null;
+            if (pageTemplateName == null && written) {
+                String pageHash = hash != null ? hash : getPageHash(page, resolved);
+                record = () -> ChangeLedger.record(ChangeLedger.Type.PAGE, groupId, ledgerKey, pageHash);
+            }
+            SetupPermissions.updatePermission("Page " + page.getFriendlyURL(), groupId, company,
+                    layout.getPlid(), Layout.class, page.getRolePermissions(),
+                    getDefaultPermissions(isPrivate), record);
+        }
+        SetupMetrics.entity(SetupMetrics.Entity.PAGE, start);
+    }
+
+    /**
+     * Hashes the page definition together with its resolved portlet
+     * preferences, the sub-pages are left out as they have their own entries.
+     * A copy of the page is hashed, the definition is shared with the other
+     * tasks of the run and must not change.
+     */
+    private static String getPageHash(final Page page, final Map<PortletPreference, String> resolved) {
+        if (!ChangeLedger.isEnabled()) {
+            return null;
+        }
+        StringBuilder values = new StringBuilder();
+        for (Pageportlet portlet : page.getPageportlet()) {
+            for (PortletPreference p : portlet.getPortletPreference()) {
+                values.append(resolved.get(p)).append('\n');
             }
         }
+        return ChangeLedger.hash(copyWithoutSubPages(page), values.toString());
+    }
 
-        if (page.getCustomFieldSetting() != null && !page.getCustomFieldSetting().isEmpty()) {
-            setCustomFields(userId, groupId, company, page, layout);
+    /**
+     * Resolves the values of all portlet preferences of the page.
+     *
+     * @return the resolved value per preference definition.
+     */
+    private static Map<PortletPreference, String> resolvePortletPreferences(final Page page,
+                                                                            final long groupId,
+                                                                            final long company) {
+        Map<PortletPreference, String> resolved = new IdentityHashMap<>();
+        long runAsUserId = LiferaySetup.getRunAsUserId();
+        for (Pageportlet portlet : page.getPageportlet()) {
+            for (PortletPreference p : portlet.getPortletPreference()) {
+                resolved.put(p, resolvePortletPrefValue(p.getKey(), p.getValue(), portlet, company,
+                        groupId, runAsUserId));
+            }
         }
+        return resolved;
+    }
 
-        SetupPermissions.updatePermission("Page " + page.getFriendlyURL(), groupId, company,
-                layout.getPlid(), Layout.class, page.getRolePermissions(),
-                getDefaultPermissions(isPrivate));
+    private static Page copyWithoutSubPages(final Page page) {
+        Page copy = new Page();
+        copy.setName(page.getName());
+        copy.setFriendlyURL(page.getFriendlyURL());
+        copy.setType(page.getType());
+        copy.setTarget(page.getTarget());
+        copy.setHidden(page.isHidden());
+        copy.setLayout(page.getLayout());
+        copy.setLayoutContainedInThemeWithId(page.getLayoutContainedInThemeWithId());
+        copy.setDeleteExistingPages(page.isDeleteExistingPages());
+        copy.setClearPage(page.isClearPage());
+        copy.setLinkToURL(page.getLinkToURL());
+        copy.setTheme(page.getTheme());
+        copy.setRolePermissions(page.getRolePermissions());
+        copy.getPageportlet().addAll(page.getPageportlet());
+        copy.getTitleTranslation().addAll(page.getTitleTranslation());
+        copy.getCustomFieldSetting().addAll(page.getCustomFieldSetting());
+        return copy;
     }
 
     private static HashMap<String, List<String>> getDefaultPermissions(final boolean isPrivate) {
@@ -337,6 +549,7 @@ public final class SetupPages {
         // add the layout
         Layout layout = null;
         try {
+            SetupMetrics.call("LayoutLocalService.addLayout");
             layout = LayoutLocalServiceUtil.addLayout(userId, groupId, false, parentLayoutId, title,
                     title, StringPool.BLANK, layoutType, hidden, friendlyURL, serviceContext);
 
@@ -345,6 +558,7 @@ public final class SetupPages {
             UnicodeProperties props = layout.getTypeSettingsProperties();
             props.put("url", linkToPageUrl);
             layout.setTypeSettingsProperties(props);
+            SetupMetrics.call("LayoutLocalService.updateLayout");
             LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
                     layout.getLayoutId(), layout.getTypeSettings());
         } catch (PortalException | SystemException e) {
@@ -354,30 +568,55 @@ public final class SetupPages {
         return layout;
     }
 
-    private static void updateLinkPage(final Page page, final long groupId) {
+    private static boolean updateLinkPage(final Page page, final Layout layout) {
+        if (layout.getLayoutType().getTypeSettingsProperties().get("url") == null) {
+            LOG.error("Could not update link page " + page.getFriendlyURL()
+                    + " with link to url" + " " + page.getLinkToURL()
+                    + " because page is not a link type page! "
+                    + " Maybe it has been imported before as non link type page. Please "
+                    + "delete it and rerun!");
+            return false;
+        }
+        UnicodeProperties props = layout.getTypeSettingsProperties();
+        props.put("url", page.getLinkToURL());
+        layout.setTypeSettingsProperties(props);
+        layout.setHidden(page.isHidden());
+        return true;
+    }
+
+    /**
+     * Writes the changes collected on the given layout, i.e. theme, link,
+     * target, layout template and portlet placement, with a single update.
+     * Nothing is written if the layout is still in the given state. Returns
+     * false if the layout could not be written.
+     */
+    private static boolean updateLayout(final Layout layout, final Page page, final String previousState) {
+        // the layout type works on the type settings properties, sync them back
+        layout.setTypeSettingsProperties(layout.getTypeSettingsProperties());
+        if (getLayoutState(layout).equals(previousState)) {
+            LOG.debug("Page " + page.getFriendlyURL() + " is unchanged, not updating the layout.");
+            return true;
+        }
         try {
-            Layout layout = LayoutLocalServiceUtil.getFriendlyURLLayout(groupId, false,
-                    page.getFriendlyURL());
-            if (layout.getLayoutType().getTypeSettingsProperties().get("url") == null) {
-                LOG.error("Could not update link page " + page.getFriendlyURL()
-                        + " with link to url" + " " + page.getLinkToURL()
-                        + " because page is not a link type page! "
-                        + " Maybe it has been imported before as non link type page. Please "
-                        + "delete it and rerun!");
-            } else {
-                UnicodeProperties props = layout.getTypeSettingsProperties();
-                props.put("url", page.getLinkToURL());
-                layout.setTypeSettingsProperties(props);
-                layout.setHidden(page.isHidden());
-                LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
-                        layout.getLayoutId(), layout.getTypeSettings());
-            }
-        } catch (PortalException | SystemException e) {
-            LOG.error("Could not update link page " + page.getFriendlyURL() + " with link to url "
-                    + page.getLinkToURL(), e);
+            SetupMetrics.call("LayoutLocalService.updateLayout");
+            LayoutLocalServiceUtil.updateLayout(layout);
+            return true;
+        } catch (SystemException e) {
+            LOG.error("Could not update page " + page.getFriendlyURL(), e);
+            return false;
         }
     }
 
+    /**
+     * The state of the layout written by {@link #updateLayout(Layout, Page, String)}:
+     * theme, visibility and the type settings, which hold the layout
+     * template, the target, the link and the portlet placement.
+     */
+    private static String getLayoutState(final Layout layout) {
+        return layout.getThemeId() + "\n" + layout.isHidden() + "\n"
+                + layout.getTypeSettingsProperties().toString();
+    }
+
     private static Layout createPage(final long groupId, final Page currentPage,
                                      final long parentLayoutId, final boolean isPrivate)
             throws SystemException, PortalException {
@@ -393,6 +632,7 @@ public final class SetupPages {
         Map<Locale, String> friendlyURLMap = new HashMap<>();
         friendlyURLMap.put(locale, currentPage.getFriendlyURL());
 
+        SetupMetrics.call("LayoutLocalService.addLayout");
         return LayoutLocalServiceUtil.addLayout(LiferaySetup.getRunAsUserId(), groupId, isPrivate, parentLayoutId, titleMap,titleMap, null,
                 null, null, currentPage.getType(), StringPool.BLANK, currentPage.isHidden(), friendlyURLMap, new ServiceContext());
     }
@@ -415,45 +655,50 @@ public final class SetupPages {
         UnicodeProperties props = layout.getTypeSettingsProperties();
         props.put("target", page.getTarget());
         layout.setTypeSettingsProperties(props);
-        try {
-            LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
-                    layout.getLayoutId(), layout.getTypeSettings());
-        } catch (PortalException e) {
-            LOG.error("Can not set target attribute value '" + page.getTarget()
-                    + "' to page with layoutId:" + layout.getLayoutId() + ".", e);
-        }
     }
 
-    private static void setPageTheme(final Layout layout, final Page page) throws SystemException {
+    private static void setPageTheme(final Layout layout, final Page page) {
 
         Theme theme = page.getTheme();
         if (theme != null) {
             layout.setThemeId(theme.getName());
-            try {
-                LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
-                        layout.getLayoutId(), layout.getTypeSettings());
-            } catch (PortalException e) {
-                e.printStackTrace();
-            }
             LOG.info("setting theme on page: " + page.getName() + " : " + theme.getName());
         }
     }
 
-    private static void addPortletIntoPage(final Page page, final Layout layout,
-                                           final Pageportlet portlet, final long companyId, final long groupId)
-            throws SystemException, ValidatorException, IOException, PortalException {
+    /**
+     * Adds the portlets to the layout and writes their preferences with the
+     * given resolved values. The existing
+     * preferences of the layout are loaded with one query and only the
+     * changed ones are written, in a single transaction. The layout itself is
+     * written by the caller. Returns false if a portlet or a preference could
+     * not be set up.
+     */
+    private static boolean addPortletsIntoPage(final Page page, final Layout layout,
+                                            final List<Pageportlet> portlets, final long companyId,
+                                            final Map<PortletPreference, String> resolved)
+            throws SystemException, PortalException {
         if (page.getLinkToURL() != null && !page.getLinkToURL().equals("")) {
             LOG.error("This is a link page! It cannot be cleared. If you intend to use this page "
                     + "for portlets, please"
                     + " delete this page, or remove the link from the page!");
-        } else {
-            long plid = layout.getPlid();
-            long ownerId = PortletKeys.PREFS_OWNER_ID_DEFAULT;
-            int ownerType = PortletKeys.PREFS_OWNER_TYPE_LAYOUT;
-            long runAsUserId = LiferaySetup.getRunAsUserId();
+            return false;
+        }
+        long plid = layout.getPlid();
+        long ownerId = PortletKeys.PREFS_OWNER_ID_DEFAULT;
+        int ownerType = PortletKeys.PREFS_OWNER_TYPE_LAYOUT;
+        long runAsUserId = LiferaySetup.getRunAsUserId();
 
-            LayoutTypePortlet layoutTypePortlet = (LayoutTypePortlet) layout.getLayoutType();
+        LayoutTypePortlet layoutTypePortlet = (LayoutTypePortlet) layout.getLayoutType();
 
+        Map<String, String> existingXml = new HashMap<>();
+        for (PortletPreferences p : PortletPreferencesLocalServiceUtil.getPortletPreferences(ownerId, ownerType, plid)) {
+            existingXml.put(p.getPortletId(), p.getPreferences());
+        }
+
+        boolean success = true;
+        Map<String, String> changedXml = new LinkedHashMap<>();
+        for (Pageportlet portlet : portlets) {
             String portletId = portlet.getPortletId();
             String column = portlet.getColumn();
 
@@ -466,26 +711,80 @@ public final class SetupPages {
                 }
             } catch (SystemException e) {
                 LOG.error("Add portlet error ", e);
+                success = false;
             }
 
-            javax.portlet.PortletPreferences preferences = PortletPreferencesLocalServiceUtil.getPreferences(companyId, ownerId, ownerType, plid, portletIdInc);
-            List<PortletPreference> prefsList = portlet.getPortletPreference();
-            for (PortletPreference p : prefsList) {
+            javax.portlet.PortletPreferences preferences;
+            String xml = existingXml.get(portletIdInc);
+            if (xml == null) {
+                // creates the preferences with the defaults of the portlet
+                preferences = PortletPreferencesLocalServiceUtil.getPreferences(companyId, ownerId, ownerType, plid, portletIdInc);
+            } else {
+                preferences = PortletPreferencesFactoryUtil.fromXML(companyId, ownerId, ownerType, plid, portletIdInc, xml);
+            }
+            boolean changed = false;
+            for (PortletPreference p : portlet.getPortletPreference()) {
+                String value = resolved.get(p);
+                if (Arrays.equals(preferences.getValues(p.getKey(), null), new String[] {value})) {
+                    continue;
+                }
                 try {
-                    preferences.setValue(p.getKey(), resolvePortletPrefValue(p.getKey(), p.getValue(),
-                            portlet, companyId, groupId, runAsUserId));
+                    preferences.setValue(p.getKey(), value);
+                    changed = true;
                 } catch (ReadOnlyException e) {
                     LOG.error("Portlet preferences (" + p.getKey() + ", " + p.getValue() + ") of "
                             + "portlet " + portlet.getPortletId() + " caused an excpetion! ");
+                    success = false;
                 }
             }
-            PortletPreferencesLocalServiceUtil.updatePreferences(ownerId, ownerType, plid, portletIdInc, preferences);
+            if (changed) {
+                changedXml.put(portletIdInc, PortletPreferencesFactoryUtil.toXML(preferences));
+            }
 
             if (Validator.isNotNull(column) && Validator.isNotNull(portletIdInc)) {
                 layoutTypePortlet.movePortletId(runAsUserId, portletIdInc, column, portlet.getColumnPosition());
             }
-            LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
-                    layout.getLayoutId(), layout.getTypeSettings());
+        }
+        if (changedXml.isEmpty()) {
+            return success;
+        }
+        try {
+            TransactionInvokerUtil.invoke(PREFERENCES_TRANSACTION, () -> {
+                for (Map.Entry<String, String> e : changedXml.entrySet()) {
+                    SetupMetrics.call("PortletPreferencesLocalService.updatePreferences");
+                    PortletPreferencesLocalServiceUtil.updatePreferences(ownerId, ownerType, plid, e.getKey(), e.getValue());
+                }
+                return null;
+            });
+        } catch (Throwable t) {
+            LOG.error("Could not write portlet preferences of page " + page.getFriendlyURL(), t);
+            return false;
+        }
+        return success;
+    }
+
+    /**
+     * Loads everything the portlet preferences of the given pages refer to
+     * with a few set based queries, once for all pages of a layout set before
+     * they are set up. The sub-pages are part of the given list already.
+     */
+    private static void prefetchReferences(final List<Page> pages, final long groupId,
+                                           final long companyId) {
+        if (!SetupProps.getBoolean(SetupProps.RESOLVER_PREFETCH, true)) {
+            return;
+        }
+        ResolverPrefetch prefetch = new ResolverPrefetch(groupId, companyId);
+        int values = 0;
+        for (Page page : pages) {
+            for (Pageportlet portlet : page.getPageportlet()) {
+                for (PortletPreference p : portlet.getPortletPreference()) {
+                    prefetch.collect(p.getValue(), "Key: " + p.getKey() + " of portlet " + portlet.getPortletId());
+                    values++;
+                }
+            }
+        }
+        if (values > 1) {
+            prefetch.fetch();
         }
     }
 
@@ -526,6 +825,12 @@ public final class SetupPages {
     }
 
     public static void setLayoutTemplate(final Layout layout, final Page page, final long userid) {
+        String layoutState = getLayoutState(layout);
+        applyLayoutTemplate(layout, page, userid);
+        updateLayout(layout, page, layoutState);
+    }
+
+    private static void applyLayoutTemplate(final Layout layout, final Page page, final long userid) {
         if (layout.getLayoutType() instanceof LayoutTypePortlet) {
             LayoutTypePortlet portletLayout = (LayoutTypePortlet) layout.getLayoutType();
 
@@ -558,8 +863,6 @@ public final class SetupPages {
                     portletLayout.setLayoutTemplateId(
                             UserLocalServiceUtil.getDefaultUserId(layout.getCompanyId()),
                             layoutTemplate.getLayoutTemplateId());
-                    LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
-                            layout.getLayoutId(), layout.getTypeSettings());
                 } else {
                     LOG.error("Layout template " + page.getLayout() + " not found !");
                     if (themeId != null) {
@@ -598,8 +901,6 @@ public final class SetupPages {
                         ResourceLocalServiceUtil.deleteResource(layout.getCompanyId(),
                                 rootPortletId, ResourceConstants.SCOPE_INDIVIDUAL,
                                 PortletPermissionUtil.getPrimaryKey(layout.getPlid(), portletId));
-                        LayoutLocalServiceUtil.updateLayout(layout.getGroupId(), layout.isPrivateLayout(),
-                                layout.getLayoutId(), layout.getTypeSettings());
                         List<PortletPreferences> list = PortletPreferencesLocalServiceUtil
                                 .getPortletPreferences(PortletKeys.PREFS_OWNER_TYPE_LAYOUT,
                                         layout.getPlid(), portletId);
@@ -619,10 +920,25 @@ public final class SetupPages {
         ServiceContext serviceContext = new ServiceContext();
         try {
             LayoutLocalServiceUtil.deleteLayouts(groupId, privatePages, serviceContext);
+            ResolverCache.invalidateAll(ResolverCache.Type.PAGE, groupId);
             LOG.info("Setup: Pages removed.");
         } catch (PortalException | SystemException e) {
             LOG.error("cannot remove pages: " + e);
         }
     }
 
+    /**
+     * A page of the setup together with its layout.
+     */
+    private static final class PageNode {
+        private final Page page;
+        private final Layout layout;
+        private final boolean existing;
+
+        PageNode(final Page page, final Layout layout, final boolean existing) {
+            this.page = page;
+            this.layout = layout;
+            this.existing = existing;
+        }
+    }
 }
@@ -37,10 +37,17 @@ import com.liferay.portal.kernel.model.ResourcePermission;
 import com.liferay.portal.kernel.security.permission.ActionKeys;
 import com.liferay.portal.kernel.service.ResourcePermissionLocalServiceUtil;
 import com.liferay.portal.kernel.service.RoleLocalServiceUtil;
+import com.liferay.portal.kernel.transaction.Propagation;
+import com.liferay.portal.kernel.transaction.TransactionConfig;
+import com.liferay.portal.kernel.transaction.TransactionInvokerUtil;
 import com.liferay.portal.kernel.util.PortalUtil;
+import com.mimacom.liferay.portal.setup.core.util.SetupMetrics;
+import com.mimacom.liferay.portal.setup.core.util.SetupProps;
 import com.mimacom.liferay.portal.setup.domain.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 
 public final class SetupPermissions {
@@ -49,11 +56,112 @@ public final class SetupPermissions {
     public static final String[] PERMISSION_RW = {ActionKeys.VIEW, ActionKeys.UPDATE};
     private static final Log LOG = LogFactoryUtil.getLog(SetupPermissions.class);
     private static final long COMPANY_ID = PortalUtil.getDefaultCompanyId();
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final TransactionConfig BATCH_TRANSACTION = TransactionConfig.Factory.create(
+            Propagation.REQUIRED, new Class<?>[] {Exception.class});
+    private static final Map<String, Long> ROLE_IDS = new ConcurrentHashMap<>();
+    private static final Map<String, ResourceGrants> PENDING = new LinkedHashMap<>();
+    private static final Object FLUSH_LOCK = new Object();
+    private static final LongAdder SKIPPED_GRANTS = new LongAdder();
+    private static final LongAdder ADDED_GRANTS = new LongAdder();
+    private static final LongAdder REMOVED_GRANTS = new LongAdder();
+    private static volatile boolean batching;
 
     private SetupPermissions() {
 
     }
 
+    /**
+     * Starts to collect the permissions set by
+     * {@link #updatePermission(String, long, long, long, String, RolePermissions, HashMap)}
+     * instead of writing them one by one, and empties the role id and
+     * permission template caches.
+     * Called at the start of every setup run.
+     */
+    public static void startBatch() {
+        ROLE_IDS.clear();
+        PermissionTemplate.clear();
+        SKIPPED_GRANTS.reset();
+        ADDED_GRANTS.reset();
+        REMOVED_GRANTS.reset();
+        batching = true;
+    }
+
+    /**
+     * Writes the collected permissions, a number of resources per
+     * transaction, see {@link SetupProps#PERMISSION_BATCH_SIZE}. Called at the
+     * end of every phase.
+     */
+    public static void flushBatch() {
+        // flushes are serialized, so the permissions of a resource are written in the order they were set
+        synchronized (FLUSH_LOCK) {
+            List<ResourceGrants> batch;
+            synchronized (PENDING) {
+                batch = new ArrayList<>(PENDING.values());
+                PENDING.clear();
+            }
+            PermissionTemplate.releaseRoleTemplates();
+            int batchSize = Math.max(1, SetupProps.getInteger(SetupProps.PERMISSION_BATCH_SIZE,
+                    DEFAULT_BATCH_SIZE));
+            for (int i = 0; i < batch.size(); i += batchSize) {
+                writeChunk(batch.subList(i, Math.min(i + batchSize, batch.size())));
+            }
+        }
+    }
+
+    private static void writeChunk(final List<ResourceGrants> chunk) {
+        List<ResourceGrants> written = new ArrayList<>(chunk.size());
+        try {
+            TransactionInvokerUtil.invoke(BATCH_TRANSACTION, () -> {
+                for (ResourceGrants grants : chunk) {
+                    if (write(grants)) {
+                        written.add(grants);
+                    }
+                }
+                return null;
+            });
+        } catch (Throwable t) {
+            if (chunk.size() == 1) {
+                LOG.error("Permissions for " + chunk.get(0).locationHint + " could not be written", t);
+                return;
+            }
+            // the whole transaction is rolled back, the resources are written one by one to find the failing ones
+            for (ResourceGrants grants : chunk) {
+                writeChunk(Collections.singletonList(grants));
+            }
+            return;
+        }
+        // only run once the transaction is committed
+        for (ResourceGrants grants : written) {
+            grants.onWritten.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Writes the collected permissions and writes all further permissions
+     * immediately, and reports how many grants were changed. Called at the end
+     * of every setup run.
+     */
+    public static void finishBatch() {
+        flushBatch();
+        batching = false;
+        LOG.info("Permissions: " + SKIPPED_GRANTS.sum() + " grants unchanged, " + ADDED_GRANTS.sum()
+                + " added, " + REMOVED_GRANTS.sum() + " removed");
+    }
+
+    /**
+     * Returns the id of the role with the given name in the default company,
+     * the ids are cached for the setup run.
+     */
+    public static long getRoleId(final String roleName) throws PortalException {
+        Long roleId = ROLE_IDS.get(roleName);
+        if (roleId == null) {
+            roleId = RoleLocalServiceUtil.getRole(COMPANY_ID, roleName).getRoleId();
+            ROLE_IDS.put(roleName, roleId);
+        }
+        return roleId;
+    }
+
     public static void setupPortletPermissions(final PortletPermissions portletPermissions) {
 
         for (PortletPermissions.Portlet portlet : portletPermissions.getPortlet()) {
@@ -63,10 +171,11 @@ public final class SetupPermissions {
             Map<String, Set<String>> actionsPerRole = getActionsPerRole(portlet);
             for (String roleName : actionsPerRole.keySet()) {
                 try {
-                    long roleId = RoleLocalServiceUtil.getRole(COMPANY_ID, roleName).getRoleId();
+                    long roleId = getRoleId(roleName);
                     final Set<String> actionStrings = actionsPerRole.get(roleName);
                     final String[] actionIds = actionStrings.toArray(new String[actionStrings.size()]);
 
+                    SetupMetrics.call("ResourcePermissionLocalService.setResourcePermissions");
                     ResourcePermissionLocalServiceUtil.setResourcePermissions(COMPANY_ID,
                             portlet.getPortletId(), ResourceConstants.SCOPE_COMPANY,
                             String.valueOf(COMPANY_ID), roleId, actionIds);
@@ -116,6 +225,7 @@ public final class SetupPermissions {
 
     public static void removePermission(final long companyId, final String name,
                                         final String primKey) throws PortalException, SystemException {
+        SetupMetrics.call("ResourcePermissionLocalService.deleteResourcePermissions");
         ResourcePermissionLocalServiceUtil.deleteResourcePermissions(companyId, name,
                 ResourceConstants.SCOPE_INDIVIDUAL, primKey);
     }
@@ -124,7 +234,8 @@ public final class SetupPermissions {
                                      String[] permission)
             throws SystemException, PortalException {
         try {
-            long roleId = RoleLocalServiceUtil.getRole(COMPANY_ID, roleName).getRoleId();
+            long roleId = getRoleId(roleName);
+            SetupMetrics.call("ResourcePermissionLocalService.setResourcePermissions");
             ResourcePermissionLocalServiceUtil
                     .setResourcePermissions(COMPANY_ID, name, scope, primaryKey, roleId, permission);
         } catch (Exception ex) {
@@ -136,7 +247,8 @@ public final class SetupPermissions {
                                      final String primaryKey, final String[] permission)
             throws SystemException, PortalException {
         try {
-            long roleId = RoleLocalServiceUtil.getRole(COMPANY_ID, roleName).getRoleId();
+            long roleId = getRoleId(roleName);
+            SetupMetrics.call("ResourcePermissionLocalService.setResourcePermissions");
             ResourcePermissionLocalServiceUtil.setResourcePermissions(COMPANY_ID, className,
                     ResourceConstants.SCOPE_INDIVIDUAL, primaryKey, roleId, permission);
         } catch (Exception ex) {
@@ -148,7 +260,8 @@ public final class SetupPermissions {
                                            final String primaryKey, final String[] actionKeys)
             throws PortalException, SystemException {
 
-        long roleId = RoleLocalServiceUtil.getRole(COMPANY_ID, role.getName()).getRoleId();
+        long roleId = getRoleId(role.getName());
+        SetupMetrics.call("ResourcePermissionLocalService.setResourcePermissions");
         ResourcePermissionLocalServiceUtil.setResourcePermissions(COMPANY_ID,
                 Layout.class.getName(), ResourceConstants.SCOPE_INDIVIDUAL,
                 String.valueOf(primaryKey), roleId, actionKeys);
@@ -161,6 +274,7 @@ public final class SetupPermissions {
                     .getResourcePermissions(COMPANY_ID, portlet.getPortletId(),
                             ResourceConstants.SCOPE_COMPANY, String.valueOf(COMPANY_ID));
             for (ResourcePermission resourcePermission : resourcePermissions) {
+                SetupMetrics.call("ResourcePermissionLocalService.deleteResourcePermission");
                 ResourcePermissionLocalServiceUtil.deleteResourcePermission(resourcePermission);
             }
         } catch (SystemException e) {
@@ -171,6 +285,7 @@ public final class SetupPermissions {
     public static void clearPagePermissions(final String primaryKey)
             throws PortalException, SystemException {
 
+        SetupMetrics.call("ResourcePermissionLocalService.deleteResourcePermissions");
         ResourcePermissionLocalServiceUtil.deleteResourcePermissions(COMPANY_ID,
                 Layout.class.getName(), ResourceConstants.SCOPE_INDIVIDUAL,
                 String.valueOf(primaryKey));
@@ -188,67 +303,177 @@ public final class SetupPermissions {
                                         final long companyId, final long elementId, final String className,
                                         final RolePermissions rolePermissions,
                                         final HashMap<String, List<String>> defaultPermissions) {
-        boolean useDefaultPermissions = false;
-        if (rolePermissions != null) {
-            if (rolePermissions.isClearPermissions()) {
-                try {
-                    SetupPermissions.removePermission(companyId, className,
-                            Long.toString(elementId));
-                } catch (PortalException e) {
-                    LOG.error("Permissions for " + locationHint + " could not be cleared. ", e);
-                } catch (SystemException e) {
-                    LOG.error("Permissions for " + locationHint + " could not be cleared. ", e);
-                }
+        updatePermission(locationHint, groupId, companyId, elementId, className, rolePermissions,
+                defaultPermissions, null);
+    }
+
+    /**
+     * Sets the permissions of a resource like
+     * {@link #updatePermission(String, long, long, long, String, RolePermissions, HashMap)}
+     * and runs the given callback once they are written successfully. While
+     * batching, this is when the batch holding the resource is committed.
+     *
+     * @param onWritten run after the permissions are written, may be null.
+     */
+    public static void updatePermission(final String locationHint, final long groupId,
+                                        final long companyId, final long elementId, final Class clazz,
+                                        final RolePermissions rolePermissions,
+                                        final HashMap<String, List<String>> defaultPermissions,
+                                        final Runnable onWritten) {
+        updatePermission(locationHint, groupId, companyId, elementId, clazz.getName(), rolePermissions,
+                defaultPermissions, onWritten);
+    }
+
+    private static void updatePermission(final String locationHint, final long groupId,
+                                         final long companyId, final long elementId, final String className,
+                                         final RolePermissions rolePermissions,
+                                         final HashMap<String, List<String>> defaultPermissions,
+                                         final Runnable onWritten) {
+        boolean clear = rolePermissions != null && rolePermissions.isClearPermissions();
+        PermissionTemplate template;
+        if (rolePermissions != null && rolePermissions.getRolePermission() != null) {
+            template = PermissionTemplate.forRolePermissions(className,
+                    rolePermissions.getRolePermission(), locationHint);
+        } else {
+            template = PermissionTemplate.forDefaults(className, defaultPermissions, locationHint);
+        }
+        String primKey = Long.toString(elementId);
+
+        if (!batching) {
+            ResourceGrants grants = new ResourceGrants(locationHint, companyId, className, primKey, clear,
+                    template);
+            if (write(grants) && onWritten != null) {
+                onWritten.run();
             }
-            List<String> actions = new ArrayList<String>();
-            List<RolePermission> rolePermissionList = rolePermissions.getRolePermission();
-            if (rolePermissionList != null) {
-                for (RolePermission rp : rolePermissionList) {
-                    actions.clear();
-                    String roleName = rp.getRoleName();
-                    List<PermissionAction> roleActions = rp.getPermissionAction();
-                    for (PermissionAction pa : roleActions) {
-                        String actionName = pa.getActionName();
-                        actions.add(actionName);
-                    }
-                    try {
-                        SetupPermissions.addPermission(roleName, className,
-                                Long.toString(elementId),
-                                actions.toArray(new String[actions.size()]));
-                    } catch (SystemException e) {
-                        LOG.error("Permissions for " + roleName + " for " + locationHint + " "
-                                + "could not be set. ", e);
-                    } catch (PortalException e) {
-                        LOG.error("Permissions for " + roleName + " for " + locationHint + " "
-                                + "could not be set. ", e);
-                    } catch (NullPointerException e) {
-                        LOG.error("Permissions for " + roleName + " for " + locationHint + " "
-                                + "could not be set. " + "Probably role not found! ", e);
-                    }
-                }
+            return;
+        }
+        boolean full;
+        synchronized (PENDING) {
+            String key = ResourceGrants.getKey(companyId, className, primKey);
+            ResourceGrants pending = PENDING.get(key);
+            if (pending != null && !clear) {
+                pending.template = pending.template.merge(template);
             } else {
-                useDefaultPermissions = true;
+                ResourceGrants grants = new ResourceGrants(locationHint, companyId, className, primKey,
+                        clear, template);
+                if (pending != null) {
+                    // clearing drops what was set before on the resource
+                    grants.onWritten.addAll(pending.onWritten);
+                }
+                PENDING.put(key, grants);
+                pending = grants;
             }
-        } else {
-            useDefaultPermissions = true;
+            if (onWritten != null) {
+                pending.onWritten.add(onWritten);
+            }
+            full = PENDING.size() >= SetupProps.getInteger(SetupProps.PERMISSION_BATCH_SIZE,
+                    DEFAULT_BATCH_SIZE);
         }
-        if (useDefaultPermissions) {
-            Set<String> roles = defaultPermissions.keySet();
-            List<String> actions;
-            for (String r : roles) {
-                actions = defaultPermissions.get(r);
-                try {
-                    SetupPermissions.addPermission(r, className, Long.toString(elementId),
-                            actions.toArray(new String[actions.size()]));
-                } catch (SystemException e) {
-                    LOG.error("Permissions for " + r + " for " + locationHint + " could not be "
-                            + "set. ", e);
-                } catch (PortalException e) {
-                    LOG.error("Permissions for " + r + " for " + locationHint + " could not be "
-                            + "set. ", e);
-                }
+        if (full) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * Writes the permissions of one resource.
+     *
+     * @return true if they are written completely.
+     */
+    private static boolean write(final ResourceGrants grants) {
+        if (SetupProps.getBoolean(SetupProps.PERMISSION_DIFF, true)) {
+            try {
+                writeChanges(grants);
+                return true;
+            } catch (PortalException | SystemException e) {
+                LOG.warn("Permissions for " + grants.locationHint + " could not be compared, they are "
+                        + "written completely. ", e);
             }
         }
+        if (grants.clear) {
+            try {
+                SetupPermissions.removePermission(grants.companyId, grants.className, grants.primKey);
+            } catch (PortalException | SystemException e) {
+                LOG.error("Permissions for " + grants.locationHint + " could not be cleared. ", e);
+                return false;
+            }
+        }
+        if (grants.template.getActionIds().isEmpty()) {
+            return true;
+        }
+        try {
+            SetupMetrics.call("ResourcePermissionLocalService.setResourcePermissions");
+            ResourcePermissionLocalServiceUtil.setResourcePermissions(grants.companyId,
+                    grants.className, ResourceConstants.SCOPE_INDIVIDUAL, grants.primKey,
+                    grants.template.getActionIds());
+            return true;
+        } catch (PortalException | SystemException e) {
+            LOG.error("Permissions for " + grants.locationHint + " could not be set. ", e);
+            return false;
+        }
+    }
+
+    /**
+     * Compares the wanted actions with the permissions the resource has and
+     * writes only the roles whose actions differ, see {@link PermissionDiff}.
+     * When clearing, the roles that are not wanted anymore lose their
+     * permissions, the others are kept instead of being removed and set
+     * again.
+     */
+    private static void writeChanges(final ResourceGrants grants) throws PortalException {
+        Map<Long, ResourcePermission> existing = new HashMap<>();
+        for (ResourcePermission rp : ResourcePermissionLocalServiceUtil.getResourcePermissions(
+                grants.companyId, grants.className, ResourceConstants.SCOPE_INDIVIDUAL, grants.primKey)) {
+            existing.put(rp.getRoleId(), rp);
+        }
+        for (PermissionTemplate.Grant grant : grants.template.getGrants()) {
+            if (!grant.isBitsKnown()) {
+                throw new PortalException("Unknown action of " + grants.className);
+            }
+        }
+        Map<Long, Long> current = new HashMap<>();
+        for (ResourcePermission rp : existing.values()) {
+            current.put(rp.getRoleId(), rp.getActionIds());
+        }
+        PermissionDiff diff = PermissionDiff.of(grants.template, current, grants.clear);
+        SKIPPED_GRANTS.add(diff.getSkippedActions());
+        ADDED_GRANTS.add(diff.getAddedActions());
+        REMOVED_GRANTS.add(diff.getRemovedActions());
+        for (long roleId : diff.getRemoved()) {
+            SetupMetrics.call("ResourcePermissionLocalService.deleteResourcePermission");
+            ResourcePermissionLocalServiceUtil.deleteResourcePermission(existing.get(roleId));
+        }
+        if (!diff.getChanged().isEmpty()) {
+            SetupMetrics.call("ResourcePermissionLocalService.setResourcePermissions");
+            ResourcePermissionLocalServiceUtil.setResourcePermissions(grants.companyId,
+                    grants.className, ResourceConstants.SCOPE_INDIVIDUAL, grants.primKey, diff.getChanged());
+        }
+    }
+
+    /**
+     * The permission template to be applied to one resource.
+     */
+    private static final class ResourceGrants {
+        private final String locationHint;
+        private final long companyId;
+        private final String className;
+        private final String primKey;
+        private final boolean clear;
+        private final List<Runnable> onWritten = new ArrayList<>(1);
+        private PermissionTemplate template;
+
+        private ResourceGrants(final String locationHint, final long companyId, final String className,
+                               final String primKey, final boolean clear, final PermissionTemplate template) {
+            this.locationHint = locationHint;
+            this.companyId = companyId;
+            this.className = className;
+            this.primKey = primKey;
+            this.clear = clear;
+            this.template = template;
+        }
+
+        private static String getKey(final long companyId, final String className, final String primKey) {
+            return companyId + "#" + className + "#" + primKey;
+        }
     }
 
 }
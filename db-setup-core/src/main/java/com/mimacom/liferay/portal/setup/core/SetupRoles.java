@@ -26,7 +26,10 @@ package com.mimacom.liferay.portal.setup.core;
  * #L%
  */
 
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
 import com.liferay.portal.kernel.dao.orm.ObjectNotFoundException;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.RestrictionsFactoryUtil;
 import com.liferay.portal.kernel.exception.NoSuchRoleException;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.RequiredRoleException;
@@ -39,7 +42,9 @@ import com.liferay.portal.kernel.model.RoleConstants;
 import com.liferay.portal.kernel.service.RoleLocalServiceUtil;
 import com.liferay.portal.kernel.service.UserLocalServiceUtil;
 import com.liferay.portal.kernel.util.PortalUtil;
+import com.mimacom.liferay.portal.setup.core.util.PagedDeletion;
 import com.mimacom.liferay.portal.setup.core.util.ResolverUtil;
+import com.mimacom.liferay.portal.setup.core.util.SetupMetrics;
 import com.mimacom.liferay.portal.setup.domain.DefinePermission;
 import com.mimacom.liferay.portal.setup.domain.DefinePermissions;
 import com.mimacom.liferay.portal.setup.domain.PermissionAction;
@@ -62,6 +67,7 @@ public final class SetupRoles {
     public static void setupRoles(final List<com.mimacom.liferay.portal.setup.domain.Role> roles, long runAsUserId, long groupId, long company) {
 
         for (com.mimacom.liferay.portal.setup.domain.Role role : roles) {
+            long start = SetupMetrics.start();
             try {
                 RoleLocalServiceUtil.getRole(COMPANY_ID, role.getName());
                 LOG.info("Setup: Role " + role.getName() + " already exist, not creating...");
@@ -72,6 +78,7 @@ public final class SetupRoles {
                 LOG.error("error while setting up roles", e);
             }
             addRolePermissions(role, runAsUserId, groupId, company);
+            SetupMetrics.entity(SetupMetrics.Entity.ROLE, start);
         }
     }
 
@@ -109,23 +116,7 @@ public final class SetupRoles {
             case "excludeListed":
                 Map<String, com.mimacom.liferay.portal.setup.domain.Role> toBeDeletedRoles = convertRoleListToHashMap(
                         roles);
-                try {
-                    for (Role role : RoleLocalServiceUtil.getRoles(-1, -1)) {
-                        String name = role.getName();
-                        if (!toBeDeletedRoles.containsKey(name)) {
-                            try {
-                                RoleLocalServiceUtil
-                                        .deleteRole(RoleLocalServiceUtil.getRole(COMPANY_ID, name));
-                                LOG.info("Deleting Role " + name);
-
-                            } catch (Exception e) {
-                                LOG.info("Skipping deletion fo system role " + name);
-                            }
-                        }
-                    }
-                } catch (SystemException e) {
-                    LOG.error("problem with deleting roles", e);
-                }
+                deleteRolesExcept(toBeDeletedRoles.keySet());
                 break;
 
             case "onlyListed":
@@ -151,6 +142,45 @@ public final class SetupRoles {
 
     }
 
+    /**
+     * Deletes all roles of the company except the listed and the system
+     * roles, see {@link PagedDeletion}.
+     */
+    private static void deleteRolesExcept(final Set<String> excludedNames) {
+        List<String> systemRoles = new ArrayList<>();
+        Collections.addAll(systemRoles, PortalUtil.getSystemRoles());
+        Collections.addAll(systemRoles, PortalUtil.getSystemSiteRoles());
+        Collections.addAll(systemRoles, PortalUtil.getSystemOrganizationRoles());
+        PagedDeletion.deleteAllExcept(COMPANY_ID, excludedNames, new PagedDeletion.Target<Role>("roles", "roleId") {
+            @Override
+            protected DynamicQuery createQuery() {
+                return RoleLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("companyId").eq(COMPANY_ID))
+                        .add(RestrictionsFactoryUtil.not(PropertyFactoryUtil.forName("name").in(systemRoles)));
+            }
+
+            @Override
+            protected List<Role> find(final DynamicQuery query, final int start, final int end) {
+                return RoleLocalServiceUtil.dynamicQuery(query, start, end);
+            }
+
+            @Override
+            protected long getId(final Role role) {
+                return role.getRoleId();
+            }
+
+            @Override
+            protected String getKey(final Role role) {
+                return role.getName();
+            }
+
+            @Override
+            protected void delete(final Role role) throws PortalException {
+                RoleLocalServiceUtil.deleteRole(role);
+            }
+        });
+    }
+
     private static void addRolePermissions(com.mimacom.liferay.portal.setup.domain.Role role, long runAsUserId, long groupId, long companyId) {
         if (role.getDefinePermissions() != null) {
             String siteName = role.getSite();
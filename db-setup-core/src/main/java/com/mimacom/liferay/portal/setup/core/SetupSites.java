@@ -27,7 +27,9 @@ package com.mimacom.liferay.portal.setup.core;
  */
 
 import com.liferay.exportimport.kernel.service.StagingLocalServiceUtil;
-import com.liferay.portal.kernel.dao.orm.QueryUtil;
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.RestrictionsFactoryUtil;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.SystemException;
 import com.liferay.portal.kernel.log.Log;
@@ -41,14 +43,27 @@ import com.liferay.portal.kernel.service.*;
 import com.liferay.portal.kernel.util.PortalUtil;
 import com.mimacom.liferay.portal.setup.LiferaySetup;
 import com.mimacom.liferay.portal.setup.core.util.CustomFieldSettingUtil;
+import com.mimacom.liferay.portal.setup.core.util.PagedDeletion;
+import com.mimacom.liferay.portal.setup.core.util.ResolverCache;
+import com.mimacom.liferay.portal.setup.core.util.ResolverUtil;
+import com.mimacom.liferay.portal.setup.core.util.ResourcesUtil;
+import com.mimacom.liferay.portal.setup.core.util.SetupExecutor;
+import com.mimacom.liferay.portal.setup.core.util.SetupMetrics;
+import com.mimacom.liferay.portal.setup.core.util.SetupProps;
 import com.mimacom.liferay.portal.setup.core.util.PortletConstants;
 import com.mimacom.liferay.portal.setup.core.util.FieldMapUtil;
 import com.mimacom.liferay.portal.setup.domain.*;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * Created by gustavnovotny on 28.08.17.
@@ -58,6 +73,7 @@ public class SetupSites {
     private static final Log LOG = LogFactoryUtil.getLog(SetupSites.class);
     private static final String DEFAULT_GROUP_NAME = "Guest";
     private static final long COMPANY_ID = PortalUtil.getDefaultCompanyId();
+    private static final int DEFAULT_SITE_THREADS = 4;
 
     private SetupSites() {
 
@@ -66,98 +82,208 @@ public class SetupSites {
     public static void setupSites(final List<com.mimacom.liferay.portal.setup.domain.Site> groups, final Group parentGroup) {
 
         CompanyThreadLocal.setCompanyId(COMPANY_ID);
-        for (com.mimacom.liferay.portal.setup.domain.Site site : groups) {
-            try {
-                Group liferayGroup = null;
-                long groupId = -1;
-                if (site.isDefault()) {
-                    liferayGroup = GroupLocalServiceUtil.getGroup(COMPANY_ID, DEFAULT_GROUP_NAME);
-                    LOG.info("Setup: default site. Group ID: " + groupId);
-                } else if (site.getName() == null) {
-                    liferayGroup = GroupLocalServiceUtil.getCompanyGroup(COMPANY_ID);
-                    LOG.info("Setup: global site. Group ID: " + groupId);
-                } else {
-                    try {
-                        liferayGroup = GroupLocalServiceUtil.getGroup(COMPANY_ID, site.getName());
-                        LOG.info("Setup: Site " + site.getName()
-                                + " already exists in system, not creating...");
+        int threads = SetupProps.getInteger(SetupProps.SITE_THREADS, DEFAULT_SITE_THREADS);
+        if (parentGroup != null || threads < 2 || groups.size() < 2) {
+            // child sites are set up by the worker of their top level site
+            for (com.mimacom.liferay.portal.setup.domain.Site site : groups) {
+                long start = SetupMetrics.start();
+                setupSite(site, parentGroup);
+                SetupMetrics.entity(SetupMetrics.Entity.SITE, start);
+            }
+            return;
+        }
+        SetupExecutor.runGraph(groups, getSiteDependencies(groups), threads, site -> {
+            long start = SetupMetrics.start();
+            setupSite(site, null);
+            SetupMetrics.entity(SetupMetrics.Entity.SITE, start);
+        });
+    }
 
-                    } catch (PortalException | SystemException e) {
-                        LOG.debug("Site does not exist.", e);
-                    }
-                }
-                long defaultUserId = UserLocalServiceUtil.getDefaultUserId(COMPANY_ID);
-                ServiceContext serviceContext = new ServiceContext();
+    private static void setupSite(final com.mimacom.liferay.portal.setup.domain.Site site, final Group parentGroup) {
 
-                if (liferayGroup == null) {
-                    LOG.info("Setup: Group (Site) " + site.getName()
-                            + " does not exist in system, creating...");
-
-                    liferayGroup = GroupLocalServiceUtil.addGroup(
-                            defaultUserId, GroupConstants.DEFAULT_PARENT_GROUP_ID, Group.class.getName(),
-                            0, 0, FieldMapUtil.getLocalizationMap(site.getName()), null, GroupConstants.TYPE_SITE_RESTRICTED, true, GroupConstants.DEFAULT_MEMBERSHIP_RESTRICTION, site.getSiteFriendlyUrl(), true, true, serviceContext);
-                    LOG.info("New Organization created. Group ID: " + groupId);
-                } else {
-                    LOG.info("Setup: Updating " + site.getName());
-                    GroupLocalServiceUtil.updateFriendlyURL(liferayGroup.getGroupId(), site.getSiteFriendlyUrl());
-                }
-                groupId = liferayGroup.getGroupId();
-
-                if (parentGroup != null && liferayGroup != null
-                        && site.isMaintainSiteHierarchy()) {
-                    liferayGroup.setParentGroupId(parentGroup.getGroupId());
-                    GroupLocalServiceUtil.updateGroup(liferayGroup);
-                } else if (liferayGroup != null && site.isMaintainSiteHierarchy()) {
-                    liferayGroup.setParentGroupId(0);
-                    GroupLocalServiceUtil.updateGroup(liferayGroup);
+        try {
+            Group liferayGroup = null;
+            long groupId = -1;
+            if (site.isDefault()) {
+                liferayGroup = GroupLocalServiceUtil.getGroup(COMPANY_ID, DEFAULT_GROUP_NAME);
+                LOG.info("Setup: default site. Group ID: " + groupId);
+            } else if (site.getName() == null) {
+                liferayGroup = GroupLocalServiceUtil.getCompanyGroup(COMPANY_ID);
+                LOG.info("Setup: global site. Group ID: " + groupId);
+            } else {
+                try {
+                    liferayGroup = GroupLocalServiceUtil.getGroup(COMPANY_ID, site.getName());
+                    LOG.info("Setup: Site " + site.getName()
+                            + " already exists in system, not creating...");
+
+                } catch (PortalException | SystemException e) {
+                    LOG.debug("Site does not exist.", e);
                 }
+            }
+            long defaultUserId = UserLocalServiceUtil.getDefaultUserId(COMPANY_ID);
+            ServiceContext serviceContext = new ServiceContext();
+
+            if (liferayGroup == null) {
+                LOG.info("Setup: Group (Site) " + site.getName()
+                        + " does not exist in system, creating...");
+
+                liferayGroup = GroupLocalServiceUtil.addGroup(
+                        defaultUserId, GroupConstants.DEFAULT_PARENT_GROUP_ID, Group.class.getName(),
+                        0, 0, FieldMapUtil.getLocalizationMap(site.getName()), null, GroupConstants.TYPE_SITE_RESTRICTED, true, GroupConstants.DEFAULT_MEMBERSHIP_RESTRICTION, site.getSiteFriendlyUrl(), true, true, serviceContext);
+                LOG.info("New Organization created. Group ID: " + groupId);
+            } else {
+                LOG.info("Setup: Updating " + site.getName());
+                GroupLocalServiceUtil.updateFriendlyURL(liferayGroup.getGroupId(), site.getSiteFriendlyUrl());
+            }
+            groupId = liferayGroup.getGroupId();
+
+            if (parentGroup != null && liferayGroup != null
+                    && site.isMaintainSiteHierarchy()) {
+                liferayGroup.setParentGroupId(parentGroup.getGroupId());
+                GroupLocalServiceUtil.updateGroup(liferayGroup);
+            } else if (liferayGroup != null && site.isMaintainSiteHierarchy()) {
+                liferayGroup.setParentGroupId(0);
+                GroupLocalServiceUtil.updateGroup(liferayGroup);
+            }
 
-                LOG.info("Setting site content...");
+            LOG.info("Setting site content...");
 
-                long userId = LiferaySetup.getRunAsUserId();
+            long userId = LiferaySetup.getRunAsUserId();
 
-                setStaging(userId, liferayGroup, site.getStaging());
+            setStaging(userId, liferayGroup, site.getStaging());
 
-                // If staging group exists for present Group, add all content to staging group
-                Group stagingGroup = liferayGroup.getStagingGroup();
-                if (Objects.nonNull(stagingGroup)) {
-                    groupId = stagingGroup.getGroupId();
-                }
+            // If staging group exists for present Group, add all content to staging group
+            Group stagingGroup = liferayGroup.getStagingGroup();
+            if (Objects.nonNull(stagingGroup)) {
+                groupId = stagingGroup.getGroupId();
+            }
 
-                SetupArticles.setupSiteStructuresAndTemplates(site, groupId, COMPANY_ID);
-                LOG.info("Site DDM structures and templates setting finished.");
+            SetupArticles.setupSiteStructuresAndTemplates(site, groupId, COMPANY_ID);
+            LOG.info("Site DDM structures and templates setting finished.");
 
-                SetupDocumentFolders.setupDocumentFolders(site, groupId, COMPANY_ID);
-                LOG.info("Document Folders setting finished.");
+            SetupDocumentFolders.setupDocumentFolders(site, groupId, COMPANY_ID);
+            LOG.info("Document Folders setting finished.");
 
-                SetupDocuments.setupSiteDocuments(site, groupId, COMPANY_ID);
-                LOG.info("Documents setting finished.");
+            SetupDocuments.setupSiteDocuments(site, groupId, COMPANY_ID);
+            LOG.info("Documents setting finished.");
 
-                SetupPages.setupSitePages(site, groupId, COMPANY_ID, userId);
-                LOG.info("Site Pages setting finished.");
+            SetupPages.setupSitePages(site, groupId, COMPANY_ID, userId);
+            LOG.info("Site Pages setting finished.");
 
-                SetupWebFolders.setupWebFolders(site, groupId, COMPANY_ID);
-                LOG.info("Web folders setting finished.");
+            SetupWebFolders.setupWebFolders(site, groupId, COMPANY_ID);
+            LOG.info("Web folders setting finished.");
 
-                SetupCategorization.setupVocabularies(site, groupId);
-                LOG.info("Site Categories setting finished.");
+            SetupCategorization.setupVocabularies(site, groupId);
+            LOG.info("Site Categories setting finished.");
 
-                SetupArticles.setupSiteArticles(site, groupId, COMPANY_ID);
-                LOG.info("Site Articles setting finished.");
+            SetupArticles.setupSiteArticles(site, groupId, COMPANY_ID);
+            LOG.info("Site Articles setting finished.");
 
-                setCustomFields(userId, groupId, COMPANY_ID, site);
-                LOG.info("Site custom fields set up.");
+            setCustomFields(userId, groupId, COMPANY_ID, site);
+            LOG.info("Site custom fields set up.");
 
-                // Users and Groups should be referenced to live Group
-                setMembership(site.getMembership(), COMPANY_ID, liferayGroup.getGroupId());
+            // Users and Groups should be referenced to live Group
+            setMembership(site.getMembership(), COMPANY_ID, liferayGroup.getGroupId());
 
-                List<com.mimacom.liferay.portal.setup.domain.Site> sites = site
-                        .getSite();
-                setupSites(sites, liferayGroup);
+            List<com.mimacom.liferay.portal.setup.domain.Site> sites = site
+                    .getSite();
+            setupSites(sites, liferayGroup);
+
+        } catch (Exception e) {
+            LOG.error("Error by setting up site " + site.getName(), e);
+        }
+    }
 
-            } catch (Exception e) {
-                LOG.error("Error by setting up site " + site.getName(), e);
+    /**
+     * A top level site depends on every other top level site its articles,
+     * portlet preferences or custom fields refer to, including the
+     * references of all its child sites.
+     */
+    private static Map<com.mimacom.liferay.portal.setup.domain.Site, Set<com.mimacom.liferay.portal.setup.domain.Site>> getSiteDependencies(
+            final List<com.mimacom.liferay.portal.setup.domain.Site> sites) {
+
+        Map<String, com.mimacom.liferay.portal.setup.domain.Site> byName = new HashMap<>();
+        for (com.mimacom.liferay.portal.setup.domain.Site site : sites) {
+            addSiteNames(site, site, byName);
+        }
+        Map<com.mimacom.liferay.portal.setup.domain.Site, Set<com.mimacom.liferay.portal.setup.domain.Site>> dependencies = new IdentityHashMap<>();
+        for (com.mimacom.liferay.portal.setup.domain.Site site : sites) {
+            Set<String> references = new HashSet<>();
+            collectSiteReferences(site, references);
+            Set<com.mimacom.liferay.portal.setup.domain.Site> dependsOn = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (String reference : references) {
+                com.mimacom.liferay.portal.setup.domain.Site other = byName.get(normalizeSiteName(reference));
+                if (other != null && other != site) {
+                    dependsOn.add(other);
+                }
             }
+            dependencies.put(site, dependsOn);
+        }
+        return dependencies;
+    }
+
+    private static void addSiteNames(final com.mimacom.liferay.portal.setup.domain.Site site,
+                                     final com.mimacom.liferay.portal.setup.domain.Site topLevelSite,
+                                     final Map<String, com.mimacom.liferay.portal.setup.domain.Site> byName) {
+        if (site.isDefault()) {
+            byName.put("default", topLevelSite);
+            byName.put("", topLevelSite);
+            byName.put(DEFAULT_GROUP_NAME, topLevelSite);
+        } else if (site.getName() == null) {
+            byName.put("global", topLevelSite);
+        } else {
+            byName.put(normalizeSiteName(site.getName()), topLevelSite);
+        }
+        for (com.mimacom.liferay.portal.setup.domain.Site child : site.getSite()) {
+            addSiteNames(child, topLevelSite, byName);
+        }
+    }
+
+    /**
+     * Same special names as ResolverUtil.getSiteGroupIdByName.
+     */
+    private static String normalizeSiteName(final String siteName) {
+        String lowerCase = siteName.toLowerCase();
+        if (lowerCase.equals("global") || lowerCase.equals("default")) {
+            return lowerCase;
+        }
+        return siteName;
+    }
+
+    private static void collectSiteReferences(final com.mimacom.liferay.portal.setup.domain.Site site,
+                                              final Set<String> references) {
+        for (Article article : site.getArticle()) {
+            try {
+                ResolverUtil.collectSiteReferences(ResourcesUtil.getFileContent(article.getPath()),
+                        article.getPath(), references);
+            } catch (IOException e) {
+                // reported when the article is set up
+                LOG.debug("Cannot read article " + article.getPath(), e);
+            }
+        }
+        if (site.getPublicPages() != null) {
+            collectPageReferences(site.getPublicPages().getPage(), references);
+        }
+        if (site.getPrivatePages() != null) {
+            collectPageReferences(site.getPrivatePages().getPage(), references);
+        }
+        for (CustomFieldSetting cfs : site.getCustomFieldSetting()) {
+            ResolverUtil.collectSiteReferences(cfs.getValue(), site.getName(), references);
+        }
+        for (com.mimacom.liferay.portal.setup.domain.Site child : site.getSite()) {
+            collectSiteReferences(child, references);
+        }
+    }
+
+    private static void collectPageReferences(final List<Page> pages, final Set<String> references) {
+        for (Page page : pages) {
+            for (Pageportlet portlet : page.getPageportlet()) {
+                for (PortletPreference preference : portlet.getPortletPreference()) {
+                    ResolverUtil.collectSiteReferences(preference.getValue(), portlet.getPortletId(),
+                            references);
+                }
+            }
+            collectPageReferences(page.getPage(), references);
         }
     }
 
@@ -342,16 +468,7 @@ public class SetupSites {
             case "excludeListed":
                 Map<String, Site> toBeDeletedOrganisations = convertSiteListToHashMap(
                         sites);
-                try {
-                    for (com.liferay.portal.kernel.model.Group siteGroup : GroupLocalServiceUtil
-                            .getGroups(QueryUtil.ALL_POS, QueryUtil.ALL_POS)) {
-                        if (!toBeDeletedOrganisations.containsKey(siteGroup.getName())) {
-                            deleteLiferayGroup(siteGroup);
-                        }
-                    }
-                } catch (SystemException e) {
-                    LOG.error("Error by retrieving sites!", e);
-                }
+                deleteSitesExcept(toBeDeletedOrganisations.keySet());
                 break;
 
             case "onlyListed":
@@ -360,6 +477,7 @@ public class SetupSites {
                     try {
                         com.liferay.portal.kernel.model.Group o = GroupLocalServiceUtil.getGroup(COMPANY_ID, name);
                         GroupLocalServiceUtil.deleteGroup(o);
+                        ResolverCache.invalidateAll(ResolverCache.Type.SITE);
                     } catch (Exception e) {
                         LOG.error("Error by deleting Site !", e);
                     }
@@ -374,13 +492,47 @@ public class SetupSites {
         }
     }
 
-    private static void deleteLiferayGroup(Group siteGroup) {
-        try {
-            GroupLocalServiceUtil.deleteGroup(siteGroup.getGroupId());
-            LOG.info("Deleting Site" + siteGroup.getName());
-        } catch (Exception e) {
-            LOG.error("Error by deleting Site !", e);
-        }
+    /**
+     * Deletes all regular sites of the company except the listed and the
+     * system sites, see {@link PagedDeletion}. Organization sites, staging
+     * groups and personal sites of users are no candidates. Every site is
+     * deleted in its own transaction, a rollback would not restore its files
+     * in the document store and its documents in the search index.
+     */
+    private static void deleteSitesExcept(final Set<String> excludedNames) {
+        List<String> systemGroups = Arrays.asList(PortalUtil.getSystemGroups());
+        PagedDeletion.deleteAllExcept(COMPANY_ID, excludedNames, new PagedDeletion.Target<Group>("sites", "groupId", 1) {
+            @Override
+            protected DynamicQuery createQuery() {
+                return GroupLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("companyId").eq(COMPANY_ID))
+                        .add(PropertyFactoryUtil.forName("classNameId").eq(PortalUtil.getClassNameId(Group.class)))
+                        .add(PropertyFactoryUtil.forName("site").eq(true))
+                        .add(PropertyFactoryUtil.forName("liveGroupId").eq(0L))
+                        .add(RestrictionsFactoryUtil.not(PropertyFactoryUtil.forName("groupKey").in(systemGroups)));
+            }
+
+            @Override
+            protected List<Group> find(final DynamicQuery query, final int start, final int end) {
+                return GroupLocalServiceUtil.dynamicQuery(query, start, end);
+            }
+
+            @Override
+            protected long getId(final Group group) {
+                return group.getGroupId();
+            }
+
+            @Override
+            protected String getKey(final Group group) {
+                return group.getGroupKey();
+            }
+
+            @Override
+            protected void delete(final Group group) throws PortalException {
+                GroupLocalServiceUtil.deleteGroup(group);
+                ResolverCache.invalidateAll(ResolverCache.Type.SITE);
+            }
+        });
     }
 
     public static void addSiteUser(com.liferay.portal.kernel.model.Group group, User user) {
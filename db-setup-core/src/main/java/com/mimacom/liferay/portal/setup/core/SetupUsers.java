@@ -31,7 +31,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
 import com.liferay.portal.kernel.exception.NoSuchUserException;
 import com.liferay.portal.kernel.model.Group;
 import com.liferay.portal.kernel.model.Organization;
@@ -40,6 +43,9 @@ import com.liferay.portal.kernel.model.User;
 import com.liferay.portal.kernel.service.*;
 import com.liferay.portal.kernel.util.PortalUtil;
 import com.mimacom.liferay.portal.setup.core.util.CustomFieldSettingUtil;
+import com.mimacom.liferay.portal.setup.core.util.IndexerUtil;
+import com.mimacom.liferay.portal.setup.core.util.PagedDeletion;
+import com.mimacom.liferay.portal.setup.core.util.SetupMetrics;
 import com.mimacom.liferay.portal.setup.domain.CustomFieldSetting;
 
 import com.liferay.portal.kernel.exception.PortalException;
@@ -62,6 +68,7 @@ public final class SetupUsers {
             final long runAsUser, final long groupId) {
 
         for (com.mimacom.liferay.portal.setup.domain.User user : users) {
+            long start = SetupMetrics.start();
             User liferayUser = null;
             try {
                 liferayUser = UserLocalServiceUtil.getUserByEmailAddress(COMPANY_ID,
@@ -77,6 +84,7 @@ public final class SetupUsers {
             }
 
             if( null != liferayUser ){
+                IndexerUtil.defer(User.class, liferayUser.getUserId());
                 addUserToOrganizations(user, liferayUser);
                 addRolesToUser(user, liferayUser);
                 if (user.getCustomFieldSetting() != null && !user.getCustomFieldSetting().isEmpty()) {
@@ -85,6 +93,7 @@ public final class SetupUsers {
             } else {
                 LOG.warn("Could not create user with screenName '" + user.getScreenName()+"'");
             }
+            SetupMetrics.entity(SetupMetrics.Entity.USER, start);
         }
     }
 
@@ -128,7 +137,7 @@ public final class SetupUsers {
         long[] organizationIds = new long[] {};
         long[] userGroupIds = null;
         boolean sendEmail = false;
-        ServiceContext serviceContext = new ServiceContext();
+        ServiceContext serviceContext = IndexerUtil.newServiceContext();
 
         try {
             liferayUser = UserLocalServiceUtil.addUser(creatorUserId, COMPANY_ID, autoPassword,
@@ -214,26 +223,7 @@ public final class SetupUsers {
 
             Map<String, com.mimacom.liferay.portal.setup.domain.User> usersMap = convertUserListToHashMap(
                     users);
-            try {
-                List<User> allUsers = UserLocalServiceUtil.getUsers(-1, -1);
-                for (User user : allUsers) {
-                    if (!usersMap.containsKey(user.getEmailAddress())) {
-                        if (user.isDefaultUser() || PortalUtil.isOmniadmin(user.getUserId())) {
-                            LOG.info("Skipping deletion of system user " + user.getEmailAddress());
-                        } else {
-                            try {
-                                UserLocalServiceUtil.deleteUser(user.getUserId());
-                            } catch (PortalException | SystemException e) {
-                                LOG.error("Unable to delete user.", e);
-                            }
-                            LOG.info("Deleting User " + user.getEmailAddress());
-                        }
-                    }
-                }
-
-            } catch (SystemException e) {
-                LOG.error("Unable to get user", e);
-            }
+            deleteUsersExcept(usersMap.keySet());
             break;
 
         case "onlyListed":
@@ -256,6 +246,48 @@ public final class SetupUsers {
         }
     }
 
+    /**
+     * Deletes all users of the company except the listed and the system
+     * users, see {@link PagedDeletion}. Every user is deleted in its own
+     * transaction, a rollback would not restore its portrait and its
+     * documents in the search index.
+     */
+    private static void deleteUsersExcept(final Set<String> excludedEmails) {
+        PagedDeletion.deleteAllExcept(COMPANY_ID, excludedEmails, new PagedDeletion.Target<User>("users", "userId", 1) {
+            @Override
+            protected DynamicQuery createQuery() {
+                return UserLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("companyId").eq(COMPANY_ID))
+                        .add(PropertyFactoryUtil.forName("defaultUser").eq(false));
+            }
+
+            @Override
+            protected List<User> find(final DynamicQuery query, final int start, final int end) {
+                return UserLocalServiceUtil.dynamicQuery(query, start, end);
+            }
+
+            @Override
+            protected long getId(final User user) {
+                return user.getUserId();
+            }
+
+            @Override
+            protected String getKey(final User user) {
+                return user.getEmailAddress();
+            }
+
+            @Override
+            protected boolean isProtected(final User user) {
+                return PortalUtil.isOmniadmin(user.getUserId());
+            }
+
+            @Override
+            protected void delete(final User user) throws PortalException {
+                UserLocalServiceUtil.deleteUser(user);
+            }
+        });
+    }
+
     private static Map<String, com.mimacom.liferay.portal.setup.domain.User> convertUserListToHashMap(
             final List<com.mimacom.liferay.portal.setup.domain.User> objects) {
 
@@ -0,0 +1,248 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.service.PortalPreferencesLocalServiceUtil;
+import com.liferay.portal.kernel.util.PortletKeys;
+import com.mimacom.liferay.portal.setup.MarshallUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.portlet.PortletPreferences;
+import javax.xml.bind.JAXBException;
+
+/**
+ * Remembers a hash of the definition and the resolved content of every
+ * entity written by the setup. A later run skips the write of an entity as
+ * long as its hash did not change. The hashes are kept in portal preferences
+ * of their own per company, apart from the company preferences read by the
+ * portal on every request. The ledger is only used if {@link SetupProps#LEDGER_ENABLED}
+ * is set, as it does not notice changes made in the portal itself.
+ */
+public final class ChangeLedger {
+
+    private static final Log LOG = LogFactoryUtil.getLog(ChangeLedger.class);
+    private static final String PREFERENCE_PREFIX = "db.setup.ledger.";
+    // owner type of the ledger preferences, not used by the portal itself
+    private static final int OWNER_TYPE_LEDGER = 1001;
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Map<String, String> HASHES = new ConcurrentHashMap<>();
+    private static final Map<String, String> CHANGED = new ConcurrentHashMap<>();
+    private static volatile boolean enabled;
+    private static volatile long companyId;
+
+    private ChangeLedger() {
+
+    }
+
+    /**
+     * Type of the entity, part of the ledger key.
+     */
+    public enum Type {
+        ARTICLE, DOCUMENT, PAGE, CUSTOM_FIELD
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Loads the hashes of the earlier runs, called at the start of every run.
+     */
+    public static void load(final long company) {
+        HASHES.clear();
+        CHANGED.clear();
+        companyId = company;
+        enabled = SetupProps.getBoolean(SetupProps.LEDGER_ENABLED, false);
+        if (!enabled) {
+            return;
+        }
+        try {
+            PortletPreferences preferences = getPreferences();
+            for (Map.Entry<String, String[]> e : preferences.getMap().entrySet()) {
+                if (e.getKey().startsWith(PREFERENCE_PREFIX) && e.getValue().length > 0) {
+                    HASHES.put(e.getKey().substring(PREFERENCE_PREFIX.length()), e.getValue()[0]);
+                }
+            }
+            LOG.info("Change ledger loaded with " + HASHES.size() + " entries");
+            moveFromCompanyPreferences();
+        } catch (Exception e) {
+            LOG.error("Cannot load the change ledger, all entities will be written", e);
+            enabled = false;
+        }
+    }
+
+    /**
+     * Stores the hashes recorded during this run, called at the end of every
+     * run.
+     */
+    public static void flush() {
+        if (!enabled || CHANGED.isEmpty()) {
+            return;
+        }
+        try {
+            PortletPreferences preferences = getPreferences();
+            for (Map.Entry<String, String> e : CHANGED.entrySet()) {
+                preferences.setValue(PREFERENCE_PREFIX + e.getKey(), e.getValue());
+            }
+            preferences.store();
+            LOG.info("Change ledger stored with " + CHANGED.size() + " changed entries");
+            CHANGED.clear();
+        } catch (Exception e) {
+            LOG.error("Cannot store the change ledger", e);
+        }
+    }
+
+    /**
+     * Returns true if the entity was written with the same hash before. Always
+     * false if the ledger is disabled or the hash could not be computed.
+     */
+    public static boolean isUnchanged(final Type type, final long groupId, final String key,
+                                      final String hash) {
+        return enabled && hash != null && hash.equals(HASHES.get(toKey(type, groupId, key)));
+    }
+
+    /**
+     * Records the hash of a written entity.
+     */
+    public static void record(final Type type, final long groupId, final String key,
+                              final String hash) {
+        if (enabled && hash != null) {
+            String ledgerKey = toKey(type, groupId, key);
+            HASHES.put(ledgerKey, hash);
+            CHANGED.put(ledgerKey, hash);
+        }
+    }
+
+    /**
+     * Computes a SHA-256 hash over the given parts. Strings, byte arrays and
+     * streams are hashed as they are, setup definition elements in their XML
+     * form. Streams are read to the end but not closed.
+     * Returns null if the ledger is disabled or a part cannot be marshalled.
+     */
+    public static String hash(final Object... parts) {
+        MessageDigest digest = startHash(parts);
+        return digest == null ? null : toHex(digest.digest());
+    }
+
+    /**
+     * Starts a hash over the given parts like {@link #hash(Object...)}, to be
+     * continued with the content of a stream that is read elsewhere, e.g.
+     * through a {@link java.security.DigestInputStream}. The hash is the same
+     * as if the stream were the last part.
+     * Returns null if the ledger is disabled or a part cannot be marshalled.
+     */
+    public static MessageDigest startHash(final Object... parts) {
+        if (!enabled) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Object part : parts) {
+                if (part instanceof byte[]) {
+                    digest.update((byte[]) part);
+                } else if (part instanceof InputStream) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = ((InputStream) part).read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+                } else if (part instanceof String || part instanceof Number || part instanceof Boolean) {
+                    digest.update(part.toString().getBytes(StandardCharsets.UTF_8));
+                } else if (part != null) {
+                    digest.update(MarshallUtil.marshallFragment(part).getBytes(StandardCharsets.UTF_8));
+                }
+                digest.update((byte) 0);
+            }
+            return digest;
+        } catch (NoSuchAlgorithmException | JAXBException | IOException e) {
+            LOG.warn("Cannot compute hash, entity will be written", e);
+            return null;
+        }
+    }
+
+    /**
+     * Completes a hash started by {@link #startHash(Object...)} once the
+     * content of the stream is added.
+     */
+    public static String finishHash(final MessageDigest digest) {
+        digest.update((byte) 0);
+        return toHex(digest.digest());
+    }
+
+    private static PortletPreferences getPreferences() {
+        return PortalPreferencesLocalServiceUtil.getPreferences(companyId, OWNER_TYPE_LEDGER);
+    }
+
+    /**
+     * Moves the entries that earlier versions kept in the company preferences
+     * into the ledger.
+     */
+    private static void moveFromCompanyPreferences() throws Exception {
+        PortletPreferences preferences = PortalPreferencesLocalServiceUtil.getPreferences(companyId,
+                PortletKeys.PREFS_OWNER_TYPE_COMPANY);
+        int moved = 0;
+        for (Map.Entry<String, String[]> e : new HashMap<>(preferences.getMap()).entrySet()) {
+            if (e.getKey().startsWith(PREFERENCE_PREFIX)) {
+                String key = e.getKey().substring(PREFERENCE_PREFIX.length());
+                if (e.getValue().length > 0 && !HASHES.containsKey(key)) {
+                    HASHES.put(key, e.getValue()[0]);
+                    CHANGED.put(key, e.getValue()[0]);
+                }
+                preferences.reset(e.getKey());
+                moved++;
+            }
+        }
+        if (moved > 0) {
+            preferences.store();
+            LOG.info("Moved " + moved + " change ledger entries out of the company preferences");
+        }
+    }
+
+    private static String toKey(final Type type, final long groupId, final String key) {
+        return type.name() + "." + groupId + "." + key;
+    }
+
+    private static String toHex(final byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
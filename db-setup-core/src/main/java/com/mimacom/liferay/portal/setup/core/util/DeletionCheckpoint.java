@@ -0,0 +1,124 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.service.PortalPreferencesLocalServiceUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PortletKeys;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.TreeSet;
+
+import javax.portlet.PortletPreferences;
+
+/**
+ * Remembers how far a long running deletion got, so that an interrupted
+ * deletion resumes where it stopped instead of starting over. The checkpoint
+ * is the id of the last processed entity, it is kept in the company portal
+ * preferences together with a fingerprint of the entities excluded from the
+ * deletion. A checkpoint of another exclusion list is ignored.
+ */
+public final class DeletionCheckpoint {
+
+    private static final Log LOG = LogFactoryUtil.getLog(DeletionCheckpoint.class);
+    private static final String PREFERENCE_PREFIX = "db.setup.delete.checkpoint.";
+    private static final String SEPARATOR = ":";
+
+    private DeletionCheckpoint() {
+
+    }
+
+    /**
+     * @return a SHA-256 fingerprint of the given keys, independent of their
+     * order.
+     */
+    public static String fingerprint(final Collection<String> keys) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (String key : new TreeSet<>(keys)) {
+            digest.update(key.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the id of the last processed entity, 0 if the deletion has to
+     * start from the beginning.
+     */
+    public static long load(final long companyId, final String name, final String fingerprint) {
+        String value = getPreferences(companyId).getValue(PREFERENCE_PREFIX + name, null);
+        if (value == null || !value.startsWith(fingerprint + SEPARATOR)) {
+            return 0L;
+        }
+        return GetterUtil.getLong(value.substring(fingerprint.length() + SEPARATOR.length()));
+    }
+
+    public static void save(final long companyId, final String name, final String fingerprint,
+                            final long lastId) {
+        store(companyId, name, fingerprint + SEPARATOR + lastId);
+    }
+
+    /**
+     * Removes the checkpoint once the deletion is complete.
+     */
+    public static void clear(final long companyId, final String name) {
+        store(companyId, name, null);
+    }
+
+    private static void store(final long companyId, final String name, final String value) {
+        try {
+            PortletPreferences preferences = getPreferences(companyId);
+            if (value == null) {
+                preferences.reset(PREFERENCE_PREFIX + name);
+            } else {
+                preferences.setValue(PREFERENCE_PREFIX + name, value);
+            }
+            preferences.store();
+        } catch (Exception e) {
+            LOG.error("Cannot store the deletion checkpoint of " + name, e);
+        }
+    }
+
+    private static PortletPreferences getPreferences(final long companyId) {
+        return PortalPreferencesLocalServiceUtil.getPreferences(companyId,
+                PortletKeys.PREFS_OWNER_TYPE_COMPANY);
+    }
+}
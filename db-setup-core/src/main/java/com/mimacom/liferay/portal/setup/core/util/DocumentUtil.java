@@ -27,8 +27,10 @@ package com.mimacom.liferay.portal.setup.core.util;
  */
 
 import com.liferay.document.library.kernel.exception.NoSuchFileEntryException;
+import com.liferay.document.library.kernel.model.DLFileVersion;
 import com.liferay.document.library.kernel.service.DLAppHelperLocalServiceUtil;
 import com.liferay.document.library.kernel.service.DLAppLocalServiceUtil;
+import com.liferay.document.library.kernel.service.DLFileVersionLocalServiceUtil;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.SystemException;
 import com.liferay.portal.kernel.log.Log;
@@ -38,6 +40,13 @@ import com.liferay.portal.kernel.repository.model.Folder;
 import com.liferay.portal.kernel.service.ServiceContext;
 import com.liferay.portal.kernel.service.ServiceContextFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
 /**
  * This utility allows to manage documents of the documents and media library.
  *
@@ -46,6 +55,8 @@ import com.liferay.portal.kernel.service.ServiceContextFactory;
 public final class DocumentUtil {
 
     private static final Log LOG = LogFactoryUtil.getLog(DocumentUtil.class);
+    private static final String CHECKSUM_ALGORITHM = "SHA-1";
+    private static final int CHECKSUM_BUFFER_SIZE = 8192;
 
     private DocumentUtil() {
 
@@ -83,6 +94,26 @@ public final class DocumentUtil {
         return entry;
     }
 
+    /**
+     * Retrieves the file entry of a document in a known folder.
+     *
+     * @param documentName the name of the document (i.e., title).
+     * @param groupId      the id of the group to which this document belongs to.
+     * @param folderId     the id of the folder, 0 for the root folder.
+     * @return the file entry, null if there is none.
+     */
+    public static FileEntry findDocument(final String documentName, final long groupId,
+                                         final long folderId) {
+        try {
+            return DLAppLocalServiceUtil.getFileEntry(groupId, folderId, documentName);
+        } catch (NoSuchFileEntryException e) {
+            LOG.info("Document not found: " + documentName);
+        } catch (PortalException | SystemException e) {
+            LOG.error("Error while trying to find document: " + documentName);
+        }
+        return null;
+    }
+
     /**
      * Finds a document by looking it up with a given document name (title) for
      * a given group of a given company.
@@ -124,12 +155,98 @@ public final class DocumentUtil {
      */
     public static void updateFile(final FileEntry fe, final byte[] content, final long userId,
                                   final String sourceFileName) {
+        updateFile(fe, new ByteArrayInputStream(content), content.length, userId, sourceFileName);
+    }
+
+    /**
+     * Updates a given file entry with the content of a stream, the content is
+     * never held in memory as a whole.
+     *
+     * @param fe             The file entry to be updated with a given content.
+     * @param content        The content to be updated, not closed.
+     * @param size           The size of the content in bytes.
+     * @param userId         The user id of the updating user.
+     * @param sourceFileName The filename of the file.
+     * @return the updated file entry, null if the update failed.
+     */
+    public static FileEntry updateFile(final FileEntry fe, final InputStream content, final long size,
+                                       final long userId, final String sourceFileName) {
         try {
-            DLAppLocalServiceUtil.updateFileEntry(userId, fe.getFileEntryId(), sourceFileName,
+            SetupMetrics.call("DLAppLocalService.updateFileEntry");
+            return DLAppLocalServiceUtil.updateFileEntry(userId, fe.getFileEntryId(), sourceFileName,
                     fe.getMimeType(), fe.getTitle(), fe.getDescription(), "update content", true,
-                    content, new ServiceContext());
+                    content, size, IndexerUtil.newServiceContext());
         } catch (Exception e) {
             LOG.error("Can not update Liferay Document entry with ID:" + fe.getFileEntryId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return a digest in the format of the checksums of file versions.
+     */
+    public static MessageDigest newChecksumDigest() {
+        try {
+            return MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(CHECKSUM_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * @return the digest in the format of the checksums of file versions.
+     */
+    public static String toChecksum(final MessageDigest digest) {
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Computes the checksum of the stream with a bounded buffer, the stream
+     * is read to the end but not closed.
+     */
+    public static String getChecksum(final InputStream content) throws IOException {
+        MessageDigest digest = newChecksumDigest();
+        byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return toChecksum(digest);
+    }
+
+    /**
+     * Returns true if the latest version of the file entry has the given
+     * checksum.
+     */
+    public static boolean hasChecksum(final FileEntry fe, final String checksum) {
+        if (checksum == null) {
+            return false;
+        }
+        try {
+            Object model = fe.getFileVersion().getModel();
+            return model instanceof DLFileVersion && checksum.equals(((DLFileVersion) model).getChecksum());
+        } catch (PortalException e) {
+            LOG.warn("Can not get the latest version of document " + fe.getTitle(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Records the checksum on the latest version of the file entry, so that
+     * unchanged content is recognized by the next setup.
+     */
+    public static void setChecksum(final FileEntry fe, final String checksum) {
+        try {
+            Object model = fe.getFileVersion().getModel();
+            if (model instanceof DLFileVersion) {
+                DLFileVersion fileVersion = (DLFileVersion) model;
+                if (!checksum.equals(fileVersion.getChecksum())) {
+                    fileVersion.setChecksum(checksum);
+                    DLFileVersionLocalServiceUtil.updateDLFileVersion(fileVersion);
+                }
+            }
+        } catch (PortalException | SystemException e) {
+            LOG.warn("Can not record the checksum of document " + fe.getTitle(), e);
         }
     }
 
@@ -167,6 +284,21 @@ public final class DocumentUtil {
     public static FileEntry createDocument(final long companyId, final long groupId,
                                            final long folderId, final String fileName, final String title, final long userId,
                                            final long repoId, final byte[] content) {
+        return createDocument(companyId, groupId, folderId, fileName, title, userId, repoId,
+                new ByteArrayInputStream(content), content.length);
+    }
+
+    /**
+     * Creates a document from the content of a stream, the content is never
+     * held in memory as a whole.
+     *
+     * @param content   the content of the file to be stored, not closed.
+     * @param size      the size of the content in bytes.
+     * @see #createDocument(long, long, long, String, String, long, long, byte[])
+     */
+    public static FileEntry createDocument(final long companyId, final long groupId,
+                                           final long folderId, final String fileName, final String title, final long userId,
+                                           final long repoId, final InputStream content, final long size) {
         String fname = FilePathUtil.getFileName(fileName);
         String extension = FilePathUtil.getExtension(fname);
         String mtype = MimeTypeMapper.getInstance().getMimeType(extension);
@@ -182,8 +314,9 @@ public final class DocumentUtil {
         }
         if (fileEntry == null) {
             try {
+                SetupMetrics.call("DLAppLocalService.addFileEntry");
                 fileEntry = DLAppLocalServiceUtil.addFileEntry(userId, repoId, folderId, fname,
-                        mtype, title, title, "Mimacom import", content, new ServiceContext());
+                        mtype, title, title, "Mimacom import", content, size, IndexerUtil.newServiceContext());
             } catch (PortalException e) {
                 LOG.error("Error while trying to add file entry: " + title, e);
             } catch (SystemException e) {
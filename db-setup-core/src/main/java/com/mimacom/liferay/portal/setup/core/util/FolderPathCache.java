@@ -0,0 +1,144 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Memoizes the folders resolved by path during one setup run, as one trie of
+ * path segments per folder type and group. A path shares the nodes of its
+ * parent folders with all other paths below them, so every folder is looked up
+ * only once no matter how many paths run through it. Folders are added when
+ * they are looked up or created, missing folders are not cached.
+ */
+public final class FolderPathCache {
+
+    private static final Log LOG = LogFactoryUtil.getLog(FolderPathCache.class);
+    private static final String SEPARATOR = "/";
+    private static final Map<String, Node> ROOTS = new ConcurrentHashMap<>();
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private FolderPathCache() {
+
+    }
+
+    /**
+     * Type of the cached folders.
+     */
+    public enum Type {
+        DOCUMENT_FOLDER, WEB_FOLDER
+    }
+
+    /**
+     * Looks up or creates a single folder on a cache miss.
+     *
+     * @param <T> the type of the folder.
+     */
+    public interface Loader<T> {
+        /**
+         * @return the folder with the given name, null if there is none.
+         */
+        T load(long parentFolderId, String name);
+    }
+
+    /**
+     * Resolves the folder with the given path segment by segment, only the
+     * segments not in the cache are passed to the loader.
+     *
+     * @param path     the folder path, empty segments are ignored.
+     * @param folderId returns the id of a folder.
+     * @return the folder, null if a segment can not be loaded or the path
+     * has no segments.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T get(final Type type, final long groupId, final String path,
+                            final ToLongFunction<T> folderId, final Loader<T> loader) {
+        Node node = ROOTS.computeIfAbsent(type.name() + SEPARATOR + groupId, k -> new Node(null));
+        T folder = null;
+        long parentId = 0L;
+        for (String segment : path.split(SEPARATOR)) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            Node child = node.children.get(segment);
+            if (child == null) {
+                MISSES.incrementAndGet();
+                T loaded = loader.load(parentId, segment);
+                if (loaded == null) {
+                    return null;
+                }
+                child = node.children.computeIfAbsent(segment, k -> new Node(loaded));
+            } else {
+                HITS.incrementAndGet();
+            }
+            node = child;
+            folder = (T) child.folder;
+            parentId = folderId.applyAsLong(folder);
+        }
+        return folder;
+    }
+
+    /**
+     * Removes all folders of the given type belonging to the given group.
+     */
+    public static void invalidateAll(final Type type, final long groupId) {
+        ROOTS.remove(type.name() + SEPARATOR + groupId);
+    }
+
+    /**
+     * Empties the cache and resets the counters, called at the start of every
+     * setup run.
+     */
+    public static void clear() {
+        ROOTS.clear();
+        HITS.set(0);
+        MISSES.set(0);
+    }
+
+    public static void logStatistics() {
+        LOG.info("Folder path cache: " + HITS.get() + " hits, " + MISSES.get() + " misses");
+    }
+
+    /**
+     * A resolved folder and the resolved folders below it by name.
+     */
+    private static final class Node {
+        private final Object folder;
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+
+        private Node(final Object folder) {
+            this.folder = folder;
+        }
+    }
+}
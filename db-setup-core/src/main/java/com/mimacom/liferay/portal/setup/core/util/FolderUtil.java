@@ -47,34 +47,27 @@ public final class FolderUtil {
 
     }
 
+    /**
+     * Resolves a folder by its path, the folders already resolved during the
+     * setup run are taken from the {@link FolderPathCache}.
+     */
     public static Folder findFolder(final long company, final long groupId, final long repoId,
                                     final long userId, final String name, final boolean createIfNotExists) {
-        String[] folderPath = name.split("/");
-        Folder foundFolder = null;
-        int count = 0;
-        Long parentId = 0L;
-        while (count < folderPath.length) {
-            String folder = folderPath[count];
-            if (!folder.equals("")) {
-                foundFolder = findFolder(groupId, parentId, folder);
-
-                if (foundFolder == null && createIfNotExists) {
-                    foundFolder = createDocumentFolder(company, groupId, repoId, userId, parentId,
-                            folder);
-                    SetupPermissions.updatePermission(
-                            "Folder " + name + ", creating folder " + "segment " + folder, groupId,
-                            company, foundFolder.getFolderId(), JournalFolder.class, null,
-                            SetupWebFolders.DEFAULT_PERMISSIONS);
-                }
-
-                if (foundFolder == null) {
-                    break;
-                }
-                parentId = foundFolder.getFolderId();
-            }
-            count++;
-        }
-        return foundFolder;
+        return FolderPathCache.get(FolderPathCache.Type.DOCUMENT_FOLDER, groupId, name,
+                Folder::getFolderId, (parentId, folder) -> {
+                    Folder foundFolder = findFolder(groupId, parentId, folder);
+                    if (foundFolder == null && createIfNotExists) {
+                        foundFolder = createDocumentFolder(company, groupId, repoId, userId, parentId,
+                                folder);
+                        if (foundFolder != null) {
+                            SetupPermissions.updatePermission(
+                                    "Folder " + name + ", creating folder " + "segment " + folder, groupId,
+                                    company, foundFolder.getFolderId(), JournalFolder.class, null,
+                                    SetupWebFolders.DEFAULT_PERMISSIONS);
+                        }
+                    }
+                    return foundFolder;
+                });
     }
 
     public static Folder findFolder(final Long groupId, final Long parentFolderId,
@@ -27,12 +27,38 @@ package com.mimacom.liferay.portal.setup.core.util;
  */
 
 
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.search.Indexer;
 import com.liferay.portal.kernel.search.IndexerRegistryUtil;
 import com.liferay.portal.kernel.search.SearchException;
+import com.liferay.portal.kernel.service.ServiceContext;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reindexing of setup entities. With {@link SetupProps#DEFERRED_INDEXING}
+ * the writes of the entities tracked with {@link #defer(Class, long)} are not
+ * indexed, the touched entities are recorded and reindexed in parallel chunks
+ * at the end of the run. All other writes are indexed as usual.
+ */
 public final class IndexerUtil {
 
+    private static final Log LOG = LogFactoryUtil.getLog(IndexerUtil.class);
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_CHUNK_SIZE = 100;
+    private static final Map<String, Set<Long>> TOUCHED = new ConcurrentHashMap<>();
+    private static volatile boolean deferred;
+
     private IndexerUtil() {
 
     }
@@ -47,4 +73,106 @@ public final class IndexerUtil {
             e.printStackTrace();
         }
     }
+
+    public static boolean isDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Enables deferred indexing for this run, if it is configured.
+     */
+    public static void startDeferredIndexing() {
+        TOUCHED.clear();
+        deferred = SetupProps.getBoolean(SetupProps.DEFERRED_INDEXING, false);
+        if (deferred) {
+            LOG.info("Indexing of articles, documents, users and categories is deferred to the end of the setup");
+        }
+    }
+
+    /**
+     * Returns a new service context for a write of an entity that is recorded
+     * with {@link #defer(Class, long)}. Its indexing is disabled if indexing
+     * is deferred.
+     */
+    public static ServiceContext newServiceContext() {
+        ServiceContext serviceContext = new ServiceContext();
+        serviceContext.setIndexingEnabled(!deferred);
+        return serviceContext;
+    }
+
+    /**
+     * Records an entity that has to be reindexed at the end of the run. Does
+     * nothing if indexing is not deferred.
+     */
+    public static void defer(final Class<?> modelClass, final long classPK) {
+        if (deferred) {
+            TOUCHED.computeIfAbsent(modelClass.getName(), c -> ConcurrentHashMap.newKeySet()).add(classPK);
+        }
+    }
+
+    /**
+     * Reindexes all recorded entities.
+     */
+    public static void finishDeferredIndexing() {
+        if (!deferred) {
+            return;
+        }
+        deferred = false;
+
+        int chunkSize = Math.max(1, SetupProps.getInteger(SetupProps.INDEXING_CHUNK_SIZE, DEFAULT_CHUNK_SIZE));
+        List<Runnable> chunks = new ArrayList<>();
+        AtomicInteger done = new AtomicInteger();
+        int total = 0;
+        for (Map.Entry<String, Set<Long>> e : TOUCHED.entrySet()) {
+            Indexer indexer = IndexerRegistryUtil.getIndexer(e.getKey());
+            if (indexer == null) {
+                LOG.warn("No indexer found for " + e.getKey());
+                continue;
+            }
+            List<Long> classPKs = new ArrayList<>(e.getValue());
+            total += classPKs.size();
+            for (int i = 0; i < classPKs.size(); i += chunkSize) {
+                List<Long> chunk = classPKs.subList(i, Math.min(i + chunkSize, classPKs.size()));
+                chunks.add(SetupExecutor.withContext(() -> reindex(indexer, e.getKey(), chunk, done)));
+            }
+        }
+        TOUCHED.clear();
+        if (total == 0) {
+            return;
+        }
+        LOG.info("Reindexing " + total + " entities in " + chunks.size() + " chunks");
+        long start = System.currentTimeMillis();
+        int threads = Math.min(chunks.size(), SetupProps.getInteger(SetupProps.INDEXING_THREADS, DEFAULT_THREADS));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Runnable chunk : chunks) {
+                futures.add(executor.submit(chunk));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Reindexing interrupted after " + done.get() + " of " + total + " entities", e);
+        } catch (ExecutionException e) {
+            LOG.error("Reindexing failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        LOG.info("Reindexed " + done.get() + " of " + total + " entities in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static void reindex(final Indexer indexer, final String className, final List<Long> classPKs,
+                                final AtomicInteger done) {
+        for (long classPK : classPKs) {
+            try {
+                indexer.reindex(className, classPK);
+            } catch (SearchException e) {
+                LOG.error("Cannot reindex " + className + " " + classPK, e);
+            }
+        }
+        LOG.info("Reindexed " + done.addAndGet(classPKs.size()) + " entities");
+    }
 }
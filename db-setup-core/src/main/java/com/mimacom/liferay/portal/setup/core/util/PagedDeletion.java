@@ -0,0 +1,226 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.OrderFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
+import com.liferay.portal.kernel.exception.PortalException;
+import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.transaction.Propagation;
+import com.liferay.portal.kernel.transaction.TransactionConfig;
+import com.liferay.portal.kernel.transaction.TransactionInvokerUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deletes all entities of a type except the listed ones, as done by the
+ * "excludeListed" delete method, without loading all entities at once. The
+ * candidates are read in chunks ordered by id, see
+ * {@link SetupProps#DELETE_CHUNK_SIZE}, restricted by company and type in the
+ * query. The entities of a chunk are deleted in transactions of up to
+ * {@link Target#getTransactionSize()} entities, run by up to
+ * {@link SetupProps#DELETE_THREADS} threads. The id of the last finished
+ * chunk is kept as {@link DeletionCheckpoint}, an interrupted deletion
+ * resumes after it when it is run again with the same list.
+ */
+public final class PagedDeletion {
+
+    private static final Log LOG = LogFactoryUtil.getLog(PagedDeletion.class);
+    private static final int DEFAULT_CHUNK_SIZE = 500;
+    private static final int DEFAULT_TRANSACTION_SIZE = 50;
+    private static final int DEFAULT_THREADS = 1;
+    private static final TransactionConfig DELETE_TRANSACTION = TransactionConfig.Factory.create(
+            Propagation.REQUIRED, new Class<?>[] {Exception.class});
+
+    private PagedDeletion() {
+
+    }
+
+    /**
+     * The type of entities to be deleted.
+     *
+     * @param <T> the type of the entities.
+     */
+    public abstract static class Target<T> {
+        private final String name;
+        private final String idProperty;
+        private final int defaultTransactionSize;
+
+        /**
+         * A target deleted in transactions of
+         * {@link SetupProps#DELETE_TRANSACTION_SIZE} entities.
+         *
+         * @param name       the name of the entities, used in the report and
+         *                   as name of the checkpoint.
+         * @param idProperty the property of the primary key, the entities are
+         *                   read in its order.
+         */
+        protected Target(final String name, final String idProperty) {
+            this(name, idProperty, SetupProps.getInteger(SetupProps.DELETE_TRANSACTION_SIZE,
+                    DEFAULT_TRANSACTION_SIZE));
+        }
+
+        /**
+         * @param defaultTransactionSize the entities deleted in one
+         *                               transaction, 1 for entities whose
+         *                               deletion has side effects outside
+         *                               the database (files, search index)
+         *                               that a rollback would not undo.
+         */
+        protected Target(final String name, final String idProperty, final int defaultTransactionSize) {
+            this.name = name;
+            this.idProperty = idProperty;
+            this.defaultTransactionSize = defaultTransactionSize;
+        }
+
+        /**
+         * @return the entities deleted in one transaction, configured by
+         * {@link SetupProps#DELETE_TRANSACTION_SIZE} followed by the name of
+         * the target, e.g. {@code db.setup.delete.transaction.size.users}.
+         */
+        protected int getTransactionSize() {
+            return Math.max(1, SetupProps.getInteger(SetupProps.DELETE_TRANSACTION_SIZE + "." + name,
+                    defaultTransactionSize));
+        }
+
+        /**
+         * @return a query of all candidates, restricted by company and type.
+         */
+        protected abstract DynamicQuery createQuery();
+
+        protected abstract List<T> find(DynamicQuery query, int start, int end);
+
+        protected abstract long getId(T entity);
+
+        /**
+         * @return the key compared with the listed entities.
+         */
+        protected abstract String getKey(T entity);
+
+        protected abstract void delete(T entity) throws PortalException;
+
+        /**
+         * @return true for system entities that must never be deleted.
+         */
+        protected boolean isProtected(final T entity) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes all entities of the target except the ones with the given keys.
+     */
+    public static <T> void deleteAllExcept(final long companyId, final Set<String> excludedKeys,
+                                           final Target<T> target) {
+        long started = System.currentTimeMillis();
+        String fingerprint = DeletionCheckpoint.fingerprint(excludedKeys);
+        long lastId = DeletionCheckpoint.load(companyId, target.name, fingerprint);
+        if (lastId > 0) {
+            LOG.info("Resuming the deletion of " + target.name + " after id " + lastId);
+        }
+        int chunkSize = Math.max(1, SetupProps.getInteger(SetupProps.DELETE_CHUNK_SIZE, DEFAULT_CHUNK_SIZE));
+        int transactionSize = target.getTransactionSize();
+        int threads = SetupProps.getInteger(SetupProps.DELETE_THREADS, DEFAULT_THREADS);
+        long scanned = 0;
+        LongAdder deleted = new LongAdder();
+        LongAdder failed = new LongAdder();
+        List<T> chunk;
+        do {
+            DynamicQuery dq = target.createQuery()
+                    .add(PropertyFactoryUtil.forName(target.idProperty).gt(lastId))
+                    .addOrder(OrderFactoryUtil.asc(target.idProperty));
+            try {
+                chunk = target.find(dq, 0, chunkSize);
+            } catch (SystemException e) {
+                LOG.error("Unable to read " + target.name, e);
+                return;
+            }
+            scanned += chunk.size();
+            List<List<T>> batches = new ArrayList<>();
+            List<T> batch = new ArrayList<>();
+            for (T entity : chunk) {
+                if (excludedKeys.contains(target.getKey(entity))) {
+                    continue;
+                }
+                if (target.isProtected(entity)) {
+                    LOG.info("Skipping deletion of system " + target.name + " " + target.getKey(entity));
+                    continue;
+                }
+                batch.add(entity);
+                if (batch.size() == transactionSize) {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                batches.add(batch);
+            }
+            SetupExecutor.runGraph(batches, Collections.emptyMap(), threads,
+                    b -> deleteBatch(target, b, deleted, failed));
+            if (!chunk.isEmpty()) {
+                lastId = target.getId(chunk.get(chunk.size() - 1));
+                DeletionCheckpoint.save(companyId, target.name, fingerprint, lastId);
+            }
+        } while (chunk.size() == chunkSize);
+        DeletionCheckpoint.clear(companyId, target.name);
+        LOG.info("Deleted " + deleted.sum() + " of " + scanned + " " + target.name + ", " + failed.sum()
+                + " failed, in " + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    private static <T> void deleteBatch(final Target<T> target, final List<T> batch,
+                                        final LongAdder deleted, final LongAdder failed) {
+        try {
+            TransactionInvokerUtil.invoke(DELETE_TRANSACTION, () -> {
+                for (T entity : batch) {
+                    target.delete(entity);
+                }
+                return null;
+            });
+            deleted.add(batch.size());
+            for (T entity : batch) {
+                LOG.info("Deleted " + target.name + " " + target.getKey(entity));
+            }
+        } catch (Throwable t) {
+            if (batch.size() == 1) {
+                failed.increment();
+                LOG.error("Unable to delete " + target.name + " " + target.getKey(batch.get(0)), t);
+                return;
+            }
+            // the whole transaction is rolled back, the entities are deleted one by one to find the failing ones
+            for (T entity : batch) {
+                deleteBatch(target, Collections.singletonList(entity), deleted, failed);
+            }
+        }
+    }
+}
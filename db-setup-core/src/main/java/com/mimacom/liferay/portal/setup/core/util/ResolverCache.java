@@ -0,0 +1,207 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.exception.PortalException;
+import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memoizes the look ups done by {@link ResolverUtil} during one setup run.
+ * Entries are keyed by the type of the looked up entity, the group (or company
+ * for company wide entities) and the natural key of the entity. Only
+ * successful look ups are cached, the least recently used entries are evicted
+ * once {@link SetupProps#RESOLVER_CACHE_SIZE} entries are reached.
+ */
+public final class ResolverCache {
+
+    private static final Log LOG = LogFactoryUtil.getLog(ResolverCache.class);
+    private static final int DEFAULT_SIZE = 10000;
+    private static final int MAX_ENTRIES = SetupProps.getInteger(SetupProps.RESOLVER_CACHE_SIZE,
+            DEFAULT_SIZE);
+    private static final String SEPARATOR = "#";
+    private static final Map<String, Object> CACHE = new LinkedHashMap<String, Object>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Object> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private ResolverCache() {
+
+    }
+
+    /**
+     * Type of the cached entity.
+     */
+    public enum Type {
+        SITE, STRUCTURE, TEMPLATE, TEMPLATE_UUID, ARTICLE, FILE, PAGE, DDL_RECORD_SET, ORGANIZATION,
+        USER_GROUP, CLASS_NAME, CATEGORY
+    }
+
+    /**
+     * Loads an entity on a cache miss.
+     *
+     * @param <T> the type of the loaded entity.
+     */
+    public interface Loader<T> {
+        T load() throws PortalException, SystemException;
+    }
+
+    /**
+     * Returns the cached entity or loads and caches it. A null result of the
+     * loader is not cached.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T get(final Type type, final long groupId, final String key,
+                            final Loader<T> loader) throws PortalException, SystemException {
+        String cacheKey = toKey(type, groupId, key);
+        Object value;
+        synchronized (CACHE) {
+            value = CACHE.get(cacheKey);
+        }
+        if (value != null) {
+            HITS.incrementAndGet();
+            return (T) value;
+        }
+        MISSES.incrementAndGet();
+        T loaded = loader.load();
+        if (loaded != null) {
+            synchronized (CACHE) {
+                CACHE.put(cacheKey, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Returns the cached entity or null, for look ups that do not fit into a
+     * {@link Loader}. Successful look ups have to be stored with
+     * {@link #put(Type, long, String, Object)}.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T get(final Type type, final long groupId, final String key) {
+        Object value;
+        synchronized (CACHE) {
+            value = CACHE.get(toKey(type, groupId, key));
+        }
+        if (value == null) {
+            MISSES.incrementAndGet();
+        } else {
+            HITS.incrementAndGet();
+        }
+        return (T) value;
+    }
+
+    /**
+     * Returns true if the entity is cached, without counting a hit or a miss.
+     */
+    public static boolean contains(final Type type, final long groupId, final String key) {
+        synchronized (CACHE) {
+            return CACHE.containsKey(toKey(type, groupId, key));
+        }
+    }
+
+    public static void put(final Type type, final long groupId, final String key,
+                           final Object value) {
+        if (value == null) {
+            return;
+        }
+        synchronized (CACHE) {
+            CACHE.put(toKey(type, groupId, key), value);
+        }
+    }
+
+    public static void invalidate(final Type type, final long groupId, final String key) {
+        synchronized (CACHE) {
+            CACHE.remove(toKey(type, groupId, key));
+        }
+    }
+
+    /**
+     * Removes all entries of the given type belonging to the given group.
+     */
+    public static void invalidateAll(final Type type, final long groupId) {
+        String prefix = type.name() + SEPARATOR + groupId + SEPARATOR;
+        synchronized (CACHE) {
+            CACHE.keySet().removeIf(k -> k.startsWith(prefix));
+        }
+    }
+
+    /**
+     * Removes all entries of the given type, regardless of the group.
+     */
+    public static void invalidateAll(final Type type) {
+        String prefix = type.name() + SEPARATOR;
+        synchronized (CACHE) {
+            CACHE.keySet().removeIf(k -> k.startsWith(prefix));
+        }
+    }
+
+    /**
+     * Empties the cache and resets the counters, called at the start of every
+     * setup run.
+     */
+    public static void clear() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+        HITS.set(0);
+        MISSES.set(0);
+    }
+
+    public static long getHits() {
+        return HITS.get();
+    }
+
+    public static long getMisses() {
+        return MISSES.get();
+    }
+
+    public static int size() {
+        synchronized (CACHE) {
+            return CACHE.size();
+        }
+    }
+
+    public static void logStatistics() {
+        LOG.info("Resolver cache: " + getHits() + " hits, " + getMisses() + " misses, " + size()
+                + " entries");
+    }
+
+    private static String toKey(final Type type, final long groupId, final String key) {
+        return type.name() + SEPARATOR + groupId + SEPARATOR + key;
+    }
+}
@@ -0,0 +1,306 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.liferay.asset.kernel.model.AssetEntry;
+import com.liferay.dynamic.data.mapping.model.DDMStructure;
+import com.liferay.dynamic.data.mapping.model.DDMTemplate;
+import com.liferay.dynamic.data.mapping.service.DDMStructureLocalServiceUtil;
+import com.liferay.dynamic.data.mapping.service.DDMTemplateLocalServiceUtil;
+import com.liferay.journal.model.JournalArticle;
+import com.liferay.journal.service.JournalArticleLocalServiceUtil;
+import com.liferay.portal.kernel.dao.orm.DynamicQuery;
+import com.liferay.portal.kernel.dao.orm.ProjectionFactoryUtil;
+import com.liferay.portal.kernel.dao.orm.PropertyFactoryUtil;
+import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.model.Layout;
+import com.liferay.portal.kernel.service.ClassNameLocalServiceUtil;
+import com.liferay.portal.kernel.service.LayoutLocalServiceUtil;
+import com.liferay.portal.kernel.workflow.WorkflowConstants;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Collects the references of many contents (e.g. all articles of a site) and
+ * loads the referred articles, structures, templates and pages with a few
+ * IN-queries into the {@link ResolverCache}. The substitution itself is still
+ * done by {@link ResolverUtil#lookupAll(long, long, long, String, String)},
+ * which then finds the prefetched entities in the cache. References that are
+ * cached already are not fetched again, references that are not found by the
+ * prefetch are looked up one by one as before.
+ */
+public final class ResolverPrefetch {
+
+    private static final Log LOG = LogFactoryUtil.getLog(ResolverPrefetch.class);
+    private static final int DEFAULT_CHUNK_SIZE = 500;
+    private static final int CHUNK_SIZE = SetupProps.getInteger(
+            SetupProps.RESOLVER_PREFETCH_CHUNK_SIZE, DEFAULT_CHUNK_SIZE);
+
+    private final long groupId;
+    private final long company;
+    private final Map<Long, Set<String>> articleIds = new HashMap<>();
+    private final Map<Class, Map<Long, Set<String>>> structureKeys = new HashMap<>();
+    private final Map<Class, Map<Long, Set<String>>> templateKeys = new HashMap<>();
+    private final Map<Boolean, Map<Long, Set<String>>> friendlyUrls = new HashMap<>();
+    private int queries;
+
+    /**
+     * @param groupId the group id in which references without a site
+     *                reference are looked up.
+     * @param company the company id.
+     */
+    public ResolverPrefetch(final long groupId, final long company) {
+        this.groupId = groupId;
+        this.company = company;
+    }
+
+    /**
+     * Collects all references of the given content, nothing is looked up yet.
+     */
+    public void collect(final String content, final String locationHint) {
+        ResolverUtil.substitute(content, locationHint, (key, argument) -> {
+            record(key, argument, locationHint);
+            return null;
+        });
+    }
+
+    /**
+     * Loads all collected references into the resolver cache. Nothing is
+     * queried if all of them are cached already.
+     */
+    public void fetch() {
+        if (articleIds.isEmpty() && structureKeys.isEmpty() && templateKeys.isEmpty()
+                && friendlyUrls.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int found = 0;
+        try {
+            found += fetchArticles();
+            for (Map.Entry<Class, Map<Long, Set<String>>> e : structureKeys.entrySet()) {
+                found += fetchStructures(e.getKey(), e.getValue());
+            }
+            for (Map.Entry<Class, Map<Long, Set<String>>> e : templateKeys.entrySet()) {
+                found += fetchTemplates(e.getKey(), e.getValue());
+            }
+            for (Map.Entry<Boolean, Map<Long, Set<String>>> e : friendlyUrls.entrySet()) {
+                found += fetchLayouts(e.getKey(), e.getValue());
+            }
+        } catch (SystemException e) {
+            LOG.error("Prefetching references failed, they will be looked up one by one", e);
+        }
+        LOG.info("Prefetched " + found + " references with " + queries + " queries in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void record(final String key, final String argument, final String locationHint) {
+        if (key.startsWith("ARTICLE-") && key.endsWith("-BY-ARTICLE-ID")) {
+            add(articleIds, argument, locationHint, ResolverCache.Type.ARTICLE, name -> name);
+        } else if (key.startsWith("ART-STRUCTURE-")) {
+            add(structureKeys, JournalArticle.class, argument, locationHint, ResolverCache.Type.STRUCTURE,
+                    name -> ResolverUtil.ddmCacheKey(JournalArticle.class, name, false));
+        } else if (key.equals("ART-TEMPLATE-ID-BY-KEY")) {
+            add(templateKeys, JournalArticle.class, argument, locationHint, ResolverCache.Type.TEMPLATE,
+                    name -> ResolverUtil.ddmCacheKey(JournalArticle.class, name, false));
+        } else if (key.equals("ADT-TEMPLATE-ID-BY-KEY")) {
+            add(templateKeys, AssetEntry.class, argument, locationHint, ResolverCache.Type.TEMPLATE,
+                    name -> ResolverUtil.ddmCacheKey(AssetEntry.class, name, false));
+        } else if (key.endsWith("-BY-FRIENDLY_URL")) {
+            boolean isPrivate = key.startsWith("PRIV-");
+            add(friendlyUrls, isPrivate, argument.trim(), locationHint, ResolverCache.Type.PAGE,
+                    url -> ResolverUtil.pageCacheKey(isPrivate, url));
+        }
+    }
+
+    private <K> void add(final Map<K, Map<Long, Set<String>>> keysBy, final K kind, final String reference,
+                         final String locationHint, final ResolverCache.Type type,
+                         final Function<String, String> cacheKey) {
+        Map<Long, Set<String>> keysByGroup = keysBy.computeIfAbsent(kind, k -> new HashMap<>());
+        add(keysByGroup, reference, locationHint, type, cacheKey);
+        if (keysByGroup.isEmpty()) {
+            keysBy.remove(kind);
+        }
+    }
+
+    private void add(final Map<Long, Set<String>> keysByGroup, final String reference,
+                     final String locationHint, final ResolverCache.Type type,
+                     final Function<String, String> cacheKey) {
+        long siteGroupId = groupId;
+        String name = reference;
+        String[] refSegs = ResolverUtil.separateSiteRef(reference);
+        if (!refSegs[0].equals("")) {
+            siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company, locationHint);
+            name = refSegs[1];
+        }
+        if (!ResolverCache.contains(type, siteGroupId, cacheKey.apply(name))) {
+            keysByGroup.computeIfAbsent(siteGroupId, g -> new HashSet<>()).add(name);
+        }
+    }
+
+    private int fetchArticles() {
+        int found = 0;
+        for (Map.Entry<Long, Set<String>> e : articleIds.entrySet()) {
+            long siteGroupId = e.getKey();
+            for (List<String> chunk : chunks(e.getValue())) {
+                // same as fetchLatestArticle: the highest approved version wins
+                Map<String, Double> latestVersions = fetchLatestVersions(siteGroupId, chunk);
+                if (latestVersions.isEmpty()) {
+                    continue;
+                }
+                DynamicQuery dq = approvedArticles(siteGroupId, chunk)
+                        .add(PropertyFactoryUtil.forName("version").in(new HashSet<>(latestVersions.values())));
+                List<JournalArticle> articles = JournalArticleLocalServiceUtil.dynamicQuery(dq);
+                queries++;
+                for (JournalArticle ja : articles) {
+                    // the version may be the latest one of another article
+                    Double latest = latestVersions.get(ja.getArticleId());
+                    if (latest != null && latest == ja.getVersion()) {
+                        ResolverCache.put(ResolverCache.Type.ARTICLE, siteGroupId, ja.getArticleId(), ja);
+                        found++;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the latest approved version by article id, only the versions
+     * are loaded.
+     */
+    private Map<String, Double> fetchLatestVersions(final long siteGroupId, final List<String> chunk) {
+        DynamicQuery dq = approvedArticles(siteGroupId, chunk)
+                .setProjection(ProjectionFactoryUtil.projectionList()
+                        .add(ProjectionFactoryUtil.groupProperty("articleId"))
+                        .add(ProjectionFactoryUtil.max("version")));
+        List<Object[]> rows = JournalArticleLocalServiceUtil.dynamicQuery(dq);
+        queries++;
+        Map<String, Double> latestVersions = new HashMap<>();
+        for (Object[] row : rows) {
+            latestVersions.put((String) row[0], ((Number) row[1]).doubleValue());
+        }
+        return latestVersions;
+    }
+
+    private static DynamicQuery approvedArticles(final long siteGroupId, final List<String> articleIds) {
+        return JournalArticleLocalServiceUtil.dynamicQuery()
+                .add(PropertyFactoryUtil.forName("groupId").eq(siteGroupId))
+                .add(PropertyFactoryUtil.forName("articleId").in(articleIds))
+                .add(PropertyFactoryUtil.forName("status").eq(WorkflowConstants.STATUS_APPROVED));
+    }
+
+    private int fetchStructures(final Class clazz, final Map<Long, Set<String>> keysByGroup) {
+        int found = 0;
+        long classNameId = ClassNameLocalServiceUtil.getClassNameId(clazz);
+        for (Map.Entry<Long, Set<String>> e : keysByGroup.entrySet()) {
+            long siteGroupId = e.getKey();
+            for (List<String> chunk : chunks(e.getValue())) {
+                DynamicQuery dq = DDMStructureLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("groupId").eq(siteGroupId))
+                        .add(PropertyFactoryUtil.forName("classNameId").eq(classNameId))
+                        .add(PropertyFactoryUtil.forName("structureKey").in(chunk));
+                List<DDMStructure> structures = DDMStructureLocalServiceUtil.dynamicQuery(dq);
+                queries++;
+                for (DDMStructure structure : structures) {
+                    ResolverCache.put(ResolverCache.Type.STRUCTURE, siteGroupId,
+                            ResolverUtil.ddmCacheKey(clazz, structure.getStructureKey(), false),
+                            structure);
+                }
+                found += structures.size();
+            }
+        }
+        return found;
+    }
+
+    private int fetchTemplates(final Class clazz, final Map<Long, Set<String>> keysByGroup) {
+        int found = 0;
+        long classNameId = ClassNameLocalServiceUtil.getClassNameId(clazz);
+        for (Map.Entry<Long, Set<String>> e : keysByGroup.entrySet()) {
+            long siteGroupId = e.getKey();
+            for (List<String> chunk : chunks(e.getValue())) {
+                DynamicQuery dq = DDMTemplateLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("groupId").eq(siteGroupId))
+                        .add(PropertyFactoryUtil.forName("classNameId").eq(classNameId))
+                        .add(PropertyFactoryUtil.forName("templateKey").in(chunk));
+                List<DDMTemplate> templates = DDMTemplateLocalServiceUtil.dynamicQuery(dq);
+                queries++;
+                for (DDMTemplate template : templates) {
+                    ResolverCache.put(ResolverCache.Type.TEMPLATE, siteGroupId,
+                            ResolverUtil.ddmCacheKey(clazz, template.getTemplateKey(), false),
+                            template);
+                }
+                found += templates.size();
+            }
+        }
+        return found;
+    }
+
+    private int fetchLayouts(final boolean isPrivate, final Map<Long, Set<String>> urlsByGroup) {
+        int found = 0;
+        for (Map.Entry<Long, Set<String>> e : urlsByGroup.entrySet()) {
+            long siteGroupId = e.getKey();
+            for (List<String> chunk : chunks(e.getValue())) {
+                DynamicQuery dq = LayoutLocalServiceUtil.dynamicQuery()
+                        .add(PropertyFactoryUtil.forName("groupId").eq(siteGroupId))
+                        .add(PropertyFactoryUtil.forName("privateLayout").eq(isPrivate))
+                        .add(PropertyFactoryUtil.forName("friendlyURL").in(chunk));
+                List<Layout> layouts = LayoutLocalServiceUtil.dynamicQuery(dq);
+                queries++;
+                for (Layout layout : layouts) {
+                    ResolverCache.put(ResolverCache.Type.PAGE, siteGroupId,
+                            ResolverUtil.pageCacheKey(isPrivate, layout.getFriendlyURL()), layout);
+                }
+                found += layouts.size();
+            }
+        }
+        return found;
+    }
+
+    private static List<List<String>> chunks(final Set<String> values) {
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> chunk = new ArrayList<>(Math.min(values.size(), CHUNK_SIZE));
+        for (String value : values) {
+            chunk.add(value);
+            if (chunk.size() == CHUNK_SIZE) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(CHUNK_SIZE);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+}
@@ -60,6 +60,7 @@ import com.liferay.portal.kernel.workflow.WorkflowConstants;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public final class ResolverUtil {
 
@@ -69,21 +70,23 @@ public final class ResolverUtil {
     public static final int ID_TYPE_RESOURCE = 2;
     public static final int ID_TYPE_FILE = 3;
     private static final Log LOG = LogFactoryUtil.getLog(ResolverUtil.class);
+    private static final String OPENING_TAG = "{{$";
     private static final String CLOSING_TAG = "$}}";
-    private static final String ARTICLE_BY_ART_ID = "{{$ARTICLE-%%IDTYPE%%-BY-ARTICLE-ID=";
-    private static final String TEMPLATE_BY_KEY = "{{$%%PREFIX%%-TEMPLATE-%%IDTYPE%%-BY-KEY=";
-    private static final String STRUCTURE_BY_KEY = "{{$%%PREFIX%%-STRUCTURE-%%IDTYPE%%-BY-KEY=";
-    private static final String FILE_REFERENCE_URL = "{{$FILE-URL=";
-    private static final String FILE_REFERENCE_ID = "{{$FILE-ID=";
-    private static final String FILE_REFERENCE_UUID = "{{$FILE-UUID=";
-    private static final String CLASS_ID_BY_NAME = "{{$CLASS-ID-BY-NAME=";
-    private static final String PAGE_ID_BY_FRIENDLY_URL = "{{$%%PTYPE%%-PAGE-%%LAYOUTID%%-BY-FRIENDLY_URL=";
-    private static final String DDL_REC_SET_BY_KEY = "{{$DDL-REC-SET-ID-BY-KEY=";
-    private static final String TEMPLATE_CATEGORY = "{{$CATEGORY-ID-BY-VOCABULARY-AND-PATH=";
+    private static final String KEY_SEPARATOR = "=";
+    private static final String ARTICLE_BY_ART_ID = "ARTICLE-%%IDTYPE%%-BY-ARTICLE-ID";
+    private static final String TEMPLATE_BY_KEY = "%%PREFIX%%-TEMPLATE-%%IDTYPE%%-BY-KEY";
+    private static final String STRUCTURE_BY_KEY = "%%PREFIX%%-STRUCTURE-%%IDTYPE%%-BY-KEY";
+    private static final String FILE_REFERENCE_URL = "FILE-URL";
+    private static final String FILE_REFERENCE_ID = "FILE-ID";
+    private static final String FILE_REFERENCE_UUID = "FILE-UUID";
+    private static final String CLASS_ID_BY_NAME = "CLASS-ID-BY-NAME";
+    private static final String PAGE_ID_BY_FRIENDLY_URL = "%%PTYPE%%-PAGE-%%LAYOUTID%%-BY-FRIENDLY_URL";
+    private static final String DDL_REC_SET_BY_KEY = "DDL-REC-SET-ID-BY-KEY";
+    private static final String TEMPLATE_CATEGORY = "CATEGORY-ID-BY-VOCABULARY-AND-PATH";
     private static final String DEFAULT_GROUP_NAME = "Guest";
-    private static final String ID_OF_SITE_WITH_NAME_KEY = "{{$ID_OF_SITE_WITH_NAME=";
+    private static final String ID_OF_SITE_WITH_NAME_KEY = "ID_OF_SITE_WITH_NAME";
     private static final String VALUE_SPLIT = "::";
-    private static final String ID_OF_ORG_USER_GROUP_WITH_NAME_KEY = "{{$%%IDTYPE%%_OF_%%LOOKUPTYPE%%_WITH_NAME=";
+    private static final String ID_OF_ORG_USER_GROUP_WITH_NAME_KEY = "%%IDTYPE%%_OF_%%LOOKUPTYPE%%_WITH_NAME";
 
     // CHECKSTYLE:ON
 
@@ -140,6 +143,8 @@ public final class ResolverUtil {
      * <li>{{UUDID_OF_USER_GROUP_WITH_NAME=&lt; name of the user group &gt;$}}
      * </li>
      * </ul>
+     * The content is scanned only once: every expression is dispatched to its
+     * resolver by its key and the result is written into a single buffer.
      *
      * @param runAsUserId  The user id under which the look up is done.
      * @param groupId      the group id which is used by default for the look up.
@@ -154,113 +159,165 @@ public final class ResolverUtil {
      */
     public static String lookupAll(final long runAsUserId, final long groupId, final long company,
                                    final String value, final String resolverHint) {
-        String retVal = value;
-
-        // substitute references to groups/sites
-        retVal = ResolverUtil.lookupSiteIdWithName(resolverHint, value, company);
-        // ID for article template
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, false, "ART", true, JournalArticle.class);
-        // ID for article structure
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, false, "ART", false, JournalArticle.class);
-        // UUID for article structure
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, true, "ART", false, JournalArticle.class);
-        // UUID for article template
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, true, "ART", true, JournalArticle.class);
-        // UUID for ADT
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, true, "ADT", true, AssetEntry.class);
-        // ID for ADT
-        retVal = ResolverUtil.lookupStructureOrTemplateIdWithKey(retVal, resolverHint, groupId,
-                company, false, "ADT", true, AssetEntry.class);
-
-        //Resolve categories
-        retVal=ResolverUtil.substituteCategoryNameWithCategoryId(retVal,resolverHint,groupId,company,runAsUserId);
-
-        // Substitute the article key with the primary key (id)
-        retVal = ResolverUtil.lookupArticleWithArticleId(retVal, resolverHint, groupId, company,
-                ID_TYPE_ID);
-        // Substitute the article key with the uuid of the article
-        retVal = ResolverUtil.lookupArticleWithArticleId(retVal, resolverHint, groupId, company,
-                ID_TYPE_UUID);
-        // Resource type id for articles
-        retVal = ResolverUtil.lookupArticleWithArticleId(retVal, resolverHint, groupId, company,
-                ID_TYPE_RESOURCE);
-        // Substitute references to files by their URLs
-        retVal = ResolverUtil.substituteFileReferencesWithURL(retVal, resolverHint, groupId,
-                company, groupId, runAsUserId, ID_TYPE_FILE);
-        // Substitute references to files by their id
-        retVal = ResolverUtil.substituteFileReferencesWithURL(retVal, resolverHint, groupId,
-                company, groupId, runAsUserId, ID_TYPE_ID);
-        // Substitute references to files by their UUID
-        retVal = ResolverUtil.substituteFileReferencesWithURL(retVal, resolverHint, groupId,
-                company, groupId, runAsUserId, ID_TYPE_UUID);
-        // Substitute class id references
-        retVal = ResolverUtil.getClassIdByName(retVal, resolverHint);
-        // Substitute private page friendly urls to layout ids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                true, IdMode.ID);
-        // Substitute public page friendly urls to layout ids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                false, IdMode.ID);
-        // Substitute private page friendly urls to plids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                true, IdMode.PLID);
-        // Substitute public page friendly urls to plids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                false, IdMode.PLID);
-        // Substitute private page friendly urls to uuids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                true, IdMode.UUID);
-        // Substitute public page friendly urls to uuids
-        retVal = ResolverUtil.lookupPageIdWithFriendlyUrl(retVal, resolverHint, groupId, company,
-                false, IdMode.UUID);
-        // lookup ddl record set id by key
-        retVal = lookupDDLRecordSetId(retVal, resolverHint, groupId, company);
-        // replace id of user groups
-        retVal = lookupOrgOrUserGroupIdWithName(resolverHint, retVal, company, false, false);
-        // replace uuid of user groups
-        retVal = lookupOrgOrUserGroupIdWithName(resolverHint, retVal, company, true, false);
-        // replace id of orgs
-        retVal = lookupOrgOrUserGroupIdWithName(resolverHint, retVal, company, false, true);
-        // replace uuid of orgs
-        retVal = lookupOrgOrUserGroupIdWithName(resolverHint, retVal, company, true, true);
-        return retVal;
+        return substitute(value, resolverHint, (key, argument) -> resolvePlaceholder(runAsUserId,
+                groupId, company, key, argument, resolverHint));
     }
 
-    public static String getClassIdByName(final String value, final String locationHint) {
-        String valueCopy = value;
-        String retVal = valueCopy;
-        while (valueCopy != null && valueCopy.trim().indexOf(CLASS_ID_BY_NAME) > -1) {
-            int pos = valueCopy.trim().indexOf(CLASS_ID_BY_NAME);
-            int pos2 = valueCopy.indexOf(CLOSING_TAG, pos + 1);
-            String name = "";
-            if (pos2 > -1) {
-                try {
-                    name = valueCopy.substring(pos + CLASS_ID_BY_NAME.length(), pos2);
-
-                    long groupId = ResolverUtil.getClassId(name);
-                    retVal = valueCopy.substring(0, pos) + groupId
-                            + valueCopy.substring(pos2 + CLOSING_TAG.length(), valueCopy.length());
-                    valueCopy = retVal;
-                } catch (Exception ex) {
-                    LOG.error("Could not resolve class " + name + " for " + locationHint, ex);
-                }
-            } else {
-                LOG.warn("Could not resolve site name, as the syntax is offendended, closing $}} "
-                        + "is missing for " + locationHint);
+    // CHECKSTYLE:OFF
+    private static String resolvePlaceholder(final long runAsUserId, final long groupId,
+                                             final long company, final String key, final String argument,
+                                             final String locationHint) {
+        switch (key) {
+            case ID_OF_SITE_WITH_NAME_KEY:
+                return Long.toString(getSiteGroupIdByName(argument, company, locationHint));
+            case "ART-TEMPLATE-ID-BY-KEY":
+                return resolveStructureOrTemplate(argument, locationHint, groupId, company, false,
+                        true, JournalArticle.class);
+            case "ART-STRUCTURE-ID-BY-KEY":
+                return resolveStructureOrTemplate(argument, locationHint, groupId, company, false,
+                        false, JournalArticle.class);
+            case "ART-STRUCTURE-UUID-BY-KEY":
+                return resolveStructureOrTemplate(argument, locationHint, groupId, company, true,
+                        false, JournalArticle.class);
+            case "ART-TEMPLATE-UUID-BY-KEY":
+                return resolveStructureOrTemplate(argument, locationHint, groupId, company, true,
+                        true, JournalArticle.class);
+            case "ADT-TEMPLATE-UUID-BY-KEY":
+                return resolveStructureOrTemplate(argument, locationHint, groupId, company, true,
+                        true, AssetEntry.class);
+            case "ADT-TEMPLATE-ID-BY-KEY":
+                return resolveStructureOrTemplate(argument, locationHint, groupId, company, false,
+                        true, AssetEntry.class);
+            case TEMPLATE_CATEGORY:
+                return resolveCategory(argument, locationHint, groupId, company);
+            case "ARTICLE-ID-BY-ARTICLE-ID":
+                return resolveArticle(argument, locationHint, groupId, company, ID_TYPE_ID);
+            case "ARTICLE-UUID-BY-ARTICLE-ID":
+                return resolveArticle(argument, locationHint, groupId, company, ID_TYPE_UUID);
+            case "ARTICLE-RESID-BY-ARTICLE-ID":
+                return resolveArticle(argument, locationHint, groupId, company, ID_TYPE_RESOURCE);
+            case FILE_REFERENCE_URL:
+                return resolveFileReference(argument, locationHint, groupId, company, groupId,
+                        runAsUserId, ID_TYPE_FILE);
+            case FILE_REFERENCE_ID:
+                return resolveFileReference(argument, locationHint, groupId, company, groupId,
+                        runAsUserId, ID_TYPE_ID);
+            case FILE_REFERENCE_UUID:
+                return resolveFileReference(argument, locationHint, groupId, company, groupId,
+                        runAsUserId, ID_TYPE_UUID);
+            case CLASS_ID_BY_NAME:
+                return resolveClassId(argument, locationHint);
+            // the PLID and ID keys are swapped on purpose, this is the mapping
+            // lookupPageIdWithFriendlyUrl has always used
+            case "PRIV-PAGE-PLID-BY-FRIENDLY_URL":
+                return resolvePage(argument, locationHint, groupId, company, true, IdMode.ID);
+            case "PUB-PAGE-PLID-BY-FRIENDLY_URL":
+                return resolvePage(argument, locationHint, groupId, company, false, IdMode.ID);
+            case "PRIV-PAGE-ID-BY-FRIENDLY_URL":
+                return resolvePage(argument, locationHint, groupId, company, true, IdMode.PLID);
+            case "PUB-PAGE-ID-BY-FRIENDLY_URL":
+                return resolvePage(argument, locationHint, groupId, company, false, IdMode.PLID);
+            case "PRIV-PAGE-UUID-BY-FRIENDLY_URL":
+                return resolvePage(argument, locationHint, groupId, company, true, IdMode.UUID);
+            case "PUB-PAGE-UUID-BY-FRIENDLY_URL":
+                return resolvePage(argument, locationHint, groupId, company, false, IdMode.UUID);
+            case DDL_REC_SET_BY_KEY:
+                return resolveDDLRecordSet(argument, locationHint, groupId, company);
+            case "ID_OF_USER_GROUP_WITH_NAME":
+                return resolveOrgOrUserGroup(argument, locationHint, company, false, false);
+            case "UUID_OF_USER_GROUP_WITH_NAME":
+                return resolveOrgOrUserGroup(argument, locationHint, company, true, false);
+            case "ID_OF_ORG_WITH_NAME":
+                return resolveOrgOrUserGroup(argument, locationHint, company, false, true);
+            case "UUID_OF_ORG_WITH_NAME":
+                return resolveOrgOrUserGroup(argument, locationHint, company, true, true);
+            default:
+                return null;
+        }
+    }
+    // CHECKSTYLE:ON
+
+    /**
+     * Scans the content once for {{$KEY=argument$}} expressions and hands
+     * every one of them to the given resolver. Expressions for which the
+     * resolver returns null are left untouched.
+     */
+    static String substitute(final String content, final String locationHint,
+                                     final PlaceholderResolver resolver) {
+        if (content == null) {
+            return null;
+        }
+        int pos = content.indexOf(OPENING_TAG);
+        if (pos < 0) {
+            return content;
+        }
+        StringBuilder result = new StringBuilder(content.length());
+        int copied = 0;
+        while (pos > -1) {
+            int keyStart = pos + OPENING_TAG.length();
+            int pos2 = content.indexOf(CLOSING_TAG, keyStart);
+            if (pos2 < 0) {
+                LOG.warn("Could not resolve expression at pos " + pos + ", as the syntax is "
+                        + "offended, closing $}} is missing for " + locationHint);
                 break;
             }
+            String replacement = null;
+            int separator = content.indexOf(KEY_SEPARATOR, keyStart);
+            if (separator > -1 && separator < pos2) {
+                replacement = resolver.resolve(content.substring(keyStart, separator),
+                        content.substring(separator + KEY_SEPARATOR.length(), pos2));
+            }
+            if (replacement == null) {
+                pos = content.indexOf(OPENING_TAG, pos + 1);
+            } else {
+                result.append(content, copied, pos).append(replacement);
+                copied = pos2 + CLOSING_TAG.length();
+                pos = content.indexOf(OPENING_TAG, copied);
+            }
         }
+        result.append(content, copied, content.length());
+        return result.toString();
+    }
 
-        return retVal;
+    /**
+     * Adds the names of all sites the given content refers to, either with
+     * {{$ID_OF_SITE_WITH_NAME=...$}} or with a ::site name:: prefix.
+     */
+    public static void collectSiteReferences(final String content, final String locationHint,
+                                             final Set<String> siteNames) {
+        substitute(content, locationHint, (key, argument) -> {
+            if (ID_OF_SITE_WITH_NAME_KEY.equals(key)) {
+                siteNames.add(argument);
+            } else {
+                String[] refSegs = separateSiteRef(argument.trim());
+                if (!refSegs[0].equals("")) {
+                    siteNames.add(refSegs[0]);
+                }
+            }
+            return null;
+        });
+    }
+
+    public static String getClassIdByName(final String value, final String locationHint) {
+        return substitute(value, locationHint, (key, argument) -> CLASS_ID_BY_NAME.equals(key)
+                ? resolveClassId(argument, locationHint) : null);
+    }
+
+    private static String resolveClassId(final String name, final String locationHint) {
+        try {
+            return Long.toString(ResolverUtil.getClassId(name));
+        } catch (Exception ex) {
+            LOG.error("Could not resolve class " + name + " for " + locationHint, ex);
+            return null;
+        }
     }
 
     public static long getSiteGroupIdByName(final String siteName, final long company,
                                             final String locationName) {
+        Long cachedGroupId = ResolverCache.get(ResolverCache.Type.SITE, company, siteName);
+        if (cachedGroupId != null) {
+            return cachedGroupId;
+        }
         long siteGroupId = 0;
 
         if (siteName.toLowerCase().equals("global")) {
@@ -287,6 +344,9 @@ public final class ResolverUtil {
                 LOG.error((Throwable) e);
             }
         }
+        if (siteGroupId > 0) {
+            ResolverCache.put(ResolverCache.Type.SITE, company, siteName, siteGroupId);
+        }
         return siteGroupId;
     }
 
@@ -326,139 +386,114 @@ public final class ResolverUtil {
         } else if (refType == ID_TYPE_UUID) {
             openingTag = FILE_REFERENCE_UUID;
         }
-        String result = content;
-        int pos = result.indexOf(openingTag);
-        while (pos > -1) {
-            int pos2 = result.indexOf(CLOSING_TAG, pos);
-            if (pos2 < 0) {
-                LOG.error("No closing Tag, pos " + pos + " in file " + locationHint);
-                break;
-            } else {
-                // by default the referred file is looked up in current site.
-                long siteGroupId = groupId;
-                String filePath = result.substring(pos + openingTag.length(), pos2).trim();
+        final String lookup = openingTag;
+        return substitute(content, locationHint, (key, argument) -> lookup.equals(key)
+                ? resolveFileReference(argument, locationHint, groupId, company, repoId, userId,
+                refType) : null);
+    }
 
-                // check for the reference to another site
-                String[] refSegs = ResolverUtil.separateSiteRef(filePath);
-                if (!refSegs[0].equals("")) {
-                    siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company,
-                            locationHint);
-                    filePath = refSegs[1];
-                }
+    private static String resolveFileReference(final String reference, final String locationHint,
+                                               final long groupId, final long company, final long repoId,
+                                               final long userId, final int refType) {
+        // by default the referred file is looked up in current site.
+        long siteGroupId = groupId;
+        String filePath = reference.trim();
 
-                FileEntry fe = DocumentUtil.findDocument(filePath, siteGroupId, company, repoId,
-                        userId);
-                if (fe == null) {
-                    LOG.error("Referred file " + filePath + " is not found in documents and media"
-                            + ".");
-                    result = result.substring(0, pos) + " <file-not-found /> "
-                            + result.substring(pos2 + CLOSING_TAG.length(), result.length());
+        // check for the reference to another site
+        String[] refSegs = ResolverUtil.separateSiteRef(filePath);
+        if (!refSegs[0].equals("")) {
+            siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company, locationHint);
+            filePath = refSegs[1];
+        }
+
+        FileEntry fe = ResolverCache.get(ResolverCache.Type.FILE, siteGroupId, filePath);
+        if (fe == null) {
+            fe = DocumentUtil.findDocument(filePath, siteGroupId, company, repoId, userId);
+            ResolverCache.put(ResolverCache.Type.FILE, siteGroupId, filePath, fe);
+        }
+        String fileEntryRef = " <file-not-found /> ";
+        if (fe == null) {
+            LOG.error("Referred file " + filePath + " is not found in documents and media.");
+        } else {
+            try {
+                if (refType == ID_TYPE_ID) {
+                    fileEntryRef = Long.toString(fe.getFileEntryId());
+                } else if (refType == ID_TYPE_UUID) {
+                    fileEntryRef = fe.getUuid();
                 } else {
-                    String fileEntryRef = " <file-not-found /> ";
-                    try {
-                        if (refType == ID_TYPE_ID) {
-                            fileEntryRef = Long.toString(fe.getFileEntryId());
-                        } else if (refType == ID_TYPE_UUID) {
-                            fileEntryRef = fe.getUuid();
-                        } else {
-                            fileEntryRef = DLUtil.getPreviewURL(fe, fe.getFileVersion(), null,
-                                    StringPool.BLANK);
-                        }
-                    } catch (PortalException e) {
-                        LOG.error("URL of referred file " + filePath + " cannot be retrieved.");
-                    } catch (SystemException e) {
-                        LOG.error("URL of referred file " + filePath + " cannot be retrieved.");
-                    }
-                    result = result.substring(0, pos) + fileEntryRef
-                            + result.substring(pos2 + CLOSING_TAG.length(), result.length());
+                    fileEntryRef = DLUtil.getPreviewURL(fe, fe.getFileVersion(), null,
+                            StringPool.BLANK);
                 }
+            } catch (PortalException e) {
+                LOG.error("URL of referred file " + filePath + " cannot be retrieved.");
+            } catch (SystemException e) {
+                LOG.error("URL of referred file " + filePath + " cannot be retrieved.");
             }
-            pos = result.indexOf(openingTag, pos + 1);
         }
-        return result;
+        return fileEntryRef;
     }
+
     public static String substituteCategoryNameWithCategoryId(final String content,
             final String locationHint, final long groupId, final long company,
             final long userId) {
-        String openingTag = TEMPLATE_CATEGORY;
-
-        String result=content;
+        return substitute(content, locationHint, (key, argument) -> TEMPLATE_CATEGORY.equals(key)
+                ? resolveCategory(argument, locationHint, groupId, company) : null);
+    }
 
-        if (result.startsWith(openingTag)){
+    private static String resolveCategory(final String reference, final String locationHint,
+                                          final long groupId, final long company) {
+        String[] values = reference.split(VALUE_SPLIT);
+        if (values.length == 4) {
+            long groupIdResolved = groupId;
 
-            String[] values=result.replace(CLOSING_TAG,"").split("::");
-            if(values.length==4) {
-                long groupIdResolved=groupId;
+            try {
+                groupIdResolved = ResolverUtil.getSiteGroupIdByName(values[1], company, locationHint);
+                Long categoryId = ResolverCache.get(ResolverCache.Type.CATEGORY, groupIdResolved,
+                        values[2] + VALUE_SPLIT + values[3]);
+                if (categoryId != null) {
+                    return String.valueOf(categoryId);
+                }
 
                 try {
-                    groupIdResolved=ResolverUtil.getSiteGroupIdByName(values[1], company, locationHint);
+                    AssetVocabulary assetVocabulary = AssetVocabularyLocalServiceUtil.getGroupVocabulary(groupIdResolved, values[2]);
 
-                    try {
-                        AssetVocabulary assetVocabulary = AssetVocabularyLocalServiceUtil.getGroupVocabulary(groupIdResolved, values[2]);
-
-                        String[] categoryIds=values[3].split("/");
+                    String[] categoryIds = values[3].split("/");
 
-                        try {
-                            AssetCategory category= assetVocabulary.getCategories().stream().filter(vocabularyCategory->vocabularyCategory.getName().equals(categoryIds[0])).findFirst().orElseThrow(PortalException::new);
+                    try {
+                        AssetCategory category = assetVocabulary.getCategories().stream().filter(vocabularyCategory -> vocabularyCategory.getName().equals(categoryIds[0])).findFirst().orElseThrow(PortalException::new);
 
-                            for (int i = 1; i < categoryIds.length; i++) {
-                                String categoryName=categoryIds[i];
-                                category=AssetCategoryLocalServiceUtil.getChildCategories(category.getCategoryId()).stream().filter(childrenCategory->childrenCategory.getName().equals(categoryName)).findFirst().orElseThrow(PortalException::new);
-                            }
-                            return String.valueOf(category.getCategoryId());
-                        }catch (PortalException e){
-                            LOG.error("Could not resolve category path for " + locationHint, e);
+                        for (int i = 1; i < categoryIds.length; i++) {
+                            String categoryName = categoryIds[i];
+                            category = AssetCategoryLocalServiceUtil.getChildCategories(category.getCategoryId()).stream().filter(childrenCategory -> childrenCategory.getName().equals(categoryName)).findFirst().orElseThrow(PortalException::new);
                         }
-                    }catch (PortalException e){
-                        LOG.error("Could not resolve vocabulary name for " + locationHint, e);
+                        ResolverCache.put(ResolverCache.Type.CATEGORY, groupIdResolved,
+                                values[2] + VALUE_SPLIT + values[3], category.getCategoryId());
+                        return String.valueOf(category.getCategoryId());
+                    } catch (PortalException e) {
+                        LOG.error("Could not resolve category path for " + locationHint, e);
                     }
-
-                }catch(Exception e){
-                    LOG.error("Could not resolve site name for " +locationHint , e);
+                } catch (PortalException e) {
+                    LOG.error("Could not resolve vocabulary name for " + locationHint, e);
                 }
-            }else{
-                LOG.error("Categories to be susbstited is not in correct format : SiteName::Vocabulary::CategoriesPath");
-            }
 
+            } catch (Exception e) {
+                LOG.error("Could not resolve site name for " + locationHint, e);
+            }
+        } else {
+            LOG.error("Categories to be susbstited is not in correct format : SiteName::Vocabulary::CategoriesPath");
         }
-
-
-        return result;
+        return null;
     }
 
     public static String lookupSiteIdWithName(final String locationHint, final String value,
                                               final long company) {
-        String valueCopy = value;
-        String retVal = valueCopy;
-        while (valueCopy != null && valueCopy.trim().indexOf(ID_OF_SITE_WITH_NAME_KEY) > -1) {
-            int pos = valueCopy.trim().indexOf(ID_OF_SITE_WITH_NAME_KEY);
-            int pos2 = valueCopy.indexOf(CLOSING_TAG, pos + 1);
-            if (pos2 > -1) {
-                try {
-                    String name = valueCopy.substring(pos + ID_OF_SITE_WITH_NAME_KEY.length(),
-                            pos2);
-
-                    long groupId = ResolverUtil.getSiteGroupIdByName(name, company, locationHint);
-                    retVal = valueCopy.substring(0, pos) + groupId
-                            + valueCopy.substring(pos2 + CLOSING_TAG.length(), valueCopy.length());
-                    valueCopy = retVal;
-                } catch (Exception ex) {
-                    LOG.error("Could not resolve site name for " + locationHint, ex);
-                }
-            } else {
-                LOG.warn("Could not resolve site name, as the syntax is offendended, closing $}} "
-                        + "is missing for " + locationHint);
-                break;
-            }
-        }
-
-        return retVal;
+        return substitute(value, locationHint, (key, argument) -> ID_OF_SITE_WITH_NAME_KEY.equals(key)
+                ? Long.toString(ResolverUtil.getSiteGroupIdByName(argument, company, locationHint))
+                : null);
     }
 
     public static String lookupOrgOrUserGroupIdWithName(final String locationHint,
                                                         final String value, final long company, final boolean uuid, final boolean org) {
-        String valueCopy = value;
-        String retVal = valueCopy;
         String searchString = ID_OF_ORG_USER_GROUP_WITH_NAME_KEY;
         if (uuid) {
             searchString = searchString.replace("%%IDTYPE%%", "UUID");
@@ -470,63 +505,47 @@ public final class ResolverUtil {
         } else {
             searchString = searchString.replace("%%LOOKUPTYPE%%", "USER_GROUP");
         }
-        while (valueCopy != null && valueCopy.trim().indexOf(searchString) > -1) {
-            int pos = valueCopy.trim().indexOf(searchString);
-            int pos2 = valueCopy.indexOf(CLOSING_TAG, pos + 1);
-            if (pos2 > -1) {
-                try {
-                    String name = valueCopy.substring(pos + searchString.length(), pos2);
-                    String replacementId = "NOT FOUND";
-                    if (org) {
-                        Organization o = ResolverUtil.getOrganization(name, company, name);
-                        if (o != null) {
-                            if (uuid) {
-                                replacementId = o.getUuid();
-                            } else {
-                                replacementId = Long.toString(o.getOrganizationId());
-                            }
-                        }
-                    } else {
-                        UserGroup ug = ResolverUtil.getUserGroup(name, company, name);
-                        if (ug != null) {
-                            if (uuid) {
-                                replacementId = ug.getUuid();
-                            } else {
-                                replacementId = Long.toString(ug.getUserGroupId());
-                            }
-                        }
-                    }
+        final String lookup = searchString;
+        return substitute(value, locationHint, (key, argument) -> lookup.equals(key)
+                ? resolveOrgOrUserGroup(argument, locationHint, company, uuid, org) : null);
+    }
 
-                    retVal = valueCopy.substring(0, pos) + replacementId
-                            + valueCopy.substring(pos2 + CLOSING_TAG.length(), valueCopy.length());
-                    valueCopy = retVal;
-                } catch (Exception ex) {
-                    String type = "user group";
-                    if (org) {
-                        type = "organization";
+    private static String resolveOrgOrUserGroup(final String name, final String locationHint,
+                                                final long company, final boolean uuid, final boolean org) {
+        String replacementId = "NOT FOUND";
+        try {
+            if (org) {
+                Organization o = ResolverUtil.getOrganization(name, company, name);
+                if (o != null) {
+                    if (uuid) {
+                        replacementId = o.getUuid();
+                    } else {
+                        replacementId = Long.toString(o.getOrganizationId());
                     }
-                    LOG.error("Could not resolve  " + type + " name for " + locationHint, ex);
                 }
             } else {
-                String type = "user group";
-                if (org) {
-                    type = "organization";
+                UserGroup ug = ResolverUtil.getUserGroup(name, company, name);
+                if (ug != null) {
+                    if (uuid) {
+                        replacementId = ug.getUuid();
+                    } else {
+                        replacementId = Long.toString(ug.getUserGroupId());
+                    }
                 }
-                LOG.warn("Could not resolve " + type + " name, as the syntax is offendended, "
-                        + "closing $}} is missing " + "for " + locationHint);
-                break;
             }
+        } catch (Exception ex) {
+            String type = "user group";
+            if (org) {
+                type = "organization";
+            }
+            LOG.error("Could not resolve  " + type + " name for " + locationHint, ex);
+            return null;
         }
-
-        return retVal;
+        return replacementId;
     }
 
     public static String lookupArticleWithArticleId(final String content, final String locationHint,
                                                     final long groupId, final long company, final int typeOfId) {
-        String contentCopy = content;
-        String retVal = contentCopy;
-        long siteGroupId = groupId;
-        int pos = -1;
         String lookup = ARTICLE_BY_ART_ID;
 
         if (typeOfId == 0) {
@@ -536,58 +555,47 @@ public final class ResolverUtil {
         } else if (typeOfId == 2) {
             lookup = lookup.replace("%%IDTYPE%%", "RESID");
         }
+        final String articleLookup = lookup;
+        return substitute(content, locationHint, (key, argument) -> articleLookup.equals(key)
+                ? resolveArticle(argument, locationHint, groupId, company, typeOfId) : null);
+    }
 
-        while (contentCopy != null && contentCopy.indexOf(lookup) > -1) {
-            pos = contentCopy.indexOf(lookup);
-            int pos2 = contentCopy.indexOf(CLOSING_TAG, pos + 1);
-            if (pos2 > -1) {
-                String name = contentCopy.substring(pos + lookup.length(), pos2);
+    private static String resolveArticle(final String reference, final String locationHint,
+                                         final long groupId, final long company, final int typeOfId) {
+        long siteGroupId = groupId;
+        String name = reference;
 
-                // check for the reference to another site
-                String[] refSegs = ResolverUtil.separateSiteRef(name);
-                if (!refSegs[0].equals("")) {
-                    siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company,
-                            locationHint);
-                    name = refSegs[1];
-                }
-                String templateId = "";
-                try {
-                    JournalArticle ja = getArticleByArticleID(name, siteGroupId);
-                    if (ja != null) {
-                        if (typeOfId == 0) {
-                            templateId = Long.toString(ja.getId());
-                        } else if (typeOfId == 1) {
-                            templateId = ja.getUuid();
-                        } else if (typeOfId == 2) {
-                            templateId = Long.toString(ja.getResourcePrimKey());
-                        }
-                    } else {
-                        LOG.error("Article with article id " + name + " not found for "
-                                + locationHint);
-                        templateId = "!!NOTFOUND!!";
-                    }
-                } catch (SystemException e) {
-                    LOG.error("Article with article id " + name + " not found for " + locationHint);
-                    LOG.error((Throwable) e);
+        // check for the reference to another site
+        String[] refSegs = ResolverUtil.separateSiteRef(name);
+        if (!refSegs[0].equals("")) {
+            siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company, locationHint);
+            name = refSegs[1];
+        }
+        String templateId = "";
+        try {
+            JournalArticle ja = getArticleByArticleID(name, siteGroupId);
+            if (ja != null) {
+                if (typeOfId == 0) {
+                    templateId = Long.toString(ja.getId());
+                } else if (typeOfId == 1) {
+                    templateId = ja.getUuid();
+                } else if (typeOfId == 2) {
+                    templateId = Long.toString(ja.getResourcePrimKey());
                 }
-
-                retVal = contentCopy.substring(0, pos) + templateId
-                        + contentCopy.substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                contentCopy = retVal;
             } else {
-                LOG.warn("Could not resolve template, as the syntax is offended, closing $}} is "
-                        + "missing for " + locationHint
-                        + " abort parsing, as this is possibly an error!");
-                break;
+                LOG.error("Article with article id " + name + " not found for " + locationHint);
+                templateId = "!!NOTFOUND!!";
             }
+        } catch (SystemException e) {
+            LOG.error("Article with article id " + name + " not found for " + locationHint);
+            LOG.error((Throwable) e);
         }
-        return retVal;
+        return templateId;
     }
 
     public static String lookupPageIdWithFriendlyUrl(final String content,
                                                      final String locationHint, final long groupId, final long company,
                                                      final boolean isPrivate, final IdMode mode) {
-        String contentCopy = content;
         String lookUp = PAGE_ID_BY_FRIENDLY_URL;
         if (isPrivate) {
             lookUp = lookUp.replace("%%PTYPE%%", "PRIV");
@@ -605,120 +613,99 @@ public final class ResolverUtil {
                 lookUp = lookUp.replace("%%LAYOUTID%%", "UUID");
                 break;
         }
-        int pos = contentCopy.indexOf(lookUp);
-        while (pos > -1) {
-            int pos2 = contentCopy.indexOf(CLOSING_TAG, pos);
-            if (pos2 < 0) {
-                LOG.error("No closing Tag, pos " + pos + " for " + locationHint);
-                break;
-            } else {
-                // by default the referred file is looked up in current site.
-                long siteGroupId = groupId;
-                String fUrl = contentCopy.substring(pos + lookUp.length(), pos2).trim();
-
-                // check for the reference to another site
-                String[] refSegs = ResolverUtil.separateSiteRef(fUrl);
-                if (!refSegs[0].equals("")) {
-                    siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company,
-                            locationHint);
-                    fUrl = refSegs[1];
-                }
+        final String pageLookup = lookUp;
+        return substitute(content, locationHint, (key, argument) -> pageLookup.equals(key)
+                ? resolvePage(argument, locationHint, groupId, company, isPrivate, mode) : null);
+    }
 
-                String pageId = "NOT FOUND";
-                Layout l = null;
-                try {
-                    l = LayoutLocalServiceUtil.getFriendlyURLLayout(siteGroupId, isPrivate, fUrl);
-                } catch (PortalException | SystemException e) {
-                    e.printStackTrace();
-                }
+    private static String resolvePage(final String reference, final String locationHint,
+                                      final long groupId, final long company, final boolean isPrivate,
+                                      final IdMode mode) {
+        String fUrl = reference.trim();
+
+        // check for the reference to another site, by default the referred
+        // page is looked up in current site.
+        String[] refSegs = ResolverUtil.separateSiteRef(fUrl);
+        final long siteGroupId;
+        if (!refSegs[0].equals("")) {
+            siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company, locationHint);
+            fUrl = refSegs[1];
+        } else {
+            siteGroupId = groupId;
+        }
 
-                if (l == null) {
-                    LOG.error("Referred page " + fUrl + " is not found .");
-                    contentCopy = contentCopy.substring(0, pos) + " PAGE NOT FOUND!! " + contentCopy
-                            .substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                } else {
-                    switch (mode) {
-                        case ID:
-                            pageId = Long.toString(l.getLayoutId());
-                            break;
-                        case PLID:
-                            pageId = Long.toString(l.getPlid());
-                            break;
-                        case UUID:
-                            pageId = l.getUuid();
-                            break;
-                    }
-                    contentCopy = contentCopy.substring(0, pos) + pageId + contentCopy
-                            .substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                }
-            }
-            pos = contentCopy.indexOf(lookUp, pos + 1);
+        final String friendlyUrl = fUrl;
+        Layout l = null;
+        try {
+            l = ResolverCache.get(ResolverCache.Type.PAGE, siteGroupId, pageCacheKey(isPrivate,
+                    friendlyUrl), () -> LayoutLocalServiceUtil.getFriendlyURLLayout(siteGroupId,
+                    isPrivate, friendlyUrl));
+        } catch (PortalException | SystemException e) {
+            e.printStackTrace();
         }
 
-        //
-        return contentCopy;
+        if (l == null) {
+            LOG.error("Referred page " + fUrl + " is not found .");
+            return " PAGE NOT FOUND!! ";
+        }
+        String pageId = "NOT FOUND";
+        switch (mode) {
+            case ID:
+                pageId = Long.toString(l.getLayoutId());
+                break;
+            case PLID:
+                pageId = Long.toString(l.getPlid());
+                break;
+            case UUID:
+                pageId = l.getUuid();
+                break;
+        }
+        return pageId;
     }
 
     public static String lookupDDLRecordSetId(final String content, final String locationHint,
                                               final long groupId, final long company) {
-        String contentCopy = content;
-        String lookUp = DDL_REC_SET_BY_KEY;
-
-        int pos = contentCopy.indexOf(lookUp);
-        while (pos > -1) {
-            int pos2 = contentCopy.indexOf(CLOSING_TAG, pos);
-            if (pos2 < 0) {
-                LOG.error("No closing Tag, pos " + pos + " for " + locationHint);
-                break;
-            } else {
-                // by default the referred file is looked up in current site.
-                long siteGroupId = groupId;
-                String recordsetId = contentCopy.substring(pos + lookUp.length(), pos2).trim();
+        return substitute(content, locationHint, (key, argument) -> DDL_REC_SET_BY_KEY.equals(key)
+                ? resolveDDLRecordSet(argument, locationHint, groupId, company) : null);
+    }
 
-                // check for the reference to another site
-                String[] refSegs = ResolverUtil.separateSiteRef(recordsetId);
-                if (!refSegs[0].equals("")) {
-                    siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company,
-                            locationHint);
-                    recordsetId = refSegs[1];
-                }
+    private static String resolveDDLRecordSet(final String reference, final String locationHint,
+                                              final long groupId, final long company) {
+        // by default the referred file is looked up in current site.
+        long siteGroupId = groupId;
+        String recordsetId = reference.trim();
 
-                String pageId = "NOT FOUND";
-                DDLRecordSet rs = null;
-                try {
-                    rs = DDLRecordSetLocalServiceUtil.getRecordSet(siteGroupId, recordsetId);
+        // check for the reference to another site
+        String[] refSegs = ResolverUtil.separateSiteRef(recordsetId);
+        if (!refSegs[0].equals("")) {
+            siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company, locationHint);
+            recordsetId = refSegs[1];
+        }
 
-                } catch (PortalException e) {
-                    LOG.error("Error retrieving referred DDL structure " + recordsetId + ".");
-                } catch (SystemException e) {
-                    LOG.error("Error retrieving referred DDL structure " + recordsetId + ".");
-                }
+        DDLRecordSet rs = null;
+        try {
+            final long recordSetGroupId = siteGroupId;
+            final String recordSetKey = recordsetId;
+            rs = ResolverCache.get(ResolverCache.Type.DDL_RECORD_SET, siteGroupId, recordsetId,
+                    () -> DDLRecordSetLocalServiceUtil.getRecordSet(recordSetGroupId, recordSetKey));
 
-                if (rs == null) {
-                    LOG.error("Referred DDL structure " + recordsetId + " is not found .");
-                    contentCopy = contentCopy.substring(0, pos) + " PAGE NOT FOUND!! " + contentCopy
-                            .substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                } else {
-                    pageId = Long.toString(rs.getRecordSetId());
-                    contentCopy = contentCopy.substring(0, pos) + pageId + contentCopy
-                            .substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                }
-            }
-            pos = contentCopy.indexOf(lookUp, pos + 1);
+        } catch (PortalException e) {
+            LOG.error("Error retrieving referred DDL structure " + recordsetId + ".");
+        } catch (SystemException e) {
+            LOG.error("Error retrieving referred DDL structure " + recordsetId + ".");
         }
 
-        //
-        return contentCopy;
+        if (rs == null) {
+            LOG.error("Referred DDL structure " + recordsetId + " is not found .");
+            return " PAGE NOT FOUND!! ";
+        }
+        return Long.toString(rs.getRecordSetId());
     }
 
     // CHECKSTYLE:OFF
     public static String lookupStructureOrTemplateIdWithKey(final String content,
                                                             final String locationHint, final long groupId, final long company, final boolean uuid,
                                                             final String commandPrefix, final boolean isTemplate, final Class referredClass) {
-        String contentCopy = content;
-        String retVal = contentCopy;
-        long siteGroupId = groupId;
-        int pos = -1;
         String lookup = TEMPLATE_BY_KEY;
         if (!isTemplate) {
             lookup = STRUCTURE_BY_KEY;
@@ -728,64 +715,56 @@ public final class ResolverUtil {
         } else {
             lookup = lookup.replace("%%IDTYPE%%", "ID");
         }
-        lookup = lookup.replace("%%PREFIX%%", commandPrefix);
-        while (contentCopy != null && contentCopy.indexOf(lookup) > -1) {
-            pos = contentCopy.indexOf(lookup);
-            int pos2 = contentCopy.indexOf(CLOSING_TAG);
-            if (pos2 > -1) {
-                String name = contentCopy.substring(pos + lookup.length(), pos2);
+        final String keyLookup = lookup.replace("%%PREFIX%%", commandPrefix);
+        return substitute(content, locationHint, (key, argument) -> keyLookup.equals(key)
+                ? resolveStructureOrTemplate(argument, locationHint, groupId, company, uuid,
+                isTemplate, referredClass) : null);
+    }
 
-                // check for the reference to another site
-                String[] refSegs = ResolverUtil.separateSiteRef(name);
-                if (!refSegs[0].equals("")) {
-                    siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company,
-                            locationHint);
-                    name = refSegs[1];
-                }
-                String templateId = "";
-                try {
-                    if (uuid) {
-                        if (isTemplate) {
-                            templateId = getTemplateUUID(name, siteGroupId);
-                        } else {
-                            templateId = getStructureUUID(name, siteGroupId, referredClass);
-                        }
-                    } else {
-                        if (isTemplate) {
-                            templateId = Long
-                                    .toString(getTemplateId(name, siteGroupId, referredClass));
-                        } else {
-                            templateId = Long
-                                    .toString(getStructureId(name, siteGroupId, referredClass, false));
-                        }
-                    }
-                } catch (PortalException | SystemException e) {
-                    LOG.error("Template with key contentCopy " + name + " not found for "
-                            + locationHint);
-                    LOG.error((Throwable) e);
-                }
+    private static String resolveStructureOrTemplate(final String reference,
+                                                     final String locationHint, final long groupId, final long company, final boolean uuid,
+                                                     final boolean isTemplate, final Class referredClass) {
+        long siteGroupId = groupId;
+        String name = reference;
 
-                retVal = contentCopy.substring(0, pos) + templateId
-                        + contentCopy.substring(pos2 + CLOSING_TAG.length(), contentCopy.length());
-                contentCopy = retVal;
+        // check for the reference to another site
+        String[] refSegs = ResolverUtil.separateSiteRef(name);
+        if (!refSegs[0].equals("")) {
+            siteGroupId = ResolverUtil.getSiteGroupIdByName(refSegs[0], company, locationHint);
+            name = refSegs[1];
+        }
+        String templateId = "";
+        try {
+            if (uuid) {
+                if (isTemplate) {
+                    templateId = getTemplateUUID(name, siteGroupId);
+                } else {
+                    templateId = getStructureUUID(name, siteGroupId, referredClass);
+                }
             } else {
-                LOG.warn("Could not resolve template, as the syntax is offended, closing $}} is "
-                        + "missing for " + locationHint
-                        + " abort parsing, as this is possibly an error!");
-                break;
+                if (isTemplate) {
+                    templateId = Long.toString(getTemplateId(name, siteGroupId, referredClass));
+                } else {
+                    templateId = Long.toString(getStructureId(name, siteGroupId, referredClass, false));
+                }
             }
+        } catch (PortalException | SystemException e) {
+            LOG.error("Template with key contentCopy " + name + " not found for " + locationHint);
+            LOG.error((Throwable) e);
         }
-        return retVal;
+        return templateId;
     }
 
     // CHECKSTYLE:ON
 
     public static JournalArticle getArticleByArticleID(final String articleId, final long groupId)
             throws SystemException {
-        JournalArticle article = null;
-        article = JournalArticleLocalServiceUtil.fetchLatestArticle(groupId, articleId,
-                WorkflowConstants.STATUS_APPROVED);
-
+        JournalArticle article = ResolverCache.get(ResolverCache.Type.ARTICLE, groupId, articleId);
+        if (article == null) {
+            article = JournalArticleLocalServiceUtil.fetchLatestArticle(groupId, articleId,
+                    WorkflowConstants.STATUS_APPROVED);
+            ResolverCache.put(ResolverCache.Type.ARTICLE, groupId, articleId, article);
+        }
         return article;
     }
 
@@ -793,8 +772,10 @@ public final class ResolverUtil {
                                       final Class clazz, boolean includeAncestorStructures) throws SystemException, PortalException {
 
         long classNameId = ClassNameLocalServiceUtil.getClassNameId(clazz);
-        DDMStructure structure = DDMStructureLocalServiceUtil.getStructure(groupId, classNameId,
-                structureKey, includeAncestorStructures);
+        DDMStructure structure = ResolverCache.get(ResolverCache.Type.STRUCTURE, groupId,
+                ddmCacheKey(clazz, structureKey, includeAncestorStructures),
+                () -> DDMStructureLocalServiceUtil.getStructure(groupId, classNameId, structureKey,
+                        includeAncestorStructures));
         return structure.getStructureId();
     }
 
@@ -802,8 +783,9 @@ public final class ResolverUtil {
                                           final Class clazz) throws SystemException, PortalException {
 
         long classNameId = ClassNameLocalServiceUtil.getClassNameId(clazz);
-        DDMStructure structure = DDMStructureLocalServiceUtil.getStructure(groupId, classNameId,
-                structureKey);
+        DDMStructure structure = ResolverCache.get(ResolverCache.Type.STRUCTURE, groupId,
+                ddmCacheKey(clazz, structureKey, false),
+                () -> DDMStructureLocalServiceUtil.getStructure(groupId, classNameId, structureKey));
         return structure.getUuid();
     }
 
@@ -812,8 +794,9 @@ public final class ResolverUtil {
 
         long classNameId = ClassNameLocalServiceUtil.getClassNameId(clazz);
 
-        DDMTemplate template = DDMTemplateLocalServiceUtil.getTemplate(groupId, classNameId,
-                templateKey);
+        DDMTemplate template = ResolverCache.get(ResolverCache.Type.TEMPLATE, groupId,
+                ddmCacheKey(clazz, templateKey, false),
+                () -> DDMTemplateLocalServiceUtil.getTemplate(groupId, classNameId, templateKey));
         return template.getTemplateId();
     }
 
@@ -821,7 +804,8 @@ public final class ResolverUtil {
                                                final String locationHint) {
         Organization o = null;
         try {
-            o = OrganizationLocalServiceUtil.getOrganization(companyId, name);
+            o = ResolverCache.get(ResolverCache.Type.ORGANIZATION, companyId, name,
+                    () -> OrganizationLocalServiceUtil.getOrganization(companyId, name));
         } catch (PortalException e) {
             LOG.error("Could not retrieve organization " + name + " in context " + locationHint);
         } catch (SystemException e) {
@@ -834,7 +818,8 @@ public final class ResolverUtil {
                                          final String locationHint) {
         UserGroup o = null;
         try {
-            o = UserGroupLocalServiceUtil.getUserGroup(companyId, name);
+            o = ResolverCache.get(ResolverCache.Type.USER_GROUP, companyId, name,
+                    () -> UserGroupLocalServiceUtil.getUserGroup(companyId, name));
         } catch (PortalException e) {
             LOG.error("Could not retrieve organization " + name + " in context " + locationHint);
         } catch (SystemException e) {
@@ -846,6 +831,10 @@ public final class ResolverUtil {
     public static String getTemplateUUID(final String templateKey, final long groupId)
             throws SystemException, PortalException {
 
+        String cachedUuid = ResolverCache.get(ResolverCache.Type.TEMPLATE_UUID, 0, templateKey);
+        if (cachedUuid != null) {
+            return cachedUuid;
+        }
         DynamicQuery dq = DDMTemplateLocalServiceUtil.dynamicQuery()
                 .add(PropertyFactoryUtil.forName("templateKey").eq(templateKey));
         List<DDMTemplate> templateList = new ArrayList<DDMTemplate>();
@@ -855,6 +844,7 @@ public final class ResolverUtil {
             templateList = DDMTemplateLocalServiceUtil.dynamicQuery(dq);
             if (templateList != null && templateList.size() > 0 && templateList.get(0) != null) {
                 uuid = templateList.get(0).getUuid();
+                ResolverCache.put(ResolverCache.Type.TEMPLATE_UUID, 0, templateKey, uuid);
             }
         } catch (SystemException e) {
             LOG.error("Tempate with key " + templateKey + " not found !!", e);
@@ -863,7 +853,27 @@ public final class ResolverUtil {
         return uuid;
     }
 
-    private static String[] separateSiteRef(final String content) {
+    /**
+     * Key under which structures and templates are cached, the class is part
+     * of it as keys are only unique per class name.
+     */
+    public static String ddmCacheKey(final Class clazz, final String key,
+                                     final boolean includeAncestors) {
+        String cacheKey = clazz.getName() + VALUE_SPLIT + key;
+        if (includeAncestors) {
+            cacheKey = cacheKey + VALUE_SPLIT + "ancestors";
+        }
+        return cacheKey;
+    }
+
+    public static String pageCacheKey(final boolean isPrivate, final String friendlyUrl) {
+        if (isPrivate) {
+            return "private" + VALUE_SPLIT + friendlyUrl;
+        }
+        return "public" + VALUE_SPLIT + friendlyUrl;
+    }
+
+    static String[] separateSiteRef(final String content) {
         String contentCopy = content;
         String[] retVal = new String[2];
         retVal[0] = "";
@@ -883,7 +893,19 @@ public final class ResolverUtil {
     }
 
     private static long getClassId(final String clazzName) {
-        long id = ClassNameLocalServiceUtil.getClassNameId(clazzName);
+        Long id = ResolverCache.get(ResolverCache.Type.CLASS_NAME, 0, clazzName);
+        if (id == null) {
+            id = ClassNameLocalServiceUtil.getClassNameId(clazzName);
+            ResolverCache.put(ResolverCache.Type.CLASS_NAME, 0, clazzName, id);
+        }
         return id;
     }
+
+    /**
+     * Resolves a single expression found by the scanner, returns null if the
+     * expression is not handled and has to be left as it is.
+     */
+    interface PlaceholderResolver {
+        String resolve(String key, String argument);
+    }
 }
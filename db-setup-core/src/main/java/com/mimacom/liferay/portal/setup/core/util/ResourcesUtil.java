@@ -30,6 +30,8 @@ import com.liferay.portal.kernel.util.FileUtil;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
 
 /**
  * Created by ntrp on 5/15/17.
@@ -42,6 +44,24 @@ public class ResourcesUtil {
         return cl.getResourceAsStream(path);
     }
 
+    /**
+     * Returns the size of the resource in bytes, or -1 if the resource does
+     * not exist or its size is not known.
+     */
+    public static long getFileSize(String path) throws IOException {
+
+        URL url = ResourcesUtil.class.getClassLoader().getResource(path);
+        if (url == null) {
+            return -1;
+        }
+        URLConnection connection = url.openConnection();
+        // only the length is needed, do not keep a jar file open
+        connection.setUseCaches(false);
+        long size = connection.getContentLengthLong();
+        connection.getInputStream().close();
+        return size;
+    }
+
     public static byte[] getFileBytes(String path) throws IOException {
         return FileUtil.getBytes(getFileStream(path));
     }
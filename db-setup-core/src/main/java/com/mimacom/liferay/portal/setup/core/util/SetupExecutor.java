@@ -0,0 +1,200 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.security.auth.CompanyThreadLocal;
+import com.liferay.portal.kernel.security.auth.PrincipalThreadLocal;
+import com.liferay.portal.kernel.security.permission.PermissionChecker;
+import com.liferay.portal.kernel.security.permission.PermissionThreadLocal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Runs parts of the setup on a bounded pool of worker threads. The setup
+ * relies on thread locals (the run-as user, its permission checker and the
+ * company), every task gets the values of the thread that submitted it.
+ */
+public final class SetupExecutor {
+
+    private static final Log LOG = LogFactoryUtil.getLog(SetupExecutor.class);
+
+    private SetupExecutor() {
+
+    }
+
+    /**
+     * Wraps the given task, so that it runs with the thread locals of the
+     * calling thread. The thread locals of the executing thread are restored
+     * afterwards.
+     */
+    public static Runnable withContext(final Runnable task) {
+        final String name = PrincipalThreadLocal.getName();
+        final PermissionChecker permissionChecker = PermissionThreadLocal.getPermissionChecker();
+        final Long companyId = CompanyThreadLocal.getCompanyId();
+        return () -> {
+            String previousName = PrincipalThreadLocal.getName();
+            PermissionChecker previousPermissionChecker = PermissionThreadLocal.getPermissionChecker();
+            Long previousCompanyId = CompanyThreadLocal.getCompanyId();
+            try {
+                PrincipalThreadLocal.setName(name);
+                PermissionThreadLocal.setPermissionChecker(permissionChecker);
+                CompanyThreadLocal.setCompanyId(companyId);
+                task.run();
+            } finally {
+                PrincipalThreadLocal.setName(previousName);
+                PermissionThreadLocal.setPermissionChecker(previousPermissionChecker);
+                CompanyThreadLocal.setCompanyId(previousCompanyId);
+            }
+        };
+    }
+
+    /**
+     * Runs the task for every node, a node is started only after all nodes it
+     * depends on are finished. Independent nodes run in parallel on at most
+     * the given number of threads. If the dependencies contain a cycle, all
+     * nodes are run one after the other in the given order. Returns when all
+     * nodes are finished.
+     *
+     * @param nodes        the nodes, in the order used without parallelism.
+     * @param dependencies the nodes every node depends on, nodes not in the
+     *                     list are ignored.
+     * @param threads      the maximum number of parallel tasks.
+     * @param task         the task executed for every node, it should handle
+     *                     its own errors.
+     */
+    public static <T> void runGraph(final List<T> nodes, final Map<T, Set<T>> dependencies,
+                                    final int threads, final Consumer<T> task) {
+        Map<T, Integer> pending = new IdentityHashMap<>();
+        Map<T, List<T>> dependents = new IdentityHashMap<>();
+        for (T node : nodes) {
+            pending.put(node, 0);
+        }
+        for (T node : nodes) {
+            for (T dependency : dependencies.getOrDefault(node, Collections.emptySet())) {
+                if (dependency != node && pending.containsKey(dependency)) {
+                    pending.put(node, pending.get(node) + 1);
+                    dependents.computeIfAbsent(dependency, d -> new ArrayList<>()).add(node);
+                }
+            }
+        }
+        if (threads < 2 || nodes.size() < 2 || hasCycle(nodes, pending, dependents)) {
+            if (threads > 1 && nodes.size() > 1) {
+                LOG.warn("Cyclic dependencies, running " + nodes.size() + " tasks sequentially");
+            }
+            nodes.forEach(task);
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, nodes.size()));
+        CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+        try {
+            int running = 0;
+            for (T node : nodes) {
+                if (pending.get(node) == 0) {
+                    submit(completion, node, task);
+                    running++;
+                }
+            }
+            while (running > 0) {
+                T done = completion.take().get();
+                running--;
+                for (T dependent : dependents.getOrDefault(done, Collections.emptyList())) {
+                    int left = pending.get(dependent) - 1;
+                    pending.put(dependent, left);
+                    if (left == 0) {
+                        submit(completion, dependent, task);
+                        running++;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while waiting for setup tasks", e);
+        } catch (ExecutionException e) {
+            // tasks never complete exceptionally, see submit
+            LOG.error("Setup task failed", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> void submit(final CompletionService<T> completion, final T node,
+                                   final Consumer<T> task) {
+        completion.submit(withContext(() -> {
+            try {
+                task.accept(node);
+            } catch (RuntimeException e) {
+                // the dependents still have to run
+                LOG.error("Setup task failed for " + node, e);
+            }
+        }), node);
+    }
+
+    /**
+     * Kahn's algorithm without executing anything, true if not all nodes can
+     * be ordered.
+     */
+    private static <T> boolean hasCycle(final List<T> nodes, final Map<T, Integer> pending,
+                                        final Map<T, List<T>> dependents) {
+        Map<T, Integer> left = new IdentityHashMap<>();
+        Deque<T> ready = new ArrayDeque<>();
+        for (T node : nodes) {
+            left.put(node, pending.get(node));
+            if (pending.get(node) == 0) {
+                ready.add(node);
+            }
+        }
+        int ordered = 0;
+        while (!ready.isEmpty()) {
+            T node = ready.poll();
+            ordered++;
+            for (T dependent : dependents.getOrDefault(node, Collections.emptyList())) {
+                int count = left.get(dependent) - 1;
+                left.put(dependent, count);
+                if (count == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        return ordered < nodes.size();
+    }
+}
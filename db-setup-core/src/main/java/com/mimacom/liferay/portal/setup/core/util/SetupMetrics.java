@@ -0,0 +1,297 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects wall times of the setup phases, latencies of single entities and
+ * counts of service calls. The numbers of the current or last run are
+ * available through JMX and are logged at the end of each run. Every copy of
+ * the library registers its own MBean, named {@link #OBJECT_NAME} with a
+ * {@code name} key per class loader. A module embedding the library calls
+ * {@link #unregister()} when it stops.
+ */
+public final class SetupMetrics implements SetupMetricsMBean {
+
+    public static final String OBJECT_NAME = "com.mimacom.liferay.portal.setup:type=SetupMetrics";
+    private static final Log LOG = LogFactoryUtil.getLog(SetupMetrics.class);
+    // upper bounds of the latency buckets in milliseconds, the last bucket is open
+    private static final long[] BUCKETS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+    private static final SetupMetrics INSTANCE = new SetupMetrics();
+    private static final Map<Phase, Stat> PHASES = new ConcurrentHashMap<>();
+    private static final Map<Entity, Stat> ENTITIES = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> SERVICE_CALLS = new ConcurrentHashMap<>();
+    private static volatile boolean registered;
+    private static ObjectName objectName;
+    private static volatile boolean running;
+    private static volatile long runStart;
+    private static volatile long runEnd;
+
+    private SetupMetrics() {
+
+    }
+
+    /**
+     * Phases of a setup run.
+     */
+    public enum Phase {
+        DELETE, CUSTOM_FIELDS, ROLES, USERS, ORGANIZATIONS, USER_GROUPS, PORTLET_PERMISSIONS, SITES,
+        PAGE_TEMPLATES
+    }
+
+    /**
+     * Entity types with individually measured latencies.
+     */
+    public enum Entity {
+        CUSTOM_FIELD, ROLE, USER, SITE, ARTICLE, DOCUMENT, PAGE
+    }
+
+    /**
+     * Resets all numbers, called at the start of every run. Registers the
+     * MBean on first use.
+     */
+    public static void startRun() {
+        register();
+        PHASES.clear();
+        ENTITIES.clear();
+        SERVICE_CALLS.clear();
+        runStart = System.nanoTime();
+        running = true;
+    }
+
+    /**
+     * Logs the summary of the run.
+     */
+    public static void finishRun() {
+        runEnd = System.nanoTime();
+        running = false;
+        LOG.info(INSTANCE.getReport());
+    }
+
+    /**
+     * @return the start time for {@link #phase(Phase, long)} and
+     *         {@link #entity(Entity, long)}.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public static void phase(final Phase phase, final long start) {
+        PHASES.computeIfAbsent(phase, p -> new Stat()).add(System.nanoTime() - start);
+    }
+
+    public static void entity(final Entity entity, final long start) {
+        entity(entity, start, 0);
+    }
+
+    /**
+     * Records the latency of a single entity, without the given time that was
+     * spent on nested entities of the same type, e.g. sub-pages.
+     */
+    public static void entity(final Entity entity, final long start, final long nestedNanos) {
+        ENTITIES.computeIfAbsent(entity, e -> new Stat()).add(System.nanoTime() - start - nestedNanos);
+    }
+
+    /**
+     * Counts a call of a writing service method, e.g.
+     * "JournalArticleLocalService.addArticle".
+     */
+    public static void call(final String service) {
+        SERVICE_CALLS.computeIfAbsent(service, s -> new LongAdder()).increment();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public long getRunTimeMillis() {
+        if (runStart == 0) {
+            return 0;
+        }
+        long end = running ? System.nanoTime() : runEnd;
+        return TimeUnit.NANOSECONDS.toMillis(end - runStart);
+    }
+
+    @Override
+    public String[] getPhaseTimes() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Phase, Stat> e : new TreeMap<>(PHASES).entrySet()) {
+            lines.add(e.getKey() + ": " + e.getValue().getTotalMillis() + " ms in " + e.getValue().getCount()
+                    + " calls");
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public String[] getEntityTimes() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Entity, Stat> e : new TreeMap<>(ENTITIES).entrySet()) {
+            Stat stat = e.getValue();
+            lines.add(e.getKey() + ": " + stat.getCount() + " in " + stat.getTotalMillis() + " ms, max "
+                    + stat.getMaxMillis() + " ms, histogram " + stat.getHistogram());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public String[] getServiceCalls() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(SERVICE_CALLS).entrySet()) {
+            lines.add(e.getKey() + ": " + e.getValue().sum());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder("Setup metrics, run time " + getRunTimeMillis() + " ms");
+        appendSection(sb, "Phases", getPhaseTimes());
+        appendSection(sb, "Entities", getEntityTimes());
+        appendSection(sb, "Service calls", getServiceCalls());
+        return sb.toString();
+    }
+
+    private static void appendSection(final StringBuilder sb, final String title, final String[] lines) {
+        if (lines.length > 0) {
+            sb.append("\n").append(title).append(":");
+            for (String line : lines) {
+                sb.append("\n  ").append(line);
+            }
+        }
+    }
+
+    private static void register() {
+        if (registered) {
+            return;
+        }
+        synchronized (SetupMetrics.class) {
+            if (registered) {
+                return;
+            }
+            try {
+                // several modules may embed the library, each copy has its own class loader
+                ObjectName name = new ObjectName(OBJECT_NAME + ",name="
+                        + Integer.toHexString(System.identityHashCode(SetupMetrics.class.getClassLoader())));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+                objectName = name;
+            } catch (JMException | SecurityException e) {
+                LOG.warn("Cannot register setup metrics MBean, metrics are logged only", e);
+            }
+            registered = true;
+        }
+    }
+
+    /**
+     * Unregisters the MBean of this copy of the library, so that it does not
+     * keep the class loader of a stopped module. To be called by the
+     * embedding module when it stops, the MBean is registered again by the
+     * next run.
+     */
+    public static void unregister() {
+        synchronized (SetupMetrics.class) {
+            if (objectName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+                } catch (JMException | SecurityException e) {
+                    LOG.warn("Cannot unregister setup metrics MBean", e);
+                }
+                objectName = null;
+            }
+            registered = false;
+        }
+    }
+
+    /**
+     * Count, total and latency histogram of one phase or entity type.
+     */
+    private static final class Stat {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+        private volatile long maxNanos;
+
+        void add(final long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+                bucket++;
+            }
+            histogram.incrementAndGet(bucket);
+            if (nanos > maxNanos) {
+                synchronized (this) {
+                    maxNanos = Math.max(maxNanos, nanos);
+                }
+            }
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getTotalMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(totalNanos.sum());
+        }
+
+        long getMaxMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos);
+        }
+
+        String getHistogram() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i <= BUCKETS.length; i++) {
+                long n = histogram.get(i);
+                if (n > 0) {
+                    if (sb.length() > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(i < BUCKETS.length ? "<=" + BUCKETS[i] : ">" + BUCKETS[BUCKETS.length - 1])
+                            .append("ms: ").append(n);
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
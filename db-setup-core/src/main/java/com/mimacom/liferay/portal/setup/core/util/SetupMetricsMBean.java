@@ -0,0 +1,65 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * Management interface of {@link SetupMetrics}, registered as
+ * {@value SetupMetrics#OBJECT_NAME}.
+ */
+public interface SetupMetricsMBean {
+
+    /**
+     * @return true while a setup is running.
+     */
+    boolean isRunning();
+
+    /**
+     * @return wall time of the current or last run in milliseconds.
+     */
+    long getRunTimeMillis();
+
+    /**
+     * @return one line per phase with its wall time and number of calls.
+     */
+    String[] getPhaseTimes();
+
+    /**
+     * @return one line per entity type with count, total and latency
+     *         histogram.
+     */
+    String[] getEntityTimes();
+
+    /**
+     * @return one line per counted service call.
+     */
+    String[] getServiceCalls();
+
+    /**
+     * @return the summary that is logged at the end of a run.
+     */
+    String getReport();
+}
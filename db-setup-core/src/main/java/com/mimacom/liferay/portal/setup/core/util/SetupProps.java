@@ -0,0 +1,73 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.util.PropsUtil;
+
+/**
+ * Tuning knobs of the setup, read from the portal properties
+ * (portal-ext.properties) with the prefix {@code db.setup.}.
+ */
+public final class SetupProps {
+
+    public static final String RESOLVER_CACHE_SIZE = "db.setup.resolver.cache.size";
+    public static final String RESOLVER_PREFETCH = "db.setup.resolver.prefetch";
+    public static final String RESOLVER_PREFETCH_CHUNK_SIZE = "db.setup.resolver.prefetch.chunk.size";
+    public static final String UNMARSHALLER_POOL_SIZE = "db.setup.unmarshaller.pool.size";
+    public static final String VALIDATE = "db.setup.validate";
+    public static final String PARSER_THREADS = "db.setup.parser.threads";
+    public static final String SITE_THREADS = "db.setup.site.threads";
+    public static final String PAGE_THREADS = "db.setup.page.threads";
+    public static final String DOCUMENT_THREADS = "db.setup.document.threads";
+    public static final String DOCUMENT_UPLOAD_BUDGET = "db.setup.document.upload.budget";
+    public static final String PERMISSION_BATCH_SIZE = "db.setup.permission.batch.size";
+    public static final String PERMISSION_DIFF = "db.setup.permission.diff";
+    public static final String DELETE_CHUNK_SIZE = "db.setup.delete.chunk.size";
+    public static final String DELETE_THREADS = "db.setup.delete.threads";
+    public static final String DELETE_TRANSACTION_SIZE = "db.setup.delete.transaction.size";
+    public static final String LEDGER_ENABLED = "db.setup.ledger.enabled";
+    public static final String DEFERRED_INDEXING = "db.setup.indexing.deferred";
+    public static final String INDEXING_THREADS = "db.setup.indexing.threads";
+    public static final String INDEXING_CHUNK_SIZE = "db.setup.indexing.chunk.size";
+
+    private SetupProps() {
+
+    }
+
+    public static int getInteger(final String key, final int defaultValue) {
+        return GetterUtil.getInteger(PropsUtil.get(key), defaultValue);
+    }
+
+    public static long getLong(final String key, final long defaultValue) {
+        return GetterUtil.getLong(PropsUtil.get(key), defaultValue);
+    }
+
+    public static boolean getBoolean(final String key, final boolean defaultValue) {
+        return GetterUtil.getBoolean(PropsUtil.get(key), defaultValue);
+    }
+}
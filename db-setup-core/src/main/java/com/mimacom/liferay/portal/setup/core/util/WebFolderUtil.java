@@ -39,31 +39,22 @@ public final class WebFolderUtil {
     private WebFolderUtil() {
     }
 
+    /**
+     * Resolves a web content folder by its path, the folders already resolved
+     * during the setup run are taken from the {@link FolderPathCache}.
+     */
     public static JournalFolder findWebFolder(final long companyId, final long groupId,
                                               final long userId, final String name, final String description,
                                               final boolean createIfNotExists) {
-        String[] folderPath = name.split("/");
-        JournalFolder foundFolder = null;
-        int count = 0;
-        Long parentId = 0L;
-        while (count < folderPath.length) {
-            String folder = folderPath[count];
-            if (!folder.equals("")) {
-                foundFolder = findWebFolder(groupId, parentId, folder);
-
-                if (foundFolder == null && createIfNotExists) {
-                    foundFolder = createWebFolder(userId, companyId, groupId, parentId, folder,
-                            description);
-                }
-
-                if (foundFolder == null) {
-                    break;
-                }
-                parentId = foundFolder.getFolderId();
-            }
-            count++;
-        }
-        return foundFolder;
+        return FolderPathCache.get(FolderPathCache.Type.WEB_FOLDER, groupId, name,
+                JournalFolder::getFolderId, (parentId, folder) -> {
+                    JournalFolder foundFolder = findWebFolder(groupId, parentId, folder);
+                    if (foundFolder == null && createIfNotExists) {
+                        foundFolder = createWebFolder(userId, companyId, groupId, parentId, folder,
+                                description);
+                    }
+                    return foundFolder;
+                });
     }
 
     public static JournalFolder findWebFolder(final Long groupId, final Long parentFolderId,
@@ -0,0 +1,142 @@
+package com.mimacom.liferay.portal.setup.core;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static com.mimacom.liferay.portal.setup.core.PermissionTemplateTest.grant;
+import static com.mimacom.liferay.portal.setup.core.PermissionTemplateTest.template;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PermissionDiffTest {
+
+    private static final long VIEW = 1L;
+    private static final long UPDATE = 2L;
+    private static final long DELETE = 4L;
+
+    @Test
+    public void leavesUnchangedRolesAlone() {
+        PermissionTemplate template = template(grant(1L, VIEW | UPDATE, "VIEW", "UPDATE"));
+
+        PermissionDiff diff = PermissionDiff.of(template, bits(1L, VIEW | UPDATE), false);
+
+        assertTrue(diff.getChanged().isEmpty());
+        assertTrue(diff.getRemoved().isEmpty());
+        assertEquals(2, diff.getSkippedActions());
+        assertEquals(0, diff.getAddedActions());
+        assertEquals(0, diff.getRemovedActions());
+    }
+
+    @Test
+    public void setsAddedRoles() {
+        PermissionTemplate template = template(grant(1L, VIEW, "VIEW"), grant(2L, VIEW | UPDATE, "VIEW", "UPDATE"));
+
+        PermissionDiff diff = PermissionDiff.of(template, bits(1L, VIEW), false);
+
+        assertEquals(Collections.singleton(2L), diff.getChanged().keySet());
+        assertArrayEquals(new String[] {"VIEW", "UPDATE"}, diff.getChanged().get(2L));
+        assertEquals(1, diff.getSkippedActions());
+        assertEquals(2, diff.getAddedActions());
+    }
+
+    @Test
+    public void setsRolesWithChangedActions() {
+        PermissionTemplate template = template(grant(1L, VIEW | DELETE, "VIEW", "DELETE"));
+
+        PermissionDiff diff = PermissionDiff.of(template, bits(1L, VIEW | UPDATE), false);
+
+        assertArrayEquals(new String[] {"VIEW", "DELETE"}, diff.getChanged().get(1L));
+        assertEquals(1, diff.getSkippedActions());
+        assertEquals(1, diff.getAddedActions());
+        assertEquals(1, diff.getRemovedActions());
+    }
+
+    @Test
+    public void setsRolesWhoseActionsAreAllRemoved() {
+        PermissionTemplate template = template(grant(1L, 0L));
+
+        PermissionDiff diff = PermissionDiff.of(template, bits(1L, VIEW), false);
+
+        assertArrayEquals(new String[0], diff.getChanged().get(1L));
+        assertEquals(1, diff.getRemovedActions());
+    }
+
+    @Test
+    public void keepsOtherRolesWithoutClear() {
+        PermissionTemplate template = template(grant(1L, VIEW, "VIEW"));
+        Map<Long, Long> current = bits(1L, VIEW);
+        current.put(2L, VIEW | UPDATE);
+
+        PermissionDiff diff = PermissionDiff.of(template, current, false);
+
+        assertTrue(diff.getChanged().isEmpty());
+        assertTrue(diff.getRemoved().isEmpty());
+        assertEquals(0, diff.getRemovedActions());
+    }
+
+    @Test
+    public void removesOtherRolesWithClear() {
+        PermissionTemplate template = template(grant(1L, VIEW, "VIEW"));
+        Map<Long, Long> current = bits(1L, VIEW);
+        current.put(2L, VIEW | UPDATE);
+        // a role without any action has nothing to remove
+        current.put(3L, 0L);
+
+        PermissionDiff diff = PermissionDiff.of(template, current, true);
+
+        assertTrue(diff.getChanged().isEmpty());
+        assertEquals(Collections.singletonList(2L), diff.getRemoved());
+        assertEquals(1, diff.getSkippedActions());
+        assertEquals(2, diff.getRemovedActions());
+    }
+
+    @Test
+    public void clearsAndSetsInOneDiff() {
+        PermissionTemplate template = template(grant(1L, VIEW, "VIEW"), grant(2L, UPDATE, "UPDATE"));
+        Map<Long, Long> current = bits(3L, DELETE);
+
+        PermissionDiff diff = PermissionDiff.of(template, current, true);
+
+        assertEquals(Arrays.asList(1L, 2L), Arrays.asList(diff.getChanged().keySet().toArray()));
+        assertEquals(Collections.singletonList(3L), diff.getRemoved());
+        assertEquals(2, diff.getAddedActions());
+        assertEquals(1, diff.getRemovedActions());
+    }
+
+    private static Map<Long, Long> bits(final long roleId, final long actions) {
+        Map<Long, Long> current = new HashMap<>();
+        current.put(roleId, actions);
+        return current;
+    }
+}
@@ -0,0 +1,122 @@
+package com.mimacom.liferay.portal.setup.core;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.mimacom.liferay.portal.setup.domain.RolePermission;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PermissionTemplateTest {
+
+    @Test
+    public void mergedGrantsOfTheOtherTemplateWin() {
+        PermissionTemplate defaults = template(grant(1L, 1L, "VIEW"), grant(2L, 1L, "VIEW"));
+        PermissionTemplate defined = template(grant(2L, 3L, "VIEW", "UPDATE"), grant(3L, 1L, "VIEW"));
+
+        PermissionTemplate merged = defaults.merge(defined);
+
+        assertEquals(Arrays.asList(1L, 2L, 3L), roleIds(merged));
+        assertEquals(3L, bitsOf(merged, 2L));
+        assertArrayEquals(new String[] {"VIEW", "UPDATE"}, merged.getActionIds().get(2L));
+        assertArrayEquals(new String[] {"VIEW"}, merged.getActionIds().get(1L));
+    }
+
+    @Test
+    public void mergeKeepsBothTemplates() {
+        PermissionTemplate defaults = template(grant(1L, 1L, "VIEW"));
+        PermissionTemplate defined = template(grant(1L, 3L, "VIEW", "UPDATE"));
+
+        defaults.merge(defined);
+
+        assertEquals(1L, bitsOf(defaults, 1L));
+        assertEquals(3L, bitsOf(defined, 1L));
+    }
+
+    @Test
+    public void actionIdsFollowTheGrants() {
+        PermissionTemplate template = template(grant(5L, 2L, "UPDATE"), grant(4L, 0L));
+
+        assertEquals(Arrays.asList(5L, 4L), new ArrayList<>(template.getActionIds().keySet()));
+        assertArrayEquals(new String[0], template.getActionIds().get(4L));
+    }
+
+    @Test
+    public void roleTemplatesAreCompiledOncePerDefinition() {
+        List<RolePermission> definition = new ArrayList<>();
+        List<RolePermission> equalDefinition = new ArrayList<>();
+
+        PermissionTemplate template = PermissionTemplate.forRolePermissions("Class", definition, "test");
+
+        assertSame(template, PermissionTemplate.forRolePermissions("Class", definition, "test"));
+        assertNotSame(template, PermissionTemplate.forRolePermissions("Class", equalDefinition, "test"));
+        assertNotSame(template, PermissionTemplate.forRolePermissions("Other", definition, "test"));
+
+        PermissionTemplate.releaseRoleTemplates();
+
+        assertNotSame(template, PermissionTemplate.forRolePermissions("Class", definition, "test"));
+    }
+
+    static PermissionTemplate.Grant grant(final long roleId, final long bits, final String... actionIds) {
+        return new PermissionTemplate.Grant(roleId, actionIds, bits, true);
+    }
+
+    static PermissionTemplate template(final PermissionTemplate.Grant... grants) {
+        Map<Long, PermissionTemplate.Grant> byRole = new LinkedHashMap<>();
+        for (PermissionTemplate.Grant grant : grants) {
+            byRole.put(grant.getRoleId(), grant);
+        }
+        return new PermissionTemplate(byRole);
+    }
+
+    private static List<Long> roleIds(final PermissionTemplate template) {
+        List<Long> roleIds = new ArrayList<>();
+        for (PermissionTemplate.Grant grant : template.getGrants()) {
+            roleIds.add(grant.getRoleId());
+        }
+        return roleIds;
+    }
+
+    private static long bitsOf(final PermissionTemplate template, final long roleId) {
+        for (PermissionTemplate.Grant grant : template.getGrants()) {
+            if (grant.getRoleId() == roleId) {
+                return grant.getBits();
+            }
+        }
+        throw new AssertionError("No grant of role " + roleId);
+    }
+}
@@ -0,0 +1,122 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FolderPathCacheTest {
+
+    private final List<String> loaded = new ArrayList<>();
+    private long nextId;
+
+    @Before
+    public void setUp() {
+        FolderPathCache.clear();
+        loaded.clear();
+        nextId = 100;
+    }
+
+    @Test
+    public void loadsEverySegmentOnce() {
+        Long a = get(1L, "/a");
+        Long ab = get(1L, "/a/b");
+        Long abc = get(1L, "a/b/c");
+
+        assertEquals(ab, get(1L, "/a/b/"));
+        assertEquals(abc, get(1L, "/a//b/c"));
+        assertEquals(Arrays.asList("0/a", a + "/b", ab + "/c"), loaded);
+    }
+
+    @Test
+    public void sharesParentFoldersBetweenPaths() {
+        get(1L, "/a/b");
+        get(1L, "/a/c");
+
+        // /a got the id 100, it is the parent of both b and c
+        assertEquals(Arrays.asList("0/a", "100/b", "100/c"), loaded);
+    }
+
+    @Test
+    public void separatesGroupsAndTypes() {
+        get(1L, "/a");
+        get(2L, "/a");
+        FolderPathCache.get(FolderPathCache.Type.WEB_FOLDER, 1L, "/a", Long::longValue, this::load);
+
+        assertEquals(Arrays.asList("0/a", "0/a", "0/a"), loaded);
+    }
+
+    @Test
+    public void doesNotCacheMissingFolders() {
+        assertNull(FolderPathCache.get(FolderPathCache.Type.DOCUMENT_FOLDER, 1L, "/a/b", Long::longValue,
+                (parentId, name) -> {
+                    Long id = load(parentId, name);
+                    return name.equals("b") ? null : id;
+                }));
+        get(1L, "/a/b");
+
+        // a is cached, the missing b is looked up again
+        assertEquals(Arrays.asList("0/a", "100/b", "100/b"), loaded);
+    }
+
+    @Test
+    public void reloadsInvalidatedGroups() {
+        get(1L, "/a");
+        get(2L, "/a");
+        FolderPathCache.invalidateAll(FolderPathCache.Type.DOCUMENT_FOLDER, 1L);
+        loaded.clear();
+
+        get(1L, "/a");
+        get(2L, "/a");
+
+        assertEquals(Collections.singletonList("0/a"), loaded);
+    }
+
+    @Test
+    public void returnsNullForPathsWithoutSegments() {
+        assertNull(get(1L, "/"));
+        assertEquals(Collections.emptyList(), loaded);
+    }
+
+    private Long get(final long groupId, final String path) {
+        return FolderPathCache.get(FolderPathCache.Type.DOCUMENT_FOLDER, groupId, path, Long::longValue,
+                this::load);
+    }
+
+    private Long load(final long parentFolderId, final String name) {
+        loaded.add(parentFolderId + "/" + name);
+        return nextId++;
+    }
+}
@@ -0,0 +1,132 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.liferay.portal.kernel.util.Props;
+import com.liferay.portal.kernel.util.PropsUtil;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class ResolverCacheTest {
+
+    // the cache size if db.setup.resolver.cache.size is not set
+    private static final int DEFAULT_SIZE = 10000;
+
+    @BeforeClass
+    public static void setUpProps() {
+        PropsUtil.setProps(Mockito.mock(Props.class));
+    }
+
+    @Before
+    public void setUp() {
+        ResolverCache.clear();
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntry() {
+        for (int i = 0; i < DEFAULT_SIZE; i++) {
+            ResolverCache.put(ResolverCache.Type.ARTICLE, 1L, "article" + i, i);
+        }
+        // the oldest entry is used again, the second oldest is evicted instead
+        assertEquals(Integer.valueOf(0), ResolverCache.get(ResolverCache.Type.ARTICLE, 1L, "article0"));
+
+        ResolverCache.put(ResolverCache.Type.ARTICLE, 1L, "article" + DEFAULT_SIZE, DEFAULT_SIZE);
+
+        assertEquals(DEFAULT_SIZE, ResolverCache.size());
+        assertNotNull(ResolverCache.get(ResolverCache.Type.ARTICLE, 1L, "article0"));
+        assertNull(ResolverCache.get(ResolverCache.Type.ARTICLE, 1L, "article1"));
+        assertNotNull(ResolverCache.get(ResolverCache.Type.ARTICLE, 1L, "article" + DEFAULT_SIZE));
+    }
+
+    @Test
+    public void countsHitsAndMisses() throws Exception {
+        ResolverCache.put(ResolverCache.Type.PAGE, 1L, "/home", "home");
+
+        assertEquals("home", ResolverCache.get(ResolverCache.Type.PAGE, 1L, "/home"));
+        assertNull(ResolverCache.get(ResolverCache.Type.PAGE, 2L, "/home"));
+        assertEquals("loaded", ResolverCache.get(ResolverCache.Type.PAGE, 1L, "/other", () -> "loaded"));
+
+        assertEquals(1, ResolverCache.getHits());
+        assertEquals(2, ResolverCache.getMisses());
+        assertEquals(2, ResolverCache.size());
+    }
+
+    @Test
+    public void containsCountsNeitherHitsNorMisses() {
+        ResolverCache.put(ResolverCache.Type.PAGE, 1L, "/home", "home");
+
+        assertTrue(ResolverCache.contains(ResolverCache.Type.PAGE, 1L, "/home"));
+        assertFalse(ResolverCache.contains(ResolverCache.Type.PAGE, 1L, "/other"));
+
+        assertEquals(0, ResolverCache.getHits());
+        assertEquals(0, ResolverCache.getMisses());
+    }
+
+    @Test
+    public void doesNotCacheMissingEntities() throws Exception {
+        assertNull(ResolverCache.get(ResolverCache.Type.FILE, 1L, "missing", () -> null));
+        ResolverCache.put(ResolverCache.Type.FILE, 1L, "missing", null);
+
+        assertNull(ResolverCache.get(ResolverCache.Type.FILE, 1L, "missing"));
+        assertEquals(0, ResolverCache.size());
+    }
+
+    @Test
+    public void separatesTypesAndGroups() {
+        ResolverCache.put(ResolverCache.Type.STRUCTURE, 1L, "key", "structure");
+        ResolverCache.put(ResolverCache.Type.TEMPLATE, 1L, "key", "template");
+        ResolverCache.put(ResolverCache.Type.TEMPLATE, 2L, "key", "other group");
+
+        assertEquals("structure", ResolverCache.get(ResolverCache.Type.STRUCTURE, 1L, "key"));
+        assertEquals("template", ResolverCache.get(ResolverCache.Type.TEMPLATE, 1L, "key"));
+        assertEquals("other group", ResolverCache.get(ResolverCache.Type.TEMPLATE, 2L, "key"));
+    }
+
+    @Test
+    public void invalidatesAllEntriesOfAGroup() {
+        ResolverCache.put(ResolverCache.Type.FILE, 1L, "a", "a");
+        ResolverCache.put(ResolverCache.Type.FILE, 1L, "b", "b");
+        ResolverCache.put(ResolverCache.Type.FILE, 10L, "a", "other group");
+        ResolverCache.put(ResolverCache.Type.PAGE, 1L, "a", "other type");
+
+        ResolverCache.invalidateAll(ResolverCache.Type.FILE, 1L);
+
+        assertNull(ResolverCache.get(ResolverCache.Type.FILE, 1L, "a"));
+        assertNull(ResolverCache.get(ResolverCache.Type.FILE, 1L, "b"));
+        assertNotNull(ResolverCache.get(ResolverCache.Type.FILE, 10L, "a"));
+        assertNotNull(ResolverCache.get(ResolverCache.Type.PAGE, 1L, "a"));
+    }
+}
@@ -0,0 +1,97 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ResolverUtilTest {
+
+    @Test
+    public void substitutesEveryExpression() {
+        String content = "a {{$ID=1$}} b {{$UUID=two$}} c";
+
+        String result = ResolverUtil.substitute(content, "test",
+                (key, argument) -> key.toLowerCase() + ":" + argument);
+
+        assertEquals("a id:1 b uuid:two c", result);
+    }
+
+    @Test
+    public void passesKeyAndArgumentInOrder() {
+        List<String> seen = new ArrayList<>();
+
+        ResolverUtil.substitute("{{$A=x=y$}}{{$B=::site::ref$}}", "test", (key, argument) -> {
+            seen.add(key + "|" + argument);
+            return null;
+        });
+
+        // the key ends at the first separator, the argument keeps the others
+        assertEquals(Arrays.asList("A|x=y", "B|::site::ref"), seen);
+    }
+
+    @Test
+    public void keepsExpressionsWithoutReplacement() {
+        String content = "{{$KNOWN=1$}} {{$UNKNOWN=2$}} {{$NO-SEPARATOR$}}";
+
+        String result = ResolverUtil.substitute(content, "test",
+                (key, argument) -> key.equals("KNOWN") ? "one" : null);
+
+        assertEquals("one {{$UNKNOWN=2$}} {{$NO-SEPARATOR$}}", result);
+    }
+
+    @Test
+    public void doesNotScanReplacedText() {
+        String result = ResolverUtil.substitute("{{$KEY=1$}}!", "test",
+                (key, argument) -> "{{$KEY=2$}}");
+
+        assertEquals("{{$KEY=2$}}!", result);
+    }
+
+    @Test
+    public void stopsAtAnUnclosedExpression() {
+        String result = ResolverUtil.substitute("{{$KEY=1$}} {{$KEY=2", "test",
+                (key, argument) -> "x");
+
+        assertEquals("x {{$KEY=2", result);
+    }
+
+    @Test
+    public void returnsContentWithoutExpressionsAsIs() {
+        String content = "no expressions";
+
+        assertSame(content, ResolverUtil.substitute(content, "test", (key, argument) -> "x"));
+        assertNull(ResolverUtil.substitute(null, "test", (key, argument) -> "x"));
+    }
+}
@@ -0,0 +1,169 @@
+package com.mimacom.liferay.portal.setup.core.util;
+
+/*
+ * #%L
+ * Liferay Portal DB Setup core
+ * %%
+ * Copyright (C) 2016 - 2018 mimacom ag
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SetupExecutorTest {
+
+    @Test
+    public void runsEveryNodeOnce() {
+        List<String> nodes = Arrays.asList("a", "b", "c", "d", "e");
+        List<String> done = Collections.synchronizedList(new ArrayList<>());
+
+        SetupExecutor.runGraph(nodes, Collections.emptyMap(), 3, done::add);
+
+        assertEquals(new HashSet<>(nodes), new HashSet<>(done));
+        assertEquals(nodes.size(), done.size());
+    }
+
+    @Test
+    public void startsNodesAfterTheirDependencies() {
+        // a diamond: b and c depend on a, d depends on b and c, e is independent
+        List<String> nodes = Arrays.asList("d", "c", "b", "a", "e");
+        Map<String, Set<String>> dependencies = new HashMap<>();
+        dependencies.put("b", Collections.singleton("a"));
+        dependencies.put("c", Collections.singleton("a"));
+        dependencies.put("d", new HashSet<>(Arrays.asList("b", "c")));
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        SetupExecutor.runGraph(nodes, dependencies, 4, node -> {
+            events.add("start " + node);
+            sleep();
+            events.add("end " + node);
+        });
+
+        assertEquals(2 * nodes.size(), events.size());
+        for (Map.Entry<String, Set<String>> e : dependencies.entrySet()) {
+            for (String dependency : e.getValue()) {
+                assertTrue(e.getKey() + " started before " + dependency + " ended",
+                        events.indexOf("end " + dependency) < events.indexOf("start " + e.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void runsIndependentNodesInParallel() throws InterruptedException {
+        List<String> nodes = Arrays.asList("a", "b");
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        List<Boolean> parallel = Collections.synchronizedList(new ArrayList<>());
+
+        SetupExecutor.runGraph(nodes, Collections.emptyMap(), 2, node -> {
+            bothStarted.countDown();
+            try {
+                parallel.add(bothStarted.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertEquals(Arrays.asList(true, true), parallel);
+    }
+
+    @Test
+    public void runsCyclicDependenciesSequentiallyInTheGivenOrder() {
+        List<String> nodes = Arrays.asList("a", "b", "c");
+        Map<String, Set<String>> dependencies = new HashMap<>();
+        dependencies.put("a", Collections.singleton("b"));
+        dependencies.put("b", Collections.singleton("a"));
+        List<String> done = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        SetupExecutor.runGraph(nodes, dependencies, 4, node -> {
+            done.add(node);
+            threads.add(Thread.currentThread());
+        });
+
+        assertEquals(nodes, done);
+        assertEquals(Collections.nCopies(nodes.size(), Thread.currentThread()), threads);
+    }
+
+    @Test
+    public void runsSequentiallyWithOneThread() {
+        List<String> nodes = Arrays.asList("c", "b", "a");
+        Map<String, Set<String>> dependencies = new HashMap<>();
+        dependencies.put("c", Collections.singleton("a"));
+        List<String> done = new ArrayList<>();
+
+        SetupExecutor.runGraph(nodes, dependencies, 1, done::add);
+
+        // without parallelism the given order is kept, even against the dependencies
+        assertEquals(nodes, done);
+    }
+
+    @Test
+    public void ignoresDependenciesOutsideTheNodesAndOnThemselves() {
+        List<String> nodes = Arrays.asList("a", "b");
+        Map<String, Set<String>> dependencies = new HashMap<>();
+        dependencies.put("a", new HashSet<>(Arrays.asList("a", "x")));
+        List<String> done = Collections.synchronizedList(new ArrayList<>());
+
+        SetupExecutor.runGraph(nodes, dependencies, 2, done::add);
+
+        assertEquals(new HashSet<>(nodes), new HashSet<>(done));
+    }
+
+    @Test
+    public void runsDependentsOfAFailedNode() {
+        List<String> nodes = Arrays.asList("a", "b", "c");
+        Map<String, Set<String>> dependencies = new HashMap<>();
+        dependencies.put("b", Collections.singleton("a"));
+        dependencies.put("c", Collections.singleton("b"));
+        List<String> done = Collections.synchronizedList(new ArrayList<>());
+
+        SetupExecutor.runGraph(nodes, dependencies, 2, node -> {
+            if (node.equals("a")) {
+                throw new IllegalStateException("failed on purpose");
+            }
+            done.add(node);
+        });
+
+        assertEquals(Arrays.asList("b", "c"), done);
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}